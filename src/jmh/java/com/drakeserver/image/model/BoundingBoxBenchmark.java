@@ -0,0 +1,79 @@
+package com.drakeserver.image.model;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The box comparisons over a fixed set of pairs, a third of which are disjoint, a third
+ * overlapping and a third nested.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoundingBoxBenchmark {
+
+	static final int PAIRS = 1024;
+
+	BoundingBox[] first = new BoundingBox[PAIRS];
+	BoundingBox[] second = new BoundingBox[PAIRS];
+
+	@Setup
+	public void setup() {
+		Random random = new Random(PAIRS);
+		for (int i = 0; i < PAIRS; i++) {
+			BoundingBox a = new BoundingBox(random.nextInt(2000), random.nextInt(3000), 100 + random.nextInt(300), 100 + random.nextInt(300));
+			first[i] = a;
+			switch (i % 3) {
+			case 0:
+				second[i] = new BoundingBox(a.getX() + a.getWidth() + 1 + random.nextInt(50), a.getY(), a.getWidth(), a.getHeight());
+				break;
+			case 1:
+				second[i] = new BoundingBox(a.getX() + a.getWidth() / 2, a.getY() + a.getHeight() / 2, a.getWidth(), a.getHeight());
+				break;
+			default:
+				second[i] = new BoundingBox(a.getX() + 5, a.getY() + 5, a.getWidth() / 2, a.getHeight() / 2);
+				break;
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public void intersects(Blackhole bh) {
+		for (int i = 0; i < PAIRS; i++) {
+			bh.consume(first[i].intersects(second[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public void contains(Blackhole bh) {
+		for (int i = 0; i < PAIRS; i++) {
+			bh.consume(first[i].contains(second[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public void intersection(Blackhole bh) {
+		for (int i = 0; i < PAIRS; i++) {
+			bh.consume(first[i].intersection(second[i]));
+		}
+	}
+}
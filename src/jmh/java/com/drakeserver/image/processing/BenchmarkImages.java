@@ -0,0 +1,69 @@
+package com.drakeserver.image.processing;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders the deterministic album pages the benchmarks run on: an off-white page with a grid of
+ * stamps of varying tone (some with a lighter centre so the hole filling has work) and a little
+ * noise so the filters and the encoders see realistic content.
+ */
+final class BenchmarkImages {
+
+	private BenchmarkImages() { }
+
+	/**
+	 * @param size the page size as <code>WIDTHxHEIGHT</code>
+	 */
+	static BufferedImage page(String size) {
+		String[] dims = size.toLowerCase().split("x");
+		int width = Integer.parseInt(dims[0].trim());
+		int height = Integer.parseInt(dims[1].trim());
+		Random random = new Random(size.hashCode());
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(new Color(238, 236, 228));
+			g.fillRect(0, 0, width, height);
+			int columns = 4;
+			int rows = 5;
+			int cellWidth = width / columns;
+			int cellHeight = height / rows;
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < columns; c++) {
+					int w = cellWidth * (50 + random.nextInt(30)) / 100;
+					int h = cellHeight * (50 + random.nextInt(30)) / 100;
+					int x = c * cellWidth + (cellWidth - w) / 2;
+					int y = r * cellHeight + (cellHeight - h) / 2;
+					g.setColor(new Color(40 + random.nextInt(120), 40 + random.nextInt(120), 40 + random.nextInt(120)));
+					g.fillRect(x, y, w, h);
+					if (random.nextBoolean()) {
+						g.setColor(new Color(220, 215, 200));
+						g.fillRect(x + w / 4, y + h / 4, w / 2, h / 2);
+					}
+				}
+			}
+		} finally {
+			g.dispose();
+		}
+		for (int i = 0, n = width * height / 200; i < n; i++) {
+			int v = random.nextInt(256);
+			image.setRGB(random.nextInt(width), random.nextInt(height), (v << 16) | (v << 8) | v);
+		}
+		return image;
+	}
+
+	static byte[] encode(BufferedImage image, String format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(image, format, out)) {
+			throw new IOException("No writer for " + format);
+		}
+		return out.toByteArray();
+	}
+}
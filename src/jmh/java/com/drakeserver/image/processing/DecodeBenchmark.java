@@ -0,0 +1,72 @@
+package com.drakeserver.image.processing;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding the image from the base64 data URL of a request and from a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class DecodeBenchmark {
+
+	@Param({ "1200x1600", "2550x3300", "5100x6600" })
+	String size;
+
+	@Param({ "png", "jpg" })
+	String format;
+
+	ImageProcessorService service;
+	String dataUrl;
+	File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		service = new ImageProcessorService();
+		byte[] data = BenchmarkImages.encode(BenchmarkImages.page(size), format);
+		dataUrl = "data:image/" + format + ";base64," + Base64.getMimeEncoder().encodeToString(data);
+		file = File.createTempFile("benchmark", "." + format);
+		Files.write(file.toPath(), data);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		Files.deleteIfExists(file.toPath());
+	}
+
+	@Benchmark
+	public BufferedImage base64() throws IOException {
+		try (ImageReaderSource source = ImageReaderSource.open(service.decodeImageData(dataUrl))) {
+			return source.read();
+		}
+	}
+
+	@Benchmark
+	public BufferedImage file() throws IOException {
+		try (ImageReaderSource source = ImageReaderSource.open(file)) {
+			return source.read();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.drakeserver.image.processing;
+
+import java.awt.image.BufferedImage;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.drakeserver.image.processing.DetectionPipeline.Stage;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Each stage of the {@link DetectionPipeline} on its own.  The stages after the conversion to 8-bit
+ * work in place so each invocation starts from a copy of the image as it is when the stage is
+ * reached in the pipeline (the copy is made outside of the measurement).  The dilation and the
+ * hole filling work on the image packed into a {@link BinaryMask} as they do in the pipeline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class DetectionPipelineBenchmark {
+
+	@Param({ "1200x1600", "2550x3300", "5100x6600" })
+	String size;
+
+	@Param({ "ENHANCE_CONTRAST", "CONVERT_TO_8BIT", "SMOOTH", "DESPECKLE", "REMOVE_OUTLIERS", "MAKE_BINARY", "DILATE", "FILL_HOLES" })
+	Stage stage;
+
+	DetectionPipeline pipeline;
+	BufferedImage image;
+	int[] table;
+	byte[] input;
+	ByteProcessor work;
+	BinaryMask mask;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		pipeline = new DetectionPipeline(1, EnumSet.noneOf(Stage.class));
+		image = BenchmarkImages.page(size);
+		table = DetectionPipeline.contrastTable(LuminanceConverter.histogram(image), (long) image.getWidth() * image.getHeight(),
+				DetectionPipeline.SATURATED_DEFAULT);
+		ByteProcessor bp = pipeline.ingest(image, null);
+		for (Stage s : Stage.values()) {
+			if (s == stage) {
+				break;
+			}
+			if (s.ordinal() > Stage.CONVERT_TO_8BIT.ordinal()) {
+				pipeline.apply(s, bp);
+			}
+		}
+		input = (byte[]) bp.getPixels();
+		work = new ByteProcessor(bp.getWidth(), bp.getHeight(), new byte[input.length]);
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		System.arraycopy(input, 0, (byte[]) work.getPixels(), 0, input.length);
+		if (stage == Stage.DILATE || stage == Stage.FILL_HOLES) {
+			mask = BinaryMask.pack(work);
+		}
+	}
+
+	@Benchmark
+	public Object stage() {
+		switch (stage) {
+		case ENHANCE_CONTRAST:
+			return DetectionPipeline.contrastTable(LuminanceConverter.histogram(image), (long) image.getWidth() * image.getHeight(),
+					DetectionPipeline.SATURATED_DEFAULT);
+		case CONVERT_TO_8BIT:
+			return LuminanceConverter.toGray(image, table, (byte[]) work.getPixels());
+		case DILATE:
+		case FILL_HOLES:
+			pipeline.apply(stage, mask);
+			return mask;
+		default:
+			pipeline.apply(stage, work);
+			return work;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.drakeserver.image.processing;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.drakeserver.image.model.BoundingBoxBuffer;
+import com.drakeserver.image.processing.DetectionPipeline.Stage;
+
+/**
+ * Extracting the particle bounds from the binary mask.  The labelling leaves the mask unchanged so
+ * every invocation analyzes the same mask.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class ParticleAnalysisBenchmark {
+
+	@Param({ "1200x1600", "2550x3300", "5100x6600" })
+	String size;
+
+	ImageProcessorService service;
+	BinaryMask binary;
+	ComponentLabeller labeller;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		service = new ImageProcessorService();
+		DetectionPipeline pipeline = new DetectionPipeline(0, EnumSet.noneOf(Stage.class));
+		binary = pipeline.runToMask(pipeline.ingest(BenchmarkImages.page(size), null), null);
+		labeller = new ComponentLabeller(ComponentLabeller.Connectivity.EIGHT);
+	}
+
+	@Benchmark
+	public BoundingBoxBuffer findParticles() {
+		return service.findParticles(binary, ImageProcessorService.MINIMUM_AREA_DEFAULT);
+	}
+
+	/**
+	 * The labelling alone with the run and component arrays reused between images.
+	 */
+	@Benchmark
+	public int label() {
+		return labeller.label(binary);
+	}
+}
@@ -0,0 +1,79 @@
+package com.drakeserver.image.processing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * The overlap removal and reading order sort of the detected boxes.  The boxes are laid out on a
+ * grid (as stamps on a page) with some enclosed and some substantially overlapping boxes so there
+ * is work for the removal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class PostProcessBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	int n;
+
+	ImageProcessorService service;
+	List<BoundingBox> boxes;
+	List<BoundingBox> work;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		service = new ImageProcessorService();
+		boxes = new ArrayList<>(n);
+		Random random = new Random(n);
+		int columns = (int) Math.ceil(Math.sqrt(n));
+		for (int i = 0; i < n; i++) {
+			int x = (i % columns) * 300 + random.nextInt(40);
+			int y = (i / columns) * 400 + random.nextInt(40);
+			int kind = random.nextInt(10);
+			if (kind == 0 && i > 0) {
+				// enclosed by the previous box
+				BoundingBox outer = boxes.get(i - 1);
+				boxes.add(new BoundingBox(outer.getX() + 10, outer.getY() + 10, outer.getWidth() / 2, outer.getHeight() / 2));
+			} else if (kind == 1 && i > 0) {
+				// overlaps the previous box by around half
+				BoundingBox other = boxes.get(i - 1);
+				boxes.add(new BoundingBox(other.getX() + other.getWidth() / 2, other.getY(), other.getWidth(), other.getHeight()));
+			} else {
+				boxes.add(new BoundingBox(x, y, 200 + random.nextInt(60), 280 + random.nextInt(80)));
+			}
+		}
+		work = new ArrayList<>(n);
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		work.clear();
+		work.addAll(boxes);
+	}
+
+	@Benchmark
+	public List<BoundingBox> postProcessBoundingBoxes() {
+		service.postProcessBoundingBoxes(work, ImageProcessorService.MINIMUM_OVERLAP_PERCENTAGE);
+		return work;
+	}
+}
@@ -0,0 +1,72 @@
+package com.drakeserver.image.processing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * Two clients processing the same encoded page over and over, to compare the garbage collection
+ * (run with <code>-prof gc</code> for the collection counts and times) and the latency percentiles
+ * of the requests with the pooled pixel buffers, without the pool and as before the pool (without
+ * it and with the <code>System.gc()</code> which followed each request).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx1g", "-XX:+UseG1GC", "-Djava.awt.headless=true" })
+public class RequestGcBenchmark {
+
+	public enum Buffers { POOLED, UNPOOLED, EXPLICIT_GC }
+
+	@Param({ "3000x2000" })
+	String size;
+
+	@Param({ "jpg" })
+	String format;
+
+	@Param({ "POOLED", "UNPOOLED", "EXPLICIT_GC" })
+	Buffers buffers;
+
+	ImageProcessorService service;
+	byte[] data;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		service = new ImageProcessorService();
+		data = BenchmarkImages.encode(BenchmarkImages.page(size), format);
+	}
+
+	@Benchmark
+	public List<BoundingBox> request() throws IOException {
+		List<BoundingBox> boxes = service.process(new ByteArrayInputStream(data), Collections.emptyMap());
+		if (buffers != Buffers.POOLED) {
+			// the buffers returned by the request are dropped so the next request allocates its own
+			service.getBufferPool().clear();
+		}
+		if (buffers == Buffers.EXPLICIT_GC) {
+			System.gc();
+		}
+		return boxes;
+	}
+}
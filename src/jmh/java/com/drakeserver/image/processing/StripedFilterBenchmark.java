@@ -0,0 +1,86 @@
+package com.drakeserver.image.processing;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.drakeserver.image.processing.DetectionPipeline.Stage;
+
+import ij.process.ByteProcessor;
+
+/**
+ * The neighbourhood filters of the {@link DetectionPipeline} run over the whole image on one thread
+ * (<code>bands</code> of 1) against the same filters striped over bands on a {@link CpuPool} of
+ * <code>threads</code> threads (0 for one per core).  Each invocation starts from a copy of the
+ * image as it is when the filter is reached in the pipeline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-Djava.awt.headless=true" })
+public class StripedFilterBenchmark {
+
+	@Param({ "2550x3300", "5100x6600" })
+	String size;
+
+	@Param({ "SMOOTH", "DESPECKLE", "REMOVE_OUTLIERS" })
+	Stage stage;
+
+	@Param({ "1", "2", "4", "8" })
+	int bands;
+
+	@Param({ "0" })
+	int threads;
+
+	CpuPool pool;
+	DetectionPipeline pipeline;
+	byte[] input;
+	ByteProcessor work;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		pool = new CpuPool(threads);
+		DetectionPipeline whole = new DetectionPipeline(1, EnumSet.noneOf(Stage.class));
+		ByteProcessor bp = whole.ingest(BenchmarkImages.page(size), null);
+		for (Stage s : new Stage[] { Stage.SMOOTH, Stage.DESPECKLE }) {
+			if (s == stage) {
+				break;
+			}
+			whole.apply(s, bp);
+		}
+		pipeline = whole.striped(pool, bands);
+		input = (byte[]) bp.getPixels();
+		work = new ByteProcessor(bp.getWidth(), bp.getHeight(), new byte[input.length]);
+	}
+
+	@Setup(Level.Invocation)
+	public void reset() {
+		System.arraycopy(input, 0, (byte[]) work.getPixels(), 0, input.length);
+	}
+
+	@Benchmark
+	public Object filter() {
+		pipeline.apply(stage, work);
+		return work;
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		pool.shutdown();
+	}
+}
@@ -25,4 +25,13 @@ public interface ImageConstants {
     public static final String MIN_INTERCEPTING_AREA = "minimumInterceptingArea";
     public static final String MIN_BOUNDING_AREA = "minimumBoundingArea";
     public static final String BOX_PADDING = "padding";
+    public static final String TILE_SIZE = "tileSize";
+    public static final String TILE_OVERLAP = "tileOverlap";
+    public static final String TILE_PARALLELISM = "tileParallelism";
+    public static final String FILTER_PARALLELISM = "filterParallelism";
+    public static final String RESOLUTION = "resolution";
+    public static final String PROXY_RESOLUTION = "proxyResolution";
+    public static final String PROXY_SCALE = "proxyScale";
+    public static final String PROXY_REFINE = "proxyRefine";
+    public static final String SKIP_STAGES = "skipStages";
 }
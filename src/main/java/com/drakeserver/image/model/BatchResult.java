@@ -0,0 +1,41 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import java.util.List;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The result of processing one file of a batch, written as one line of the NDJSON response.
+ *
+ */
+@Data
+@NoArgsConstructor
+public class BatchResult {
+
+	private String filename;
+	private List<BoundingBox> boxes;
+	private String error;
+	private boolean cached;
+	private long readMillis;
+	private long processMillis;
+
+	public BatchResult(String filename) {
+		this.filename = filename;
+	}
+}
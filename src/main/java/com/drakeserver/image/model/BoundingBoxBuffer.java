@@ -0,0 +1,191 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable list of bounding boxes held as parallel <code>int</code> arrays.  The detection results
+ * are collected, padded, filtered and post-processed in place so no per box objects are created
+ * until the results are returned with {@link #toList()}.
+ *
+ */
+public class BoundingBoxBuffer {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] x;
+	private int[] y;
+	private int[] width;
+	private int[] height;
+	private int size;
+
+	public BoundingBoxBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public BoundingBoxBuffer(int capacity) {
+		int c = Math.max(1, capacity);
+		x = new int[c];
+		y = new int[c];
+		width = new int[c];
+		height = new int[c];
+	}
+
+	public static BoundingBoxBuffer of(List<BoundingBox> boxes) {
+		BoundingBoxBuffer buffer = new BoundingBoxBuffer(boxes.size());
+		for (BoundingBox b : boxes) {
+			buffer.add(b.getX(), b.getY(), b.getWidth(), b.getHeight());
+		}
+		return buffer;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public void add(int bx, int by, int bwidth, int bheight) {
+		if (size == x.length) {
+			int capacity = x.length * 2;
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			width = Arrays.copyOf(width, capacity);
+			height = Arrays.copyOf(height, capacity);
+		}
+		set(size++, bx, by, bwidth, bheight);
+	}
+
+	public void set(int i, int bx, int by, int bwidth, int bheight) {
+		x[i] = bx;
+		y[i] = by;
+		width[i] = bwidth;
+		height[i] = bheight;
+	}
+
+	public int getX(int i) {
+		return x[i];
+	}
+
+	public int getY(int i) {
+		return y[i];
+	}
+
+	public int getWidth(int i) {
+		return width[i];
+	}
+
+	public int getHeight(int i) {
+		return height[i];
+	}
+
+	public BoundingBox get(int i) {
+		return new BoundingBox(x[i], y[i], width[i], height[i]);
+	}
+
+	/**
+	 * Expand each box by the padding on all sides.  The origin is kept within the image and the
+	 * width and height are reduced to keep the right and bottom edges within the image.
+	 */
+	public void pad(int padding, int imageWidth, int imageHeight) {
+		for (int i = 0; i < size; i++) {
+			int px = Math.max(0, x[i] - padding);
+			int py = Math.max(0, y[i] - padding);
+			int pw = width[i] + (2 * padding);
+			int ph = height[i] + (2 * padding);
+			if (pw + px > imageWidth) {
+				pw = imageWidth - px;
+			}
+			if (ph + py > imageHeight) {
+				ph = imageHeight - py;
+			}
+			set(i, px, py, pw, ph);
+		}
+	}
+
+	/**
+	 * Keep only the boxes whose width and height both exceed the minimum.
+	 */
+	public void retainLargerThan(int minimum) {
+		int retained = 0;
+		for (int i = 0; i < size; i++) {
+			if (width[i] > minimum && height[i] > minimum) {
+				set(retained++, x[i], y[i], width[i], height[i]);
+			}
+		}
+		size = retained;
+	}
+
+	/**
+	 * Remove the boxes enclosed by another box or which intersect a larger box by more than
+	 * <code>minPercentage</code> of its area (see {@link OverlapRemoval#findRemoved}).
+	 *
+	 * @param removed receives the removed boxes (may be null)
+	 * @return the number of boxes removed
+	 */
+	public int removeOverlaps(float minPercentage, BoundingBoxBuffer removed) {
+		boolean[] flags = new boolean[size];
+		int total = OverlapRemoval.findRemoved(x, y, width, height, size, minPercentage, flags);
+		if (total > 0) {
+			int retained = 0;
+			for (int i = 0; i < size; i++) {
+				if (!flags[i]) {
+					set(retained++, x[i], y[i], width[i], height[i]);
+				} else if (removed != null) {
+					removed.add(x[i], y[i], width[i], height[i]);
+				}
+			}
+			size = retained;
+		}
+		return total;
+	}
+
+	/**
+	 * Sort the boxes into reading order (see {@link OverlapRemoval#readingOrder}).
+	 */
+	public void sortReadingOrder() {
+		int[] order = OverlapRemoval.readingOrder(x, y, height, size);
+		int[] scratch = new int[size];
+		permute(order, x, scratch);
+		permute(order, y, scratch);
+		permute(order, width, scratch);
+		permute(order, height, scratch);
+	}
+
+	private void permute(int[] order, int[] values, int[] scratch) {
+		for (int k = 0; k < size; k++) {
+			scratch[k] = values[order[k]];
+		}
+		System.arraycopy(scratch, 0, values, 0, size);
+	}
+
+	public List<BoundingBox> toList() {
+		List<BoundingBox> boxes = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			boxes.add(get(i));
+		}
+		return boxes;
+	}
+}
@@ -17,6 +17,14 @@ package com.drakeserver.image.model;
 
 import java.util.Comparator;
 
+/**
+ * Orders the boxes by row and then by column.
+ *
+ * @deprecated the ordering is not transitive (rows overlap by up to 50 pixels) so it does not satisfy
+ *   the {@link Comparator} contract and sorting may fail with larger numbers of boxes.  The reading
+ *   order is computed by {@link OverlapRemoval#readingOrder} instead.
+ */
+@Deprecated
  public class BoundingBoxesComparator implements Comparator<BoundingBox> {
 
         @Override
@@ -0,0 +1,35 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A region of an image to export, with the file (relative to the export folder) it is written to
+ * and the clockwise rotation (in multiples of 90 degrees) applied to it.
+ *
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ExportRegion {
+
+	private BoundingBox box;
+	private String filename;
+	private int rotate;
+}
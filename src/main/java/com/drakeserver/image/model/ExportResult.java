@@ -0,0 +1,39 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The result of exporting one region, written as one line of the NDJSON response.  A region whose
+ * file already exists is not written (and <code>exists</code> is set) unless overwriting.
+ *
+ */
+@Data
+@NoArgsConstructor
+public class ExportResult {
+
+	private String filename;
+	private boolean saved;
+	private boolean exists;
+	private String error;
+	private long millis;
+
+	public ExportResult(String filename) {
+		this.filename = filename;
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import java.util.Arrays;
+
+/**
+ * Removal of the bounding boxes which are enclosed by, or substantially overlap, a larger box and
+ * the ordering of the remaining boxes.  The boxes are held as parallel <code>int</code> arrays and
+ * the overlapping pairs are found with a sweep along the x axis, the boxes crossing the sweep being
+ * indexed by their vertical extent so only boxes overlapping in both axes are compared.  The
+ * intersections are computed inline without allocating.
+ *
+ */
+public class OverlapRemoval {
+
+	private OverlapRemoval() { }
+
+	/**
+	 * Mark the boxes to remove.  A box is removed if another box contains it, or if it intersects a
+	 * larger box by more than <code>minPercentage</code> of the area of the larger box.  Identical
+	 * boxes contain each other and so are all removed.  Boxes with an empty area are never removed
+	 * and never cause the removal of another box.
+	 *
+	 * @param x the left of each box
+	 * @param y the top of each box
+	 * @param width the width of each box
+	 * @param height the height of each box
+	 * @param size the number of boxes
+	 * @param minPercentage the fraction of the larger box which must be overlapped
+	 * @param removed set to true for each box to remove (the first <code>size</code> entries are cleared)
+	 * @return the number of boxes removed
+	 */
+	public static int findRemoved(int[] x, int[] y, int[] width, int[] height, int size, float minPercentage, boolean[] removed) {
+		int[] order = new int[size];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			removed[i] = false;
+			if (width[i] > 0 && height[i] > 0) {
+				order[count++] = i;
+			}
+		}
+		sort(order, count, x, y);
+
+		// the boxes whose right edge is beyond the current sweep position
+		ActiveBoxes active = new ActiveBoxes(x, y, width, height, size, order, count);
+		int total = 0;
+		for (int o = 0; o < count; o++) {
+			int i = order[o];
+			int found = active.findOverlapping(i);
+			for (int f = 0; f < found; f++) {
+				int j = active.found[f];
+				if (!removed[i] && removes(j, i, x, y, width, height, minPercentage)) {
+					removed[i] = true;
+					total++;
+				}
+				if (!removed[j] && removes(i, j, x, y, width, height, minPercentage)) {
+					removed[j] = true;
+					total++;
+				}
+			}
+			active.add(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Whether the box <code>m</code> causes the removal of the intersecting box <code>r</code>.
+	 */
+	private static boolean removes(int m, int r, int[] x, int[] y, int[] width, int[] height, float minPercentage) {
+		int mRight = x[m] + width[m];
+		int mBottom = y[m] + height[m];
+		int rRight = x[r] + width[r];
+		int rBottom = y[r] + height[r];
+		if (x[r] >= x[m] && y[r] >= y[m] && rRight <= mRight && rBottom <= mBottom) {
+			return true;
+		}
+		long interceptArea = (long) (Math.min(mRight, rRight) - Math.max(x[m], x[r])) * (Math.min(mBottom, rBottom) - Math.max(y[m], y[r]));
+		double masterArea = (double) width[m] * height[m];
+		return interceptArea > minPercentage * masterArea && masterArea > (double) width[r] * height[r];
+	}
+
+	/**
+	 * The boxes crossing the sweep indexed by their vertical extent.  A segment tree over the distinct
+	 * top and bottom edges holds each box in the nodes which its extent covers and, as nested, in
+	 * each of their ancestors.  The boxes overlapping an extent are then those covering a node along
+	 * the search for the extent and those nested within the nodes it covers, so a column of boxes is
+	 * not compared pair by pair.  The boxes which the sweep has passed are dropped from the lists as
+	 * they are visited.
+	 */
+	private static class ActiveBoxes {
+
+		private final int[] x;
+		private final int[] width;
+		private final int[] from;
+		private final int[] to;
+		private final int slots;
+		private final int[][] cover;
+		private final int[] coverSize;
+		private final int[][] nested;
+		private final int[] nestedSize;
+		private final int[] seen;
+		private int stamp;
+		private int left;
+
+		final int[] found;
+		private int foundCount;
+
+		ActiveBoxes(int[] x, int[] y, int[] width, int[] height, int size, int[] order, int count) {
+			this.x = x;
+			this.width = width;
+			int[] edges = new int[2 * count];
+			for (int o = 0; o < count; o++) {
+				edges[2 * o] = y[order[o]];
+				edges[2 * o + 1] = y[order[o]] + height[order[o]];
+			}
+			Arrays.sort(edges);
+			int distinct = 0;
+			for (int e = 0; e < edges.length; e++) {
+				if (distinct == 0 || edges[e] != edges[distinct - 1]) {
+					edges[distinct++] = edges[e];
+				}
+			}
+			from = new int[size];
+			to = new int[size];
+			for (int o = 0; o < count; o++) {
+				int i = order[o];
+				from[i] = Arrays.binarySearch(edges, 0, distinct, y[i]);
+				to[i] = Arrays.binarySearch(edges, 0, distinct, y[i] + height[i]);
+			}
+			slots = Math.max(1, distinct - 1);
+			cover = new int[4 * slots][];
+			coverSize = new int[4 * slots];
+			nested = new int[4 * slots][];
+			nestedSize = new int[4 * slots];
+			seen = new int[size];
+			found = new int[count];
+		}
+
+		void add(int box) {
+			insert(1, 0, slots, box);
+		}
+
+		/**
+		 * Find the boxes overlapping the box vertically which the sweep has not passed.
+		 *
+		 * @return the number of boxes found (held in {@link #found})
+		 */
+		int findOverlapping(int box) {
+			left = x[box];
+			stamp++;
+			foundCount = 0;
+			search(1, 0, slots, from[box], to[box]);
+			return foundCount;
+		}
+
+		private void insert(int node, int lo, int hi, int box) {
+			if (to[box] <= lo || hi <= from[box]) {
+				return;
+			}
+			if (from[box] <= lo && hi <= to[box]) {
+				cover[node] = append(cover[node], coverSize[node]++, box);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			insert(2 * node, lo, mid, box);
+			insert(2 * node + 1, mid, hi, box);
+			nested[node] = append(nested[node], nestedSize[node]++, box);
+		}
+
+		private void search(int node, int lo, int hi, int top, int bottom) {
+			if (bottom <= lo || hi <= top) {
+				return;
+			}
+			coverSize[node] = collect(cover[node], coverSize[node]);
+			if (top <= lo && hi <= bottom) {
+				nestedSize[node] = collect(nested[node], nestedSize[node]);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			search(2 * node, lo, mid, top, bottom);
+			search(2 * node + 1, mid, hi, top, bottom);
+		}
+
+		/**
+		 * Add the boxes of the list to those found, dropping the boxes which the sweep has passed.
+		 *
+		 * @return the number of boxes retained in the list
+		 */
+		private int collect(int[] list, int length) {
+			int retained = 0;
+			for (int k = 0; k < length; k++) {
+				int j = list[k];
+				if (x[j] + width[j] <= left) {
+					continue;
+				}
+				list[retained++] = j;
+				// a box may be held by several of the nodes searched
+				if (seen[j] != stamp) {
+					seen[j] = stamp;
+					found[foundCount++] = j;
+				}
+			}
+			return retained;
+		}
+
+		private static int[] append(int[] list, int length, int box) {
+			if (list == null) {
+				list = new int[4];
+			} else if (length == list.length) {
+				list = Arrays.copyOf(list, 2 * length);
+			}
+			list[length] = box;
+			return list;
+		}
+	}
+
+	/**
+	 * Compute the reading order of the boxes (top to bottom in rows and left to right within a row).
+	 * A row starts with the highest remaining box and includes each box which starts above the bottom
+	 * of that first box.
+	 *
+	 * @return the indices of the boxes in reading order
+	 */
+	public static int[] readingOrder(int[] x, int[] y, int[] height, int size) {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		sort(order, size, y, x);
+		int start = 0;
+		while (start < size) {
+			int rowBottom = y[order[start]] + height[order[start]];
+			int end = start + 1;
+			while (end < size && y[order[end]] < rowBottom) {
+				end++;
+			}
+			sortRange(order, start, end, x, y);
+			start = end;
+		}
+		return order;
+	}
+
+	private static void sort(int[] order, int size, int[] primary, int[] secondary) {
+		sortRange(order, 0, size, primary, secondary);
+	}
+
+	/**
+	 * Sort the range of indices by the primary then the secondary key.  The keys are packed into a
+	 * <code>long</code> with a position so the primitive sort can be used.
+	 */
+	private static void sortRange(int[] order, int from, int to, int[] primary, int[] secondary) {
+		int length = to - from;
+		if (length < 2) {
+			return;
+		}
+		long[] keys = new long[length];
+		for (int k = 0; k < length; k++) {
+			keys[k] = ((long) secondary[order[from + k]] << 32) | k;
+		}
+		Arrays.sort(keys);
+		int[] bySecondary = new int[length];
+		for (int k = 0; k < length; k++) {
+			bySecondary[k] = order[from + (int) keys[k]];
+		}
+		// the position in the secondary order breaks the ties of the primary key
+		for (int k = 0; k < length; k++) {
+			keys[k] = ((long) primary[bySecondary[k]] << 32) | k;
+		}
+		Arrays.sort(keys);
+		for (int k = 0; k < length; k++) {
+			order[from + k] = bySecondary[(int) keys[k]];
+		}
+	}
+}
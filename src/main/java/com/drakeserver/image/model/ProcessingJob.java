@@ -0,0 +1,58 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import java.util.List;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The state of an image submitted for asynchronous processing.  The same bean is returned when
+ * polling the job and is pushed to the job's destination when the job finishes.
+ *
+ */
+@Data
+@NoArgsConstructor
+public class ProcessingJob {
+
+	public enum State {
+		QUEUED,
+		RUNNING,
+		COMPLETED,
+		FAILED
+	}
+
+	private String id;
+	private String destination;
+	private volatile State state;
+	private volatile List<BoundingBox> boxes;
+	private volatile String error;
+	private long submitted;
+	private volatile long started;
+	private volatile long completed;
+
+	public ProcessingJob(String id, String destination) {
+		this.id = id;
+		this.destination = destination;
+		this.state = State.QUEUED;
+		this.submitted = System.currentTimeMillis();
+	}
+
+	public boolean isFinished() {
+		return state == State.COMPLETED || state == State.FAILED;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The progress of processing an image, sent to the destination of its job.  The <code>stage</code>
+ * is one of the {@link com.drakeserver.image.processing.DetectionPipeline.Stage} names or one of the
+ * steps around the pipeline (WAITING, DECODE, PROXY, MASK, TILES, ANALYZE, REFINE and POST_PROCESS) with
+ * the <code>iteration</code> of a repeated stage.  The <code>fraction</code> is the estimated part
+ * of the processing completed (0 to 1), <code>elapsedMillis</code> the time since the processing
+ * started and <code>bytesInUse</code> the memory reserved by all of the images being processed.
+ *
+ */
+@Data
+@NoArgsConstructor
+public class ProgressEvent {
+
+	private String jobId;
+	private String stage;
+	private int iteration;
+	private double fraction;
+	private String message;
+	private long elapsedMillis;
+	private long bytesInUse;
+}
@@ -0,0 +1,43 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.model;
+
+import java.util.List;
+import java.util.Map;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The result of detecting the image with one of the option sets of a parameter sweep.
+ * <code>sharedMask</code> is set when the binary mask prepared for another variant (with the same
+ * mask options) was used.
+ *
+ */
+@Data
+@NoArgsConstructor
+public class SweepResult {
+
+	private Map<String, Object> options;
+	private List<BoundingBox> boxes;
+	private String error;
+	private boolean sharedMask;
+	private long processMillis;
+
+	public SweepResult(Map<String, Object> options) {
+		this.options = options;
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.drakeserver.image.ImageConstants;
+import com.drakeserver.image.model.BatchResult;
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.util.FileUtilities;
+
+/**
+ * Processes the images in a directory in parallel.  Each file is handled on a virtual thread which
+ * looks up the cached result and otherwise waits for one of the worker slots before decoding the
+ * file directly (so no encoded bytes are held while waiting).  At most one file per worker is
+ * waiting and the results are reported in the order the files complete.
+ *
+ */
+@Service
+public class BatchProcessingService {
+
+	static final Logger LOGGER = Logger.getLogger(BatchProcessingService.class.getName());
+
+	public static final String DIRECTORY = "directory";
+	public static final String GLOB = "glob";
+	public static final String PARALLELISM = "parallelism";
+	public static final String OPTIONS = "options";
+	public static final String GLOB_DEFAULT = "*.{jpg,jpeg,JPG,JPEG,png,PNG,tif,tiff,TIF,TIFF,bmp,BMP,gif,GIF}";
+
+	@Autowired
+	private ImageProcessorService imageProcessorService;
+
+	public BatchProcessingService() {
+	}
+
+	BatchProcessingService(ImageProcessorService imageProcessorService) {
+		this.imageProcessorService = imageProcessorService;
+	}
+
+	/**
+	 * List the files of the batch (sorted by name).
+	 *
+	 * @param payload the request with the <code>directory</code> and an optional <code>glob</code>
+	 */
+	public List<Path> listFiles(Map<String, ?> payload) throws IOException {
+		Object directory = payload.get(DIRECTORY);
+		if (directory == null) {
+			throw new FileNotFoundException("No directory was supplied");
+		}
+		Path dir = FileUtilities.getFile(directory.toString()).toPath();
+		if (!Files.isDirectory(dir)) {
+			throw new FileNotFoundException(dir + " is not a directory");
+		}
+		Object glob = payload.get(GLOB);
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, (glob != null) ? glob.toString() : GLOB_DEFAULT)) {
+			for (Path p : stream) {
+				if (Files.isRegularFile(p)) {
+					files.add(p);
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Process the files, passing each result to the consumer (on the calling thread) as each file
+	 * completes.
+	 *
+	 * @param files the files to process
+	 * @param payload the request with the optional <code>parallelism</code> and <code>options</code>
+	 * @param results receives the result of each file
+	 */
+	public void process(List<Path> files, Map<String, ?> payload, Consumer<BatchResult> results) throws IOException {
+		if (files.isEmpty()) {
+			return;
+		}
+		Properties options = new Properties();
+		Object opts = payload.get(OPTIONS);
+		if (opts instanceof Map<?, ?> map) {
+			ImageProcessorService.addOptions(options, map);
+		}
+		int parallelism = getParallelism(files.get(0), getRequestedParallelism(payload));
+		parallelism = Math.min(parallelism, files.size());
+		if (!options.containsKey(ImageConstants.TILE_PARALLELISM)) {
+			// the files are already processed in parallel so the tiles of each file share the remaining cores
+			int threads = imageProcessorService.getCpuParallelism();
+			options.setProperty(ImageConstants.TILE_PARALLELISM, Integer.toString(Math.max(1, threads / parallelism)));
+		}
+		LOGGER.log(Level.INFO, "Processing {0} files with {1} workers", new Object[] {files.size(), parallelism});
+
+		BlockingQueue<BatchResult> completed = new LinkedBlockingQueue<>();
+		// the files (which may be on a share) wait on virtual threads for a slot of the workers
+		ExecutorService workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("batch-", 0).factory());
+		Semaphore slots = new Semaphore(parallelism);
+		try {
+			int submitted = 0;
+			int inFlight = 0;
+			for (int reported = 0; reported < files.size(); reported++) {
+				// each worker has at most one file waiting ahead of it
+				while (submitted < files.size() && inFlight < parallelism * 2) {
+					submit(files.get(submitted++), options, workers, slots, completed);
+					inFlight++;
+				}
+				results.accept(completed.take());
+				inFlight--;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch processing was interrupted", ie);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private void submit(Path file, Properties options, ExecutorService workers, Semaphore slots, BlockingQueue<BatchResult> completed) {
+		BatchResult result = new BatchResult(file.toString());
+		workers.execute(() -> {
+			try {
+				// a file already processed with the same options is not read again
+				List<BoundingBox> cached = imageProcessorService.getCached(file.toFile(), options);
+				if (cached != null) {
+					result.setBoxes(cached);
+					result.setCached(true);
+					return;
+				}
+				slots.acquire();
+				try {
+					long start = System.nanoTime();
+					try (ImageSource source = ImageReaderSource.open(file.toFile()).setBufferPool(imageProcessorService.getBufferPool())) {
+						result.setReadMillis((System.nanoTime() - start) / 1000000L);
+						start = System.nanoTime();
+						result.setBoxes(imageProcessorService.process(source, options));
+						imageProcessorService.putCached(file.toFile(), options, result.getBoxes());
+					} finally {
+						result.setProcessMillis((System.nanoTime() - start) / 1000000L);
+					}
+				} finally {
+					slots.release();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				result.setError("Batch processing was interrupted");
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Unable to process " + file, e);
+				result.setError((e.getMessage() != null) ? e.getMessage() : e.getClass().getName());
+			} catch (Error e) {
+				// such as running out of memory decoding a large file
+				LOGGER.log(Level.SEVERE, "Unable to process " + file, e);
+				result.setError(e.toString());
+				throw e;
+			} finally {
+				// every file reports a result or the results above would wait forever
+				completed.add(result);
+			}
+		});
+	}
+
+	/**
+	 * The <code>parallelism</code> of the request.
+	 *
+	 * @return the requested parallelism or 0 if none was requested
+	 * @throws IllegalArgumentException if the parallelism is not a positive whole number
+	 */
+	public int getRequestedParallelism(Map<String, ?> payload) {
+		Object requested = payload.get(PARALLELISM);
+		if (requested == null) {
+			return 0;
+		}
+		int parallelism;
+		try {
+			parallelism = Integer.parseInt(requested.toString());
+		} catch (NumberFormatException nfe) {
+			parallelism = 0;
+		}
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("The parallelism must be a positive whole number: " + requested);
+		}
+		return parallelism;
+	}
+
+	/**
+	 * Determine the number of files to process at once.  This is bounded by the threads of the
+	 * {@link CpuPool} (a worker beyond those would only hold the memory of an image while waiting for
+	 * a thread) and by the heap, allowing the {@link MemoryAdmission#estimate estimated} working set
+	 * of the first image (album scans are generally the same size) for each worker.
+	 *
+	 * @param requested the requested parallelism (0 to size to the threads of the pool)
+	 */
+	int getParallelism(Path sample, int requested) {
+		int threads = imageProcessorService.getCpuParallelism();
+		int parallelism = (requested > 0) ? Math.min(requested, threads) : threads;
+		try (ImageSource source = ImageReaderSource.open(sample.toFile())) {
+			long perImage = MemoryAdmission.estimate(source.getWidth(), source.getHeight(), 1.0);
+			Runtime rt = Runtime.getRuntime();
+			long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+			parallelism = (int) Math.min(parallelism, Math.max(1L, available / Math.max(1L, perImage)));
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to read the dimensions of " + sample, e);
+		}
+		return Math.max(1, parallelism);
+	}
+}
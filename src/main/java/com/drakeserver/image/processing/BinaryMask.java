@@ -0,0 +1,372 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.Arrays;
+
+import ij.process.ByteProcessor;
+
+/**
+ * A binary image packed one bit per pixel into <code>long</code> words, with each row starting on
+ * a new word.  This is an eighth of the size of the 8-bit binary image the pipeline produces.
+ * <p>
+ * The morphology works on whole words at a time: the horizontal neighbours of 64 pixels are
+ * reached with a shift (carrying the end bits across words) and the vertical neighbours are the
+ * words of the rows above and below.  The bits beyond the width of a row are always clear.
+ *
+ */
+public class BinaryMask {
+
+	private final int width;
+	private final int height;
+	private final int wordsPerRow;
+	private final long[] words;
+	private final long lastWordMask;
+
+	public BinaryMask(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = (width + 63) >>> 6;
+		this.words = new long[wordsPerRow * height];
+		this.lastWordMask = ((width & 63) == 0) ? -1L : (1L << (width & 63)) - 1L;
+	}
+
+	/**
+	 * Pack the binary image, with the foreground (non-zero) pixels set.
+	 */
+	public static BinaryMask pack(ByteProcessor binary) {
+		BinaryMask mask = new BinaryMask(binary.getWidth(), binary.getHeight());
+		byte[] pixels = (byte[]) binary.getPixels();
+		for (int y = 0; y < mask.height; y++) {
+			int offset = y * mask.width;
+			int row = y * mask.wordsPerRow;
+			for (int x = 0; x < mask.width; x++) {
+				if (pixels[offset + x] != 0) {
+					mask.words[row + (x >>> 6)] |= 1L << (x & 63);
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Unpack the mask into the pixels of <code>width * height</code> bytes with the set pixels as the
+	 * foreground (255) and the others as the background (0).
+	 */
+	public byte[] unpack(byte[] pixels) {
+		for (int y = 0; y < height; y++) {
+			int offset = y * width;
+			int row = y * wordsPerRow;
+			for (int x = 0; x < width; x++) {
+				pixels[offset + x] = (byte) (((words[row + (x >>> 6)] >>> (x & 63)) & 1L) != 0 ? DetectionPipeline.FOREGROUND : DetectionPipeline.BACKGROUND);
+			}
+		}
+		return pixels;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean get(int x, int y) {
+		return ((words[y * wordsPerRow + (x >>> 6)] >>> (x & 63)) & 1L) != 0;
+	}
+
+	public void set(int x, int y) {
+		words[y * wordsPerRow + (x >>> 6)] |= 1L << (x & 63);
+	}
+
+	/**
+	 * The first set pixel of the row at or after x, or the width if there is none.
+	 */
+	public int nextSet(int x, int y) {
+		if (x >= width) {
+			return width;
+		}
+		int row = y * wordsPerRow;
+		int i = x >>> 6;
+		long word = words[row + i] & (-1L << (x & 63));
+		while (word == 0L) {
+			if (++i == wordsPerRow) {
+				return width;
+			}
+			word = words[row + i];
+		}
+		return (i << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * The first clear pixel of the row at or after x, or the width if there is none.
+	 */
+	public int nextClear(int x, int y) {
+		if (x >= width) {
+			return width;
+		}
+		int row = y * wordsPerRow;
+		int i = x >>> 6;
+		long word = ~words[row + i] & (-1L << (x & 63));
+		while (word == 0L) {
+			if (++i == wordsPerRow) {
+				return width;
+			}
+			word = ~words[row + i];
+		}
+		return Math.min(width, (i << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * Copy a region of the mask into a new mask, shifting the words of each row into place.
+	 */
+	public BinaryMask region(int x, int y, int regionWidth, int regionHeight) {
+		BinaryMask region = new BinaryMask(regionWidth, regionHeight);
+		if (region.wordsPerRow == 0) {
+			return region;
+		}
+		int shift = x & 63;
+		for (int r = 0; r < regionHeight; r++) {
+			int from = (y + r) * wordsPerRow + (x >>> 6);
+			int end = (y + r + 1) * wordsPerRow;
+			int to = r * region.wordsPerRow;
+			for (int i = 0; i < region.wordsPerRow; i++) {
+				long word = words[from + i] >>> shift;
+				if (shift != 0 && from + i + 1 < end) {
+					word |= words[from + i + 1] << (64 - shift);
+				}
+				region.words[to + i] = word;
+			}
+			region.words[to + region.wordsPerRow - 1] &= region.lastWordMask;
+		}
+		return region;
+	}
+
+	/**
+	 * A copy of the mask with the set and clear pixels swapped.
+	 */
+	public BinaryMask invert() {
+		BinaryMask inverted = new BinaryMask(width, height);
+		if (wordsPerRow == 0) {
+			return inverted;
+		}
+		for (int y = 0; y < height; y++) {
+			int row = y * wordsPerRow;
+			for (int i = 0; i < wordsPerRow; i++) {
+				inverted.words[row + i] = ~words[row + i];
+			}
+			inverted.words[row + wordsPerRow - 1] &= lastWordMask;
+		}
+		return inverted;
+	}
+
+	/**
+	 * Dilate the set pixels once into their eight neighbours in place.  This is the binary Dilate
+	 * of ImageJ with a count of 1, with the pixels outside the image treated as clear.
+	 */
+	public void dilate() {
+		if (width == 0 || height == 0) {
+			return;
+		}
+		long[] above = new long[wordsPerRow];
+		long[] current = new long[wordsPerRow];
+		long[] below = new long[wordsPerRow];
+		spread(0, current);
+		for (int y = 0; y < height; y++) {
+			// the next row is spread before this row is overwritten
+			if (y + 1 < height) {
+				spread(y + 1, below);
+			} else {
+				Arrays.fill(below, 0L);
+			}
+			int row = y * wordsPerRow;
+			for (int i = 0; i < wordsPerRow; i++) {
+				words[row + i] = above[i] | current[i] | below[i];
+			}
+			long[] spare = above;
+			above = current;
+			current = below;
+			below = spare;
+		}
+	}
+
+	/**
+	 * Erode the set pixels in place, keeping only those whose eight neighbours are all set.  This is
+	 * the binary Erode of ImageJ with a count of 1, with the pixels outside the image treated as
+	 * clear so the pixels on the edge of the image are cleared.
+	 */
+	public void erode() {
+		if (width == 0 || height == 0) {
+			return;
+		}
+		long[] above = new long[wordsPerRow];
+		long[] current = new long[wordsPerRow];
+		long[] below = new long[wordsPerRow];
+		shrink(0, current);
+		for (int y = 0; y < height; y++) {
+			if (y + 1 < height) {
+				shrink(y + 1, below);
+			} else {
+				Arrays.fill(below, 0L);
+			}
+			int row = y * wordsPerRow;
+			for (int i = 0; i < wordsPerRow; i++) {
+				words[row + i] = above[i] & current[i] & below[i];
+			}
+			long[] spare = above;
+			above = current;
+			current = below;
+			below = spare;
+		}
+	}
+
+	/**
+	 * Fill the holes in place: the clear regions which are not connected (4-connected) to the
+	 * border of the image are set.
+	 * <p>
+	 * The clear pixels reached from the border are flooded a row at a time, sweeping down and then
+	 * up the image until a pair of sweeps reaches nothing new.  Each sweep seeds a row with the
+	 * reached pixels of the row before it and fills the seeded runs of clear pixels along the row in
+	 * both directions, 64 pixels at a time (see {@link #fillRuns}).  Most images need a single pair
+	 * of sweeps with one more to confirm it.
+	 */
+	public void fillHoles() {
+		if (width == 0 || height == 0) {
+			return;
+		}
+		long[] reached = new long[words.length];
+		long[] seeds = new long[wordsPerRow];
+		// the border pixels are the seeds, the first and last rows are seeded by the sweeps
+		for (int y = 0; y < height; y++) {
+			int row = y * wordsPerRow;
+			reached[row] |= ~words[row] & 1L;
+			int last = width - 1;
+			reached[row + (last >>> 6)] |= ~words[row + (last >>> 6)] & (1L << (last & 63));
+		}
+		for (int i = 0; i < wordsPerRow; i++) {
+			reached[i] |= clear(0, i);
+			reached[(height - 1) * wordsPerRow + i] |= clear(height - 1, i);
+		}
+		boolean changed;
+		do {
+			changed = false;
+			for (int y = 0; y < height; y++) {
+				changed |= sweep(reached, seeds, y, y - 1);
+			}
+			for (int y = height - 1; y >= 0; y--) {
+				changed |= sweep(reached, seeds, y, y + 1);
+			}
+		} while (changed);
+		for (int y = 0; y < height; y++) {
+			int row = y * wordsPerRow;
+			for (int i = 0; i < wordsPerRow; i++) {
+				words[row + i] |= clear(y, i) & ~reached[row + i];
+			}
+		}
+	}
+
+	/**
+	 * Seed row y with its reached pixels and those of row <code>from</code> and fill the seeded runs.
+	 *
+	 * @return whether any pixels of the row were newly reached
+	 */
+	private boolean sweep(long[] reached, long[] seeds, int y, int from) {
+		int row = y * wordsPerRow;
+		int fromRow = from * wordsPerRow;
+		boolean seeded = from >= 0 && from < height;
+		for (int i = 0; i < wordsPerRow; i++) {
+			seeds[i] = reached[row + i] | (seeded ? reached[fromRow + i] & clear(y, i) : 0L);
+		}
+		return fillRuns(y, seeds, reached, row);
+	}
+
+	/**
+	 * Fill the runs of clear pixels of row y containing a seed into the reached pixels.  Adding the
+	 * seeds to the clear pixels carries from each seed to the end of its run (and across words to
+	 * the next) so the carries mark the run above the seed; the run below is found the same way
+	 * with the bits of the words reversed.
+	 *
+	 * @return whether any pixels were newly reached
+	 */
+	private boolean fillRuns(int y, long[] seeds, long[] reached, int row) {
+		boolean changed = false;
+		long carry = 0L;
+		for (int i = 0; i < wordsPerRow; i++) {
+			long runs = clear(y, i);
+			long seed = seeds[i] & runs;
+			long sum = runs + seed + carry;
+			seeds[i] = seed | ((sum ^ runs ^ seed) & runs);
+			carry = ((runs & seed) | ((runs | seed) & ~sum)) >>> 63;
+		}
+		carry = 0L;
+		for (int i = wordsPerRow - 1; i >= 0; i--) {
+			long runs = Long.reverse(clear(y, i));
+			long seed = Long.reverse(seeds[i]) & runs;
+			long sum = runs + seed + carry;
+			long filled = Long.reverse(seed | ((sum ^ runs ^ seed) & runs));
+			carry = ((runs & seed) | ((runs | seed) & ~sum)) >>> 63;
+			if (filled != reached[row + i]) {
+				reached[row + i] = filled;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * The clear pixels of word i of row y (without the bits beyond the width).
+	 */
+	private long clear(int y, int i) {
+		long word = ~words[y * wordsPerRow + i];
+		return (i == wordsPerRow - 1) ? word & lastWordMask : word;
+	}
+
+	/**
+	 * Set each pixel of row y which is set or has a set horizontal neighbour into the words.
+	 */
+	private void spread(int y, long[] spread) {
+		int row = y * wordsPerRow;
+		for (int i = 0; i < wordsPerRow; i++) {
+			long word = words[row + i];
+			long left = (i > 0) ? words[row + i - 1] >>> 63 : 0L;
+			long right = (i + 1 < wordsPerRow) ? words[row + i + 1] << 63 : 0L;
+			spread[i] = word | (word << 1) | left | (word >>> 1) | right;
+		}
+		spread[wordsPerRow - 1] &= lastWordMask;
+	}
+
+	/**
+	 * Set each pixel of row y which is set along with both of its horizontal neighbours into the
+	 * words.
+	 */
+	private void shrink(int y, long[] shrunk) {
+		int row = y * wordsPerRow;
+		for (int i = 0; i < wordsPerRow; i++) {
+			long word = words[row + i];
+			long left = (i > 0) ? words[row + i - 1] >>> 63 : 0L;
+			long right = (i + 1 < wordsPerRow) ? words[row + i + 1] << 63 : 0L;
+			shrunk[i] = word & ((word << 1) | left) & ((word >>> 1) | right);
+		}
+	}
+
+	/**
+	 * The bytes held by the mask.
+	 */
+	public long getSize() {
+		return (long) words.length * Long.BYTES;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of the large pixel buffers (the decoded rasters, the 8-bit detection images and the tiles)
+ * so consecutive requests reuse them rather than each allocating, and leaving for the collector,
+ * several buffers of the image size.  The buffers are pooled by their exact length since an ImageJ
+ * processor requires the pixels to be exactly <code>width * height</code>; successive scans from the
+ * same scanner (and the tiles of an image) share the same few lengths.
+ * <p>
+ * The pool is bounded by the total bytes held.  When a returned buffer would exceed the bound the
+ * buffers of the least recently used lengths are dropped first.  A borrowed buffer has undefined
+ * contents.
+ *
+ */
+public class BufferPool {
+
+	public static final long CAPACITY_DEFAULT = 256L * 1024 * 1024;
+
+	private final long capacity;
+	// the free buffers by length (in access order so the least recently used lengths are evicted first)
+	private final Map<Integer, ArrayDeque<byte[]>> bytes = new LinkedHashMap<>(16, 0.75f, true);
+	private long pooled;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param capacity the maximum bytes held by the pool (0 to disable pooling)
+	 */
+	public BufferPool(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * A pool of {@link #CAPACITY_DEFAULT} bytes or an eighth of the heap if smaller.
+	 */
+	public static BufferPool forHeap() {
+		return new BufferPool(Math.min(CAPACITY_DEFAULT, Runtime.getRuntime().maxMemory() / 8));
+	}
+
+	public synchronized byte[] borrowBytes(int length) {
+		byte[] buffer = take(length);
+		if (buffer != null) {
+			pooled -= length;
+			return buffer;
+		}
+		return new byte[length];
+	}
+
+	public synchronized void release(byte[] buffer) {
+		if (buffer != null && makeRoom(buffer.length)) {
+			bytes.computeIfAbsent(buffer.length, k -> new ArrayDeque<>()).push(buffer);
+			pooled += buffer.length;
+		}
+	}
+
+	public synchronized long getPooledBytes() {
+		return pooled;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized void clear() {
+		bytes.clear();
+		pooled = 0;
+	}
+
+	private byte[] take(int length) {
+		ArrayDeque<byte[]> free = bytes.get(length);
+		if (free == null || free.isEmpty()) {
+			misses++;
+			return null;
+		}
+		hits++;
+		byte[] buffer = free.pop();
+		if (free.isEmpty()) {
+			bytes.remove(length);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Evict the buffers of the least recently used lengths until the size fits.
+	 *
+	 * @return false if the size can not fit in the pool
+	 */
+	private boolean makeRoom(long size) {
+		if (size > capacity) {
+			return false;
+		}
+		while (pooled + size > capacity) {
+			if (!evictOldest()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean evictOldest() {
+		Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> it = bytes.entrySet().iterator();
+		if (!it.hasNext()) {
+			return false;
+		}
+		Map.Entry<Integer, ArrayDeque<byte[]>> oldest = it.next();
+		oldest.getValue().pop();
+		pooled -= oldest.getKey();
+		if (oldest.getValue().isEmpty()) {
+			it.remove();
+		}
+		return true;
+	}
+}
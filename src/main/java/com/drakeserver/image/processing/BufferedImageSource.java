@@ -0,0 +1,72 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.image.BufferedImage;
+
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * An {@link ImageSource} over an image which has already been decoded.
+ *
+ */
+public class BufferedImageSource implements ImageSource {
+
+	private BufferedImage image;
+
+	public BufferedImageSource(BufferedImage image) {
+		this.image = image;
+	}
+
+	@Override
+	public int getWidth() {
+		return image.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return image.getHeight();
+	}
+
+	@Override
+	public double getResolution() {
+		return 0.0;
+	}
+
+	@Override
+	public BufferedImage read() {
+		return image;
+	}
+
+	@Override
+	public BufferedImage read(int subsampling) {
+		if (subsampling <= 1) {
+			return image;
+		}
+		return ProxyDetection.downscale(image, 1.0 / subsampling);
+	}
+
+	@Override
+	public BufferedImage readRegion(BoundingBox region) {
+		return image.getSubimage(region.getX(), region.getY(), region.getWidth(), region.getHeight());
+	}
+
+	@Override
+	public void close() {
+		image.flush();
+		image = null;
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.Arrays;
+
+import com.drakeserver.image.model.BoundingBoxBuffer;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Finds the connected components (particles) of a binary image (or a {@link BinaryMask}) and
+ * measures the bounds and area of each, as the particle analyzer does with the <code>AREA</code>
+ * and <code>RECT</code> measurements but without tracing an outline or filling a results table.
+ * <p>
+ * The image is scanned once as runs of foreground pixels.  Each run is joined (with a union-find
+ * over the runs) to the runs of the previous row it touches, and the runs are then accumulated
+ * into their components.  The runs, the components and their measurements are held in
+ * <code>int</code> arrays which grow as needed and are reused by the next image, so nothing is
+ * allocated per particle.  The components are numbered in the order of their first pixel in a
+ * raster scan, which is the order the particle analyzer finds them.
+ * <p>
+ * A labeller is not thread-safe.
+ *
+ */
+public class ComponentLabeller {
+
+	public enum Connectivity {
+		/** Pixels are connected to their horizontal and vertical neighbours. */
+		FOUR,
+		/** Pixels are also connected to their diagonal neighbours. */
+		EIGHT
+	}
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private final Connectivity connectivity;
+
+	// the runs as [start, end) of a row, the parent of each in the union-find and its component
+	private int[] runStart;
+	private int[] runEnd;
+	private int[] runRow;
+	private int[] parent;
+	private int[] runLabel;
+	private int runs;
+	// the first run of each row (and the end of the runs after the last row)
+	private int[] rowRuns;
+
+	// the measurements of each component
+	private int[] minX;
+	private int[] minY;
+	private int[] maxX;
+	private int[] maxY;
+	private int[] area;
+	private int[] firstX;
+	private int size;
+
+	private int width;
+	private int height;
+
+	public ComponentLabeller(Connectivity connectivity) {
+		this.connectivity = connectivity;
+		runStart = new int[DEFAULT_CAPACITY];
+		runEnd = new int[DEFAULT_CAPACITY];
+		runRow = new int[DEFAULT_CAPACITY];
+		parent = new int[DEFAULT_CAPACITY];
+		runLabel = new int[DEFAULT_CAPACITY];
+		minX = new int[DEFAULT_CAPACITY];
+		minY = new int[DEFAULT_CAPACITY];
+		maxX = new int[DEFAULT_CAPACITY];
+		maxY = new int[DEFAULT_CAPACITY];
+		area = new int[DEFAULT_CAPACITY];
+		firstX = new int[DEFAULT_CAPACITY];
+		rowRuns = new int[DEFAULT_CAPACITY];
+	}
+
+	public Connectivity getConnectivity() {
+		return connectivity;
+	}
+
+	/**
+	 * Find the components of the foreground (255) pixels of the binary image.
+	 *
+	 * @return the number of components
+	 */
+	public int label(ByteProcessor binary) {
+		byte[] pixels = (byte[]) binary.getPixels();
+		begin(binary.getWidth(), binary.getHeight());
+		int previous = 0;
+		for (int y = 0; y < height; y++) {
+			int current = runs;
+			rowRuns[y] = current;
+			int offset = y * width;
+			int x = 0;
+			while (x < width) {
+				while (x < width && (pixels[offset + x] & 0xff) != DetectionPipeline.FOREGROUND) {
+					x++;
+				}
+				if (x == width) {
+					break;
+				}
+				int start = x;
+				while (x < width && (pixels[offset + x] & 0xff) == DetectionPipeline.FOREGROUND) {
+					x++;
+				}
+				previous = addRun(y, start, x, previous, current);
+			}
+			previous = current;
+		}
+		return finish();
+	}
+
+	/**
+	 * Find the components of the set pixels of the mask, reading the runs straight from its words.
+	 *
+	 * @return the number of components
+	 */
+	public int label(BinaryMask mask) {
+		begin(mask.getWidth(), mask.getHeight());
+		int previous = 0;
+		for (int y = 0; y < height; y++) {
+			int current = runs;
+			rowRuns[y] = current;
+			int x = mask.nextSet(0, y);
+			while (x < width) {
+				int end = mask.nextClear(x, y);
+				previous = addRun(y, x, end, previous, current);
+				x = mask.nextSet(end, y);
+			}
+			previous = current;
+		}
+		return finish();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getX(int i) {
+		return minX[i];
+	}
+
+	public int getY(int i) {
+		return minY[i];
+	}
+
+	public int getWidth(int i) {
+		return maxX[i] - minX[i] + 1;
+	}
+
+	public int getHeight(int i) {
+		return maxY[i] - minY[i] + 1;
+	}
+
+	/**
+	 * The number of pixels in the component.
+	 */
+	public int getArea(int i) {
+		return area[i];
+	}
+
+	/**
+	 * The x of the first pixel of the component in a raster scan (which is on its top row).
+	 */
+	public int getFirstX(int i) {
+		return firstX[i];
+	}
+
+	/**
+	 * The component of the pixel, or -1 if the pixel is not in a component.
+	 */
+	public int labelAt(int x, int y) {
+		// binary search for the last run of the row starting at or before x
+		int low = rowRuns[y];
+		int high = rowRuns[y + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (runStart[mid] <= x) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return (high >= rowRuns[y] && x < runEnd[high]) ? runLabel[high] : -1;
+	}
+
+	/**
+	 * Fill the labels with the component of each pixel of row y, or -1 for the pixels which are not
+	 * in a component.
+	 */
+	public void labelRow(int y, int[] labels) {
+		Arrays.fill(labels, 0, width, -1);
+		for (int run = rowRuns[y]; run < rowRuns[y + 1]; run++) {
+			Arrays.fill(labels, runStart[run], runEnd[run], runLabel[run]);
+		}
+	}
+
+	/**
+	 * Whether the component touches an edge of the image (and so would be excluded by the
+	 * particle analyzer's <code>EXCLUDE_EDGE_PARTICLES</code>).
+	 */
+	public boolean touchesEdge(int i) {
+		return minX[i] == 0 || minY[i] == 0 || maxX[i] == width - 1 || maxY[i] == height - 1;
+	}
+
+	/**
+	 * Add the bounds of the components to the boxes.
+	 *
+	 * @param minimumArea the smallest area (in pixels) of a component to add
+	 * @param maximumArea the largest area (in pixels) of a component to add
+	 * @param excludeEdges whether to leave out the components which touch an edge of the image
+	 */
+	public void collect(BoundingBoxBuffer boxes, int minimumArea, int maximumArea, boolean excludeEdges) {
+		for (int i = 0; i < size; i++) {
+			if (area[i] >= minimumArea && area[i] <= maximumArea && !(excludeEdges && touchesEdge(i))) {
+				boxes.add(getX(i), getY(i), getWidth(i), getHeight(i));
+			}
+		}
+	}
+
+	private void begin(int imageWidth, int imageHeight) {
+		width = imageWidth;
+		height = imageHeight;
+		runs = 0;
+		size = 0;
+		if (rowRuns.length <= height) {
+			rowRuns = new int[height + 1];
+		}
+	}
+
+	/**
+	 * Add the run [start, end) of row y and join it to the runs of the previous row it touches.
+	 * The runs of the previous row are [previous, current) and are in order along the row.
+	 *
+	 * @return the first run of the previous row which may touch the next run of this row
+	 */
+	private int addRun(int y, int start, int end, int previous, int current) {
+		if (runs == runStart.length) {
+			int capacity = runs * 2;
+			runStart = Arrays.copyOf(runStart, capacity);
+			runEnd = Arrays.copyOf(runEnd, capacity);
+			runRow = Arrays.copyOf(runRow, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			runLabel = new int[capacity];
+		}
+		int run = runs++;
+		runStart[run] = start;
+		runEnd[run] = end;
+		runRow[run] = y;
+		parent[run] = run;
+		// diagonal neighbours extend the reach of a run by a pixel either side
+		int reach = (connectivity == Connectivity.EIGHT) ? 1 : 0;
+		int p = previous;
+		while (p < current && runEnd[p] + reach <= start) {
+			p++;
+		}
+		for (int k = p; k < current && runStart[k] < end + reach; k++) {
+			union(run, k);
+		}
+		return p;
+	}
+
+	private int find(int run) {
+		while (parent[run] != run) {
+			parent[run] = parent[parent[run]];
+			run = parent[run];
+		}
+		return run;
+	}
+
+	/**
+	 * Join the sets of the two runs with the earlier run (in raster order) as the root.
+	 */
+	private void union(int a, int b) {
+		int ra = find(a);
+		int rb = find(b);
+		if (ra < rb) {
+			parent[rb] = ra;
+		} else if (rb < ra) {
+			parent[ra] = rb;
+		}
+	}
+
+	/**
+	 * Accumulate the runs into their components.  The root of each set is its first run so the
+	 * roots are met (and numbered) before the other runs of their component.
+	 */
+	private int finish() {
+		rowRuns[height] = runs;
+		ensureComponents(runs);
+		for (int run = 0; run < runs; run++) {
+			int root = find(run);
+			int c;
+			if (root == run) {
+				c = size++;
+				minX[c] = runStart[run];
+				maxX[c] = runEnd[run] - 1;
+				minY[c] = runRow[run];
+				firstX[c] = runStart[run];
+				area[c] = 0;
+			} else {
+				c = runLabel[root];
+				minX[c] = Math.min(minX[c], runStart[run]);
+				maxX[c] = Math.max(maxX[c], runEnd[run] - 1);
+			}
+			maxY[c] = runRow[run];
+			area[c] += runEnd[run] - runStart[run];
+			runLabel[run] = c;
+		}
+		return size;
+	}
+
+	private void ensureComponents(int capacity) {
+		if (capacity > minX.length) {
+			minX = new int[capacity];
+			minY = new int[capacity];
+			maxX = new int[capacity];
+			maxY = new int[capacity];
+			area = new int[capacity];
+			firstX = new int[capacity];
+		}
+	}
+}
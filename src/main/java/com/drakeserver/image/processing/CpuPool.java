@@ -0,0 +1,201 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * The fixed pool of platform threads which runs the CPU bound pixel work of the detection (the
+ * pipeline stages and the particle analysis).  The requests themselves (reading the uploads and the
+ * files on shares) run on virtual threads and only wait here, so a slow upload or share never holds
+ * one of the threads crunching pixels and the pixel work never runs on more threads than there are
+ * cores (<code>processing.cpuThreads</code>, 0 sizing the pool to the cores).  This relies on the
+ * ImageJ filters not starting threads of their own, which {@link DetectionPipeline} turns off.
+ * <p>
+ * The decoding of the images is the exception: it reads the image as it goes (from a share or the
+ * upload) so it runs on the request thread, the number of decodes at once being bounded by the
+ * {@link MemoryAdmission} of their pixels instead.  This holds for the tiles of a tiled detection
+ * too, the bands of tiles being read in order on the request thread while the pool works on the
+ * previous band (see {@link #fork}).  The tasks on the pool are only ever handed pixels, they never
+ * read a source or wait on one.
+ * <p>
+ * The pool is a fork-join pool so the work already on the pool (such as the tiles of a tiled
+ * detection) may split itself into parallel tasks, a task waiting on its parts running them itself
+ * rather than blocking a thread.
+ *
+ */
+@Component
+public class CpuPool {
+
+	static final Logger LOGGER = Logger.getLogger(CpuPool.class.getName());
+
+	private static final CpuPool COMMON = new CpuPool(ForkJoinPool.commonPool(), false);
+
+	private final ForkJoinPool pool;
+	private final boolean owned;
+
+	@Autowired
+	public CpuPool(@Value("${processing.cpuThreads:0}") int threads) {
+		this(new ForkJoinPool((threads > 0) ? threads : Runtime.getRuntime().availableProcessors(), p -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setName("cpu-pool-" + t.getPoolIndex());
+			return t;
+		}, null, false), true);
+		LOGGER.info("The pixel processing runs on " + pool.getParallelism() + " threads");
+	}
+
+	private CpuPool(ForkJoinPool pool, boolean owned) {
+		this.pool = pool;
+		this.owned = owned;
+	}
+
+	/**
+	 * The pool used when the service is not running within the application (such as the tests and
+	 * benchmarks), backed by the common fork-join pool.
+	 */
+	static CpuPool common() {
+		return COMMON;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * The number of threads running tasks.
+	 */
+	public int getActiveCount() {
+		return pool.getActiveThreadCount();
+	}
+
+	/**
+	 * The number of tasks waiting for a thread.
+	 */
+	public long getQueuedCount() {
+		return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+	}
+
+	/**
+	 * Run the task on the pool and wait for its result.  A task called from the pool is run in place.
+	 *
+	 * @throws IOException if the task failed with a checked exception or the wait was interrupted
+	 */
+	public <T> T call(Callable<T> task) throws IOException {
+		if (ForkJoinTask.getPool() == pool) {
+			try {
+				return task.call();
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+		return join(pool.submit(task));
+	}
+
+	/**
+	 * Start the tasks in parallel on the pool without waiting for them, so the caller may carry on
+	 * (such as reading the next of the pixels) while they run.
+	 *
+	 * @return the task giving the results in the order of the tasks (see {@link #join})
+	 */
+	public <T> ForkJoinTask<List<T>> fork(List<? extends Callable<T>> tasks) {
+		return pool.submit(() -> invokeAll(tasks));
+	}
+
+	/**
+	 * Wait for the result of a task submitted to the pool.
+	 *
+	 * @throws IOException if the task failed with a checked exception or the wait was interrupted
+	 */
+	public <T> T join(ForkJoinTask<T> submitted) throws IOException {
+		try {
+			return submitted.get();
+		} catch (InterruptedException ie) {
+			submitted.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the processing", ie);
+		} catch (ExecutionException ee) {
+			// the checked exceptions of the task are wrapped (possibly more than once)
+			throw rethrow((ee.getCause() instanceof RuntimeException re) ? checkedCause(re) : ee.getCause());
+		}
+	}
+
+	/**
+	 * Run the tasks in parallel on the pool and wait for all of their results.
+	 *
+	 * @return the results in the order of the tasks
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+		return call(() -> {
+			List<ForkJoinTask<T>> forks = new ArrayList<>(tasks.size());
+			for (Callable<T> task : tasks) {
+				forks.add(ForkJoinTask.adapt(task));
+			}
+			List<T> results = new ArrayList<>(forks.size());
+			try {
+				ForkJoinTask.invokeAll(forks);
+				for (ForkJoinTask<T> fork : forks) {
+					results.add(fork.join());
+				}
+			} catch (RuntimeException e) {
+				throw rethrow(checkedCause(e));
+			}
+			return results;
+		});
+	}
+
+	private static Throwable checkedCause(RuntimeException e) {
+		for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+			if (!(t instanceof RuntimeException)) {
+				return t;
+			}
+		}
+		return e;
+	}
+
+	private static IOException rethrow(Throwable cause) {
+		if (cause instanceof IOException io) {
+			return io;
+		} else if (cause instanceof RuntimeException re) {
+			throw re;
+		} else if (cause instanceof Error error) {
+			throw error;
+		}
+		return new IOException(cause);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (owned) {
+			pool.shutdownNow();
+		}
+	}
+}
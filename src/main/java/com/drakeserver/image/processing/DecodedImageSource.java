@@ -0,0 +1,95 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.image.BufferedImage;
+
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * An {@link ImageSource} over an image decoded once and shared by several concurrent detections.
+ * The subsampled reads keep every <code>subsampling</code> pixel as the decoders do so a proxy
+ * matches the one read from the encoded image.  The image is owned by the caller and is neither
+ * released nor flushed by the source.
+ *
+ */
+class DecodedImageSource implements ImageSource {
+
+	private final BufferedImage image;
+	private final double resolution;
+
+	DecodedImageSource(BufferedImage image, double resolution) {
+		this.image = image;
+		this.resolution = resolution;
+	}
+
+	@Override
+	public int getWidth() {
+		return image.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return image.getHeight();
+	}
+
+	@Override
+	public double getResolution() {
+		return resolution;
+	}
+
+	@Override
+	public BufferedImage read() {
+		return image;
+	}
+
+	@Override
+	public BufferedImage read(int subsampling) {
+		if (subsampling <= 1) {
+			return image;
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BufferedImage subsampled = new BufferedImage((width + subsampling - 1) / subsampling, (height + subsampling - 1) / subsampling,
+				BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[width];
+		int[] sampled = new int[subsampled.getWidth()];
+		for (int y = 0; y < subsampled.getHeight(); y++) {
+			image.getRGB(0, y * subsampling, width, 1, row, 0, width);
+			for (int x = 0; x < sampled.length; x++) {
+				sampled[x] = row[x * subsampling];
+			}
+			subsampled.setRGB(0, y, sampled.length, 1, sampled, 0, sampled.length);
+		}
+		return subsampled;
+	}
+
+	@Override
+	public BufferedImage readRegion(BoundingBox region) {
+		return image.getSubimage(region.getX(), region.getY(), region.getWidth(), region.getHeight());
+	}
+
+	@Override
+	public void release(BufferedImage released) {
+		if (released != image) {
+			released.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
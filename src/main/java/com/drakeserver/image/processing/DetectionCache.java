@@ -0,0 +1,306 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.drakeserver.image.ImageConstants;
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.CacheStatistics;
+
+/**
+ * A cache of the detected bounding boxes keyed by the identity of the image and the processing
+ * options, so re-processing the same scan with the same options (a page reload, re-opening a folder
+ * or an undo) returns immediately.  A file is identified by its path, size and modification time
+ * while supplied image data is identified by a SHA-256 digest of its bytes.
+ * <p>
+ * The entries are evicted in least recently used order once either the entry count or the
+ * estimated size is exceeded.  When <code>cache.directory</code> is set each entry is also written
+ * to that directory so the results survive a restart; entries missing from memory are read back
+ * from the directory (which is itself limited to <code>cache.diskMaxEntries</code> files).
+ *
+ */
+@Component
+public class DetectionCache {
+
+	static final Logger LOGGER = Logger.getLogger(DetectionCache.class.getName());
+
+	public static final int MAX_ENTRIES_DEFAULT = 1000;
+	public static final long MAX_BYTES_DEFAULT = 16L * 1024 * 1024;
+	public static final int DISK_MAX_ENTRIES_DEFAULT = 10000;
+
+	private static final Set<String> IGNORED_OPTIONS = Set.of(ImageConstants.TILE_PARALLELISM);
+	private static final String SUFFIX = ".boxes";
+	// approximate retained size of an entry and of each of its boxes
+	private static final int ENTRY_OVERHEAD = 96;
+	private static final int BOX_SIZE = 40;
+	private static final int PRUNE_INTERVAL = 100;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final Path directory;
+	private final int diskMaxEntries;
+	private final LinkedHashMap<String, List<BoundingBox>> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long bytes;
+	private long hits;
+	private long diskHits;
+	private long misses;
+	private long evictions;
+	private int writes;
+
+	public DetectionCache(@Value("${cache.maxEntries:" + MAX_ENTRIES_DEFAULT + "}") int maxEntries,
+			@Value("${cache.maxBytes:" + MAX_BYTES_DEFAULT + "}") long maxBytes,
+			@Value("${cache.directory:}") String directory,
+			@Value("${cache.diskMaxEntries:" + DISK_MAX_ENTRIES_DEFAULT + "}") int diskMaxEntries) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.diskMaxEntries = diskMaxEntries;
+		Path dir = null;
+		if (directory != null && !directory.isBlank()) {
+			try {
+				dir = Files.createDirectories(Paths.get(directory));
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to use " + directory + " for the detection cache", e);
+			}
+		}
+		this.directory = dir;
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0 && maxBytes > 0;
+	}
+
+	/**
+	 * The identity of a file from its path, size and modification time.
+	 */
+	public static String fileKey(File file) {
+		return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+	}
+
+	/**
+	 * The identity of image data from the digest of its bytes.
+	 */
+	public static String contentKey(byte[] data) {
+		MessageDigest digest = createDigest();
+		return "sha256:" + HexFormat.of().formatHex(digest.digest(data));
+	}
+
+	/**
+	 * Copy the stream to the file computing the identity of the bytes on the way.
+	 */
+	public static String contentKey(InputStream input, Path copy) throws IOException {
+		MessageDigest digest = createDigest();
+		Files.copy(new DigestInputStream(input, digest), copy, StandardCopyOption.REPLACE_EXISTING);
+		return "sha256:" + HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * The cache key of the image processed with the options (sorted by name).  The options which do
+	 * not change the result (such as the tile parallelism) are not part of the key.
+	 */
+	public static String key(String imageKey, Properties options) {
+		StringBuilder key = new StringBuilder(imageKey);
+		for (String name : new TreeSet<>(options.stringPropertyNames())) {
+			if (IGNORED_OPTIONS.contains(name)) {
+				continue;
+			}
+			key.append('|').append(name).append('=').append(options.getProperty(name));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return a copy of the cached boxes or null if the key is not cached
+	 */
+	public List<BoundingBox> get(String key) {
+		List<BoundingBox> boxes;
+		synchronized (this) {
+			boxes = entries.get(key);
+			if (boxes != null) {
+				hits++;
+				return copy(boxes);
+			}
+		}
+		boxes = readEntry(key);
+		synchronized (this) {
+			if (boxes != null) {
+				diskHits++;
+				store(key, boxes);
+				return copy(boxes);
+			}
+			misses++;
+		}
+		return null;
+	}
+
+	public void put(String key, List<BoundingBox> boxes) {
+		List<BoundingBox> stored = copy(boxes);
+		synchronized (this) {
+			store(key, stored);
+		}
+		writeEntry(key, stored);
+	}
+
+	public synchronized CacheStatistics getStatistics() {
+		return new CacheStatistics(hits, diskHits, misses, evictions, entries.size(), bytes);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	private void store(String key, List<BoundingBox> boxes) {
+		List<BoundingBox> previous = entries.put(key, boxes);
+		if (previous != null) {
+			bytes -= sizeOf(key, previous);
+		}
+		bytes += sizeOf(key, boxes);
+		Iterator<Map.Entry<String, List<BoundingBox>>> it = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+			Map.Entry<String, List<BoundingBox>> eldest = it.next();
+			bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private static long sizeOf(String key, List<BoundingBox> boxes) {
+		return ENTRY_OVERHEAD + 2L * key.length() + (long) BOX_SIZE * boxes.size();
+	}
+
+	private static List<BoundingBox> copy(List<BoundingBox> boxes) {
+		List<BoundingBox> copy = new ArrayList<>(boxes.size());
+		for (BoundingBox b : boxes) {
+			copy.add(new BoundingBox(b.getX(), b.getY(), b.getWidth(), b.getHeight()));
+		}
+		return copy;
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The entry file is named by the digest of the key and holds the key (to guard against a
+	 * collision) followed by a line of <code>x,y,width,height</code> for each box.
+	 */
+	private Path entryPath(String key) {
+		return directory.resolve(HexFormat.of().formatHex(createDigest().digest(key.getBytes(StandardCharsets.UTF_8))) + SUFFIX);
+	}
+
+	private List<BoundingBox> readEntry(String key) {
+		if (directory == null) {
+			return null;
+		}
+		Path path = entryPath(key);
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			if (!key.equals(reader.readLine())) {
+				return null;
+			}
+			List<BoundingBox> boxes = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] values = line.split(",");
+				boxes.add(new BoundingBox(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+						Integer.parseInt(values[2]), Integer.parseInt(values[3])));
+			}
+			return boxes;
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "Unable to read the cached entry " + path, e);
+			return null;
+		}
+	}
+
+	private void writeEntry(String key, List<BoundingBox> boxes) {
+		if (directory == null) {
+			return;
+		}
+		Path path = entryPath(key);
+		try {
+			// written to a temporary file and moved so a partially written entry is never read
+			Path temp = Files.createTempFile(directory, "entry", ".tmp");
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(key);
+				writer.newLine();
+				for (BoundingBox b : boxes) {
+					writer.write(b.getX() + "," + b.getY() + "," + b.getWidth() + "," + b.getHeight());
+					writer.newLine();
+				}
+			}
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to write the cached entry " + path, e);
+			return;
+		}
+		boolean prune;
+		synchronized (this) {
+			prune = (++writes % PRUNE_INTERVAL) == 0;
+		}
+		if (prune) {
+			pruneDirectory();
+		}
+	}
+
+	/**
+	 * Delete the oldest entry files beyond the limit.
+	 */
+	private void pruneDirectory() {
+		try (Stream<Path> files = Files.list(directory)) {
+			List<Path> entryFiles = files.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+					.sorted((a, b) -> Long.compare(b.toFile().lastModified(), a.toFile().lastModified())).toList();
+			for (int i = diskMaxEntries; i < entryFiles.size(); i++) {
+				Files.deleteIfExists(entryFiles.get(i));
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to prune the detection cache", e);
+		}
+	}
+}
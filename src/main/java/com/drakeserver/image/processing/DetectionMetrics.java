@@ -0,0 +1,197 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.drakeserver.image.processing.DetectionPipeline.Stage;
+
+/**
+ * The counters, gauges and timing histograms of the image processing, written in the Prometheus
+ * text exposition format.  The time of each step is recorded by its name: DECODE, WAIT (for memory),
+ * each of the {@link Stage}s of the pipeline, ANALYZE (particle analysis), REFINE and POST_PROCESS.
+ * Recording is lock free so it may be called from any of the processing threads.
+ *
+ */
+public class DetectionMetrics {
+
+	/** The upper bounds (in seconds) of the buckets of the timing histograms */
+	static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0};
+
+	private static final double NANOS_PER_SECOND = 1.0e9;
+
+	private final Map<String, Histogram> stages = new ConcurrentSkipListMap<>();
+	private final Histogram processing = new Histogram();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private final LongAdder boxes = new LongAdder();
+	private final DoubleAdder megapixels = new DoubleAdder();
+	private final AtomicLong inFlight = new AtomicLong();
+	private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+	private record Gauge(String help, LongSupplier value) { }
+
+	/**
+	 * A cumulative histogram of durations over the fixed {@link #BUCKETS}.
+	 */
+	static class Histogram {
+
+		private final LongAdder[] counts = new LongAdder[BUCKETS.length];
+		private final LongAdder count = new LongAdder();
+		private final DoubleAdder sum = new DoubleAdder();
+
+		Histogram() {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			double seconds = nanos / NANOS_PER_SECOND;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				if (seconds <= BUCKETS[i]) {
+					counts[i].increment();
+					break;
+				}
+			}
+			count.increment();
+			sum.add(seconds);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		private void write(StringBuilder out, String name, String labels) {
+			String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += counts[i].sum();
+				out.append(name).append("_bucket").append(prefix).append("le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+			}
+			String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+			out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count.sum()).append('\n');
+			out.append(name).append("_sum").append(suffix).append(' ').append(sum.sum()).append('\n');
+			out.append(name).append("_count").append(suffix).append(' ').append(count.sum()).append('\n');
+		}
+	}
+
+	public void recordStage(String stage, long nanos) {
+		stages.computeIfAbsent(stage, s -> new Histogram()).record(nanos);
+	}
+
+	Histogram getStage(String stage) {
+		return stages.get(stage);
+	}
+
+	/**
+	 * A pipeline listener which records the time of each stage (for the pipelines run without a
+	 * status listener such as those of the tiles).
+	 */
+	public DetectionPipeline.Listener stageTimer() {
+		return new DetectionPipeline.Listener() {
+			@Override
+			public void stageStarted(Stage stage, int iteration) {
+			}
+
+			@Override
+			public void stageCompleted(Stage stage, long nanos) {
+				recordStage(stage.name(), nanos);
+			}
+		};
+	}
+
+	public void requestStarted(int width, int height) {
+		requests.increment();
+		megapixels.add(((double) width * height) / 1.0e6);
+		inFlight.incrementAndGet();
+	}
+
+	public void requestCompleted(long nanos, int boxCount) {
+		inFlight.decrementAndGet();
+		processing.record(nanos);
+		boxes.add(boxCount);
+	}
+
+	public void requestFailed() {
+		inFlight.decrementAndGet();
+		failures.increment();
+	}
+
+	/**
+	 * Count a request which was refused (the image could never fit in memory or the job queue was full).
+	 */
+	public void requestRejected() {
+		rejections.increment();
+	}
+
+	/**
+	 * The number of images being processed.
+	 */
+	public long getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Register a gauge read each time the metrics are written.
+	 */
+	public void gauge(String name, String help, LongSupplier value) {
+		gauges.put(name, new Gauge(help, value));
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text exposition format (version 0.0.4).
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		header(out, "image_requests_total", "counter", "The images submitted for detection");
+		out.append("image_requests_total ").append(requests.sum()).append('\n');
+		header(out, "image_failures_total", "counter", "The detections which failed");
+		out.append("image_failures_total ").append(failures.sum()).append('\n');
+		header(out, "image_rejections_total", "counter", "The requests refused for lack of memory or a full job queue");
+		out.append("image_rejections_total ").append(rejections.sum()).append('\n');
+		header(out, "image_boxes_total", "counter", "The bounding boxes found");
+		out.append("image_boxes_total ").append(boxes.sum()).append('\n');
+		header(out, "image_megapixels_total", "counter", "The megapixels of the images processed");
+		out.append("image_megapixels_total ").append(String.format(Locale.ROOT, "%.3f", megapixels.sum())).append('\n');
+		header(out, "image_requests_in_flight", "gauge", "The images being processed");
+		out.append("image_requests_in_flight ").append(inFlight.get()).append('\n');
+		for (Map.Entry<String, Gauge> gauge : new ConcurrentSkipListMap<>(gauges).entrySet()) {
+			header(out, gauge.getKey(), "gauge", gauge.getValue().help());
+			out.append(gauge.getKey()).append(' ').append(gauge.getValue().value().getAsLong()).append('\n');
+		}
+		header(out, "image_processing_seconds", "histogram", "The time to detect the bounding boxes of an image once admitted");
+		processing.write(out, "image_processing_seconds", "");
+		header(out, "image_stage_seconds", "histogram", "The time taken by each step of the detection");
+		for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+			stage.getValue().write(out, "image_stage_seconds", "stage=\"" + stage.getKey() + "\"");
+		}
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+}
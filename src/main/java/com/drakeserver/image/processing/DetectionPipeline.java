@@ -0,0 +1,478 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.drakeserver.image.ImageConstants;
+
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.plugin.filter.RankFilters;
+
+/**
+ * The image preparation for particle detection as a sequence of typed stages.  Each stage calls the
+ * {@link ImageProcessor} filters directly rather than going through <code>IJ.run</code> which avoids
+ * the command lookup, macro option parsing and the undo snapshots taken by the plugin runners.  The
+ * decoded image is converted to 8-bit luminance on ingest and all of the remaining stages work in
+ * place on that one buffer.
+ * <p>
+ * The stages reproduce the ImageJ commands previously used (Smooth, Enhance Contrast (saturated=0.4),
+ * 8-bit, Despeckle, Remove Outliers (radius=5 threshold=50 which=Bright), Make Binary, Dilate and
+ * Fill Holes) but not in their order: Smooth now follows the conversion to 8-bit rather than
+ * preceding the contrast stretch.  The contrast stretch is applied to each colour channel as part of
+ * the conversion to 8-bit since stretching the luminance after the conversion loses the separation
+ * of coloured stamps whose channels saturate, and the conversion happens on ingest so that every
+ * later stage works on the one 8-bit buffer.  Smoothing that buffer rather than the decoded colour
+ * image filters one channel instead of three; the stretch is then taken from the unsmoothed
+ * histogram, which changes the boxes only slightly (see the detection regression baseline).  The
+ * result is a binary image with the particles at 255 and the background at 0.
+ * <p>
+ * The image is packed into a {@link BinaryMask} once it has been made binary, and the dilations and
+ * the hole filling work on the packed words.  {@link #runToMask} returns the mask itself which the
+ * {@link ComponentLabeller} reads directly.
+ * <p>
+ * The neighbourhood filters (Smooth, Despeckle and Remove Outliers) of a {@link #striped striped}
+ * pipeline run over horizontal bands of the image in parallel with the same result.  Each filter
+ * runs on a single thread (ImageJ's own filter threads are turned off) so the parallelism is only
+ * that of the bands.
+ * <p>
+ * A pipeline is immutable once built and may be shared between threads.
+ *
+ */
+public class DetectionPipeline {
+
+	public enum Stage {
+		ENHANCE_CONTRAST(true),
+		CONVERT_TO_8BIT(false),
+		SMOOTH(true),
+		DESPECKLE(true),
+		REMOVE_OUTLIERS(true),
+		MAKE_BINARY(false),
+		DILATE(true),
+		FILL_HOLES(true);
+
+		private final boolean optional;
+
+		Stage(boolean optional) {
+			this.optional = optional;
+		}
+
+		/**
+		 * Whether the stage may be skipped.  The conversion to 8-bit and the binary threshold are
+		 * required for particle analysis.
+		 */
+		public boolean isOptional() {
+			return optional;
+		}
+	}
+
+	/**
+	 * Notified as each stage of the pipeline is run.  Called on the thread running the pipeline.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param stage the stage about to run
+		 * @param iteration the iteration of the stage (from 1) for repeated stages such as dilation
+		 */
+		void stageStarted(Stage stage, int iteration);
+
+		/**
+		 * @param stage the completed stage (including all of its iterations)
+		 * @param nanos the elapsed time of the stage in nanoseconds
+		 */
+		void stageCompleted(Stage stage, long nanos);
+	}
+
+	public static final double SATURATED_DEFAULT = 0.4;
+	public static final int OUTLIER_RADIUS_DEFAULT = 5;
+	public static final float OUTLIER_THRESHOLD_DEFAULT = 50.0f;
+
+	static final int FOREGROUND = 255;
+	static final int BACKGROUND = 0;
+
+	static {
+		// the rank filters start Prefs.getThreads() threads of their own for every call, which on top
+		// of the bands (or tiles) already filtered in parallel on the cpu pool oversubscribes the
+		// cores, so each filter runs on the thread calling it
+		Prefs.setThreads(1);
+	}
+
+	private final Set<Stage> skipped;
+	private final int dilationCount;
+	private final double saturated;
+	private final int outlierRadius;
+	private final float outlierThreshold;
+	private final StripedFilter stripes;
+
+	public DetectionPipeline(int dilationCount, Set<Stage> skipped) {
+		this(dilationCount, SATURATED_DEFAULT, OUTLIER_RADIUS_DEFAULT, OUTLIER_THRESHOLD_DEFAULT, skipped);
+	}
+
+	public DetectionPipeline(int dilationCount, double saturated, int outlierRadius, float outlierThreshold, Set<Stage> skipped) {
+		EnumSet<Stage> stages = EnumSet.noneOf(Stage.class);
+		for (Stage stage : skipped) {
+			if (!stage.isOptional()) {
+				throw new IllegalArgumentException("The " + stage + " stage can not be skipped");
+			}
+			stages.add(stage);
+		}
+		this.skipped = Collections.unmodifiableSet(stages);
+		this.dilationCount = dilationCount;
+		this.saturated = saturated;
+		this.outlierRadius = outlierRadius;
+		this.outlierThreshold = outlierThreshold;
+		this.stripes = null;
+	}
+
+	private DetectionPipeline(DetectionPipeline pipeline, StripedFilter stripes) {
+		this.skipped = pipeline.skipped;
+		this.dilationCount = pipeline.dilationCount;
+		this.saturated = pipeline.saturated;
+		this.outlierRadius = pipeline.outlierRadius;
+		this.outlierThreshold = pipeline.outlierThreshold;
+		this.stripes = stripes;
+	}
+
+	/**
+	 * A copy of the pipeline which runs the neighbourhood filters over up to <code>bands</code>
+	 * bands of the image in parallel on the pool (see {@link StripedFilter}).
+	 */
+	public DetectionPipeline striped(CpuPool pool, int bands) {
+		return (bands > 1) ? new DetectionPipeline(this, new StripedFilter(pool, bands)) : this;
+	}
+
+	/**
+	 * Build the pipeline from the processing options.  The stages to skip are given as a comma
+	 * separated list of {@link Stage} names in <code>skipStages</code>.
+	 *
+	 * @param options the processing options
+	 * @param dilationCount the number of dilations (which may be scaled from the option for a proxy)
+	 */
+	public static DetectionPipeline fromOptions(Properties options, int dilationCount) {
+		EnumSet<Stage> skipped = EnumSet.noneOf(Stage.class);
+		String skip = options.getProperty(ImageConstants.SKIP_STAGES, "");
+		for (String name : skip.split(",")) {
+			if (!name.isBlank()) {
+				skipped.add(Stage.valueOf(name.trim().toUpperCase()));
+			}
+		}
+		return new DetectionPipeline(dilationCount, skipped);
+	}
+
+	public boolean isEnabled(Stage stage) {
+		return !skipped.contains(stage);
+	}
+
+	public int getDilationCount() {
+		return dilationCount;
+	}
+
+	/**
+	 * Convert the decoded image (which may be a sub-image) to the contrast enhanced 8-bit luminance
+	 * buffer the pipeline works on.  The image itself is not modified and is no longer needed
+	 * afterwards.
+	 */
+	public ByteProcessor ingest(BufferedImage image, Listener listener) {
+		return ingest(image, new byte[image.getWidth() * image.getHeight()], listener);
+	}
+
+	/**
+	 * Convert the image into the given (possibly pooled) buffer of <code>width * height</code> bytes.
+	 */
+	public ByteProcessor ingest(BufferedImage image, byte[] pixels, Listener listener) {
+		int[] table = null;
+		long start = begin(Stage.ENHANCE_CONTRAST, 1, listener);
+		if (start >= 0) {
+			table = contrastTable(LuminanceConverter.histogram(image), (long) image.getWidth() * image.getHeight(), saturated);
+			end(Stage.ENHANCE_CONTRAST, start, listener);
+		}
+		return ingest(image, pixels, table, listener);
+	}
+
+	/**
+	 * Convert a region of a larger image into the buffer with the contrast stretch of the whole
+	 * image (see {@link #contrastTable(int[], long)}), so the region matches the same pixels of the
+	 * image converted at once.
+	 *
+	 * @param table the contrast stretch (or null if the contrast is not enhanced)
+	 */
+	public ByteProcessor ingest(BufferedImage region, byte[] pixels, int[] table, Listener listener) {
+		long start = begin(Stage.CONVERT_TO_8BIT, 1, listener);
+		ByteProcessor bp = LuminanceConverter.toByteProcessor(region, table, pixels);
+		end(Stage.CONVERT_TO_8BIT, start, listener);
+		return bp;
+	}
+
+	/**
+	 * The contrast stretch for the image with the histogram (of {@link LuminanceConverter#histogram}),
+	 * which may have been accumulated over regions of the image.
+	 *
+	 * @return the table or null if the contrast is not enhanced
+	 */
+	public int[] contrastTable(int[] histogram, long pixelCount) {
+		return isEnabled(Stage.ENHANCE_CONTRAST) ? contrastTable(histogram, pixelCount, saturated) : null;
+	}
+
+	/**
+	 * The pixels of context a region needs on each side for the stages up to the dilation to give the
+	 * same result within the region as they do on the whole image: the radius of each of the
+	 * neighbourhood filters (with a margin) and the dilations.
+	 */
+	public int getHalo() {
+		return 1 + 2 + (outlierRadius + 1) + dilationCount + 1;
+	}
+
+	/**
+	 * Run the pipeline on the image.
+	 *
+	 * @param image the decoded image
+	 * @param listener notified of each stage (may be null)
+	 * @return the binary image with the particles in the foreground (255)
+	 */
+	public ByteProcessor run(BufferedImage image, Listener listener) {
+		return run(ingest(image, listener), listener);
+	}
+
+	/**
+	 * Run the stages following the conversion to 8-bit on the image (which is expected to have been
+	 * produced by {@link #ingest}).  The image is modified in place.
+	 *
+	 * @param bp the 8-bit image to prepare
+	 * @param listener notified of each stage (may be null)
+	 * @return the binary image with the particles in the foreground (255)
+	 */
+	public ByteProcessor run(ByteProcessor bp, Listener listener) {
+		runToMask(bp, listener).unpack((byte[]) bp.getPixels());
+		return bp;
+	}
+
+	/**
+	 * Run the stages following the conversion to 8-bit on the image, returning the binary result
+	 * packed into a mask.  The filters modify the image in place and it is no longer needed
+	 * afterwards.
+	 *
+	 * @param bp the 8-bit image to prepare
+	 * @param listener notified of each stage (may be null)
+	 * @return the mask with the particles set
+	 */
+	public BinaryMask runToMask(ByteProcessor bp, Listener listener) {
+		runFilters(bp, listener);
+		BinaryMask mask = toMask(bp, null, listener);
+		long start = begin(Stage.FILL_HOLES, 1, listener);
+		if (start >= 0) {
+			apply(Stage.FILL_HOLES, mask);
+			end(Stage.FILL_HOLES, start, listener);
+		}
+		return mask;
+	}
+
+	/**
+	 * Run the neighbourhood filters (Smooth, Despeckle and Remove Outliers) on the 8-bit image in
+	 * place.
+	 */
+	public void runFilters(ByteProcessor bp, Listener listener) {
+		for (Stage stage : new Stage[] { Stage.SMOOTH, Stage.DESPECKLE, Stage.REMOVE_OUTLIERS }) {
+			long start = begin(stage, 1, listener);
+			if (start >= 0) {
+				apply(stage, bp);
+				end(stage, start, listener);
+			}
+		}
+	}
+
+	/**
+	 * Threshold the filtered image and dilate the result, which is every stage of the pipeline but
+	 * the hole filling.  The image is no longer needed afterwards.
+	 *
+	 * @param threshold the threshold range of the foreground from {@link #threshold(int[])}, or null
+	 *   to compute it from the image
+	 * @return the mask with the particles set
+	 */
+	public BinaryMask toMask(ByteProcessor bp, int[] threshold, Listener listener) {
+		long start = begin(Stage.MAKE_BINARY, 1, listener);
+		makeBinary(bp, (threshold != null) ? threshold : threshold(bp.getHistogram()));
+		end(Stage.MAKE_BINARY, start, listener);
+		BinaryMask mask = BinaryMask.pack(bp);
+		if (isEnabled(Stage.DILATE) && dilationCount > 0) {
+			start = System.nanoTime();
+			for (int i = 0; i < dilationCount; i++) {
+				if (listener != null) {
+					listener.stageStarted(Stage.DILATE, i + 1);
+				}
+				apply(Stage.DILATE, mask);
+			}
+			end(Stage.DILATE, start, listener);
+		}
+		return mask;
+	}
+
+	/**
+	 * Apply one of the stages following the conversion to 8-bit to the image in place, whether or not
+	 * the stage is enabled.  A dilation is a single iteration.
+	 */
+	void apply(Stage stage, ByteProcessor bp) {
+		switch (stage) {
+		case SMOOTH:
+			filter(bp, 1, ByteProcessor::smooth);
+			break;
+		case DESPECKLE:
+			filter(bp, 2, band -> new RankFilters().rank(band, 1, RankFilters.MEDIAN));
+			break;
+		case REMOVE_OUTLIERS:
+			filter(bp, outlierRadius + 1, band -> new RankFilters().rank(band, outlierRadius, RankFilters.OUTLIERS,
+					RankFilters.BRIGHT_OUTLIERS, outlierThreshold));
+			break;
+		case MAKE_BINARY:
+			makeBinary(bp);
+			break;
+		case DILATE:
+		case FILL_HOLES:
+			BinaryMask mask = BinaryMask.pack(bp);
+			apply(stage, mask);
+			mask.unpack((byte[]) bp.getPixels());
+			break;
+		default:
+			throw new IllegalArgumentException("The " + stage + " stage is part of the conversion to 8-bit");
+		}
+	}
+
+	/**
+	 * Apply one of the stages following the binary threshold to the mask in place.  A dilation is a
+	 * single iteration.
+	 */
+	void apply(Stage stage, BinaryMask mask) {
+		switch (stage) {
+		case DILATE:
+			mask.dilate();
+			break;
+		case FILL_HOLES:
+			mask.fillHoles();
+			break;
+		default:
+			throw new IllegalArgumentException("The " + stage + " stage does not work on a binary mask");
+		}
+	}
+
+	/**
+	 * @param halo the rows of context the filter needs above and below (its radius with a margin)
+	 */
+	private void filter(ByteProcessor bp, int halo, Consumer<ByteProcessor> filter) {
+		if (stripes != null) {
+			stripes.apply(bp, halo, filter);
+		} else {
+			filter.accept(bp);
+		}
+	}
+
+	private long begin(Stage stage, int iteration, Listener listener) {
+		if (!isEnabled(stage)) {
+			return -1L;
+		}
+		if (listener != null) {
+			listener.stageStarted(stage, iteration);
+		}
+		return System.nanoTime();
+	}
+
+	private void end(Stage stage, long start, Listener listener) {
+		if (listener != null) {
+			listener.stageCompleted(stage, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Compute the table which stretches the histogram so the given percentage of the pixels are
+	 * saturated (split between the low and high ends).
+	 *
+	 * @return the table or null if the histogram can not be stretched
+	 */
+	static int[] contrastTable(int[] histogram, long pixelCount, double saturated) {
+		int threshold = (int) (pixelCount * saturated / 200.0);
+		int hmin = 0;
+		long count = histogram[0];
+		while (count <= threshold && hmin < histogram.length - 1) {
+			count += histogram[++hmin];
+		}
+		int hmax = histogram.length - 1;
+		count = histogram[hmax];
+		while (count <= threshold && hmax > 0) {
+			count += histogram[--hmax];
+		}
+		if (hmax <= hmin) {
+			return null;
+		}
+		int[] table = new int[256];
+		for (int i = 0; i < 256; i++) {
+			table[i] = Math.min(255, Math.max(0, (int) (256.0 * (i - hmin) / (hmax - hmin))));
+		}
+		return table;
+	}
+
+	/**
+	 * Threshold the image using the default (IsoData) method, with the side of the threshold chosen
+	 * by ImageJ from the image.  Thresholded pixels become the foreground.
+	 */
+	static void makeBinary(ByteProcessor bp) {
+		makeBinary(bp, threshold(bp.getHistogram()));
+	}
+
+	static void makeBinary(ByteProcessor bp, int[] threshold) {
+		int[] lut = new int[256];
+		for (int i = 0; i < 256; i++) {
+			lut[i] = (i >= threshold[0] && i <= threshold[1]) ? FOREGROUND : BACKGROUND;
+		}
+		bp.applyTable(lut);
+	}
+
+	/**
+	 * The range of values ImageJ's default (IsoData) auto threshold selects as the foreground of an
+	 * image with the histogram, which may have been accumulated over regions of the image.  The
+	 * threshold only depends on the histogram so it is computed on a processor which reports it.
+	 *
+	 * @return the lowest and highest values of the foreground
+	 */
+	public static int[] threshold(int[] histogram) {
+		ByteProcessor bp = new HistogramProcessor(histogram);
+		bp.setAutoThreshold(ImageProcessor.ISODATA2, ImageProcessor.NO_LUT_UPDATE);
+		return new int[] { (int) bp.getMinThreshold(), (int) bp.getMaxThreshold() };
+	}
+
+	/**
+	 * A processor whose statistics are those of the histogram rather than of its (single) pixel.
+	 */
+	private static class HistogramProcessor extends ByteProcessor {
+
+		private final int[] histogram;
+
+		HistogramProcessor(int[] histogram) {
+			super(1, 1);
+			this.histogram = histogram;
+		}
+
+		@Override
+		public int[] getHistogram() {
+			return histogram.clone();
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.ExportRegion;
+import com.drakeserver.image.model.ExportResult;
+import com.drakeserver.util.FileUtilities;
+
+/**
+ * Crops the regions of an image and writes each as a file of the export folder.  The image is
+ * decoded once and the regions are encoded in parallel, with the result of each reported as its
+ * file is written.
+ *
+ */
+@Service
+public class ExportService {
+
+	static final Logger LOGGER = Logger.getLogger(ExportService.class.getName());
+
+	public static final String FOLDER = "folder";
+	public static final String REGIONS = "regions";
+	public static final String FORMAT = "format";
+	public static final String QUALITY = "quality";
+	public static final String TIFF_COMPRESSION = "tiffCompression";
+	public static final String OVERWRITE = "overwrite";
+	public static final String PARALLELISM = "parallelism";
+
+	public static final String FORMAT_DEFAULT = "jpg";
+	public static final int QUALITY_DEFAULT = 85;
+	public static final String TIFF_COMPRESSION_DEFAULT = "JPEG";
+
+	@Autowired
+	private ImageProcessorService imageProcessorService;
+
+	public ExportService() {
+	}
+
+	ExportService(ImageProcessorService imageProcessorService) {
+		this.imageProcessorService = imageProcessorService;
+	}
+
+	/**
+	 * The regions of the request, each given by its <code>box</code>, <code>filename</code> and
+	 * optional <code>rotate</code>.
+	 */
+	public List<ExportRegion> getRegions(Map<String, ?> payload) throws IOException {
+		Object regions = payload.get(REGIONS);
+		if (!(regions instanceof List<?> list) || list.isEmpty()) {
+			throw new IOException("No regions were supplied");
+		}
+		List<ExportRegion> exports = new ArrayList<>(list.size());
+		for (Object region : list) {
+			Map<?, ?> r = (Map<?, ?>) region;
+			Map<?, ?> b = (Map<?, ?>) r.get("box");
+			if (b == null || r.get("filename") == null) {
+				throw new IOException("Each region requires a box and a filename");
+			}
+			BoundingBox box = new BoundingBox(intValue(b.get("x")), intValue(b.get("y")), intValue(b.get("width")), intValue(b.get("height")));
+			exports.add(new ExportRegion(box, r.get("filename").toString(), intValue(r.get("rotate"))));
+		}
+		return exports;
+	}
+
+	private static int intValue(Object value) {
+		return (value instanceof Number n) ? n.intValue() : (value != null) ? Integer.parseInt(value.toString()) : 0;
+	}
+
+	/**
+	 * Export the regions of the image (given by the <code>filename</code> or the data URL of the
+	 * <code>file</code>) to the <code>folder</code> in the <code>format</code> (jpg, png or tiff)
+	 * with the <code>quality</code> (1-100) of the lossy encodings, passing the result of each region
+	 * to the consumer (on the calling thread) as its file is written.
+	 *
+	 * @param regions the regions to export
+	 * @param payload the request
+	 * @param results receives the result of each region
+	 */
+	public void export(List<ExportRegion> regions, Map<String, ?> payload, Consumer<ExportResult> results) throws IOException {
+		Object folder = payload.get(FOLDER);
+		if (folder == null) {
+			throw new FileNotFoundException("No folder was supplied");
+		}
+		Path dir = FileUtilities.getFile(folder.toString()).toPath().toAbsolutePath().normalize();
+		Encoder encoder = createEncoder(payload);
+		boolean overwrite = Boolean.parseBoolean(String.valueOf(payload.get(OVERWRITE)));
+		// encoding is CPU bound so no more regions are encoded at once than the CPU pool has threads
+		int parallelism = imageProcessorService.getCpuParallelism();
+		int requested = intValue(payload.get(PARALLELISM));
+		if (requested > 0) {
+			parallelism = Math.min(parallelism, requested);
+		}
+		parallelism = Math.max(1, Math.min(parallelism, regions.size()));
+
+		try (ImageSource source = imageProcessorService.openImage(payload)) {
+			MemoryAdmission admission = imageProcessorService.getMemoryAdmission();
+			long required = MemoryAdmission.estimate(source.getWidth(), source.getHeight(), 1.0);
+			if (!admission.canAdmit(required)) {
+				throw new IOException("The image (" + source.getWidth() + "x" + source.getHeight() + ") requires " + (required >> 20)
+						+ "MB which exceeds the " + (admission.getCapacity() >> 20) + "MB available for processing");
+			}
+			imageProcessorService.acquireMemory(required, null);
+			BufferedImage image = null;
+			ExecutorService workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("export-", 0).factory());
+			Semaphore slots = new Semaphore(parallelism);
+			try {
+				image = source.read();
+				LOGGER.log(Level.INFO, "Exporting {0} regions to {1} with {2} workers", new Object[] {regions.size(), dir, parallelism});
+				BlockingQueue<ExportResult> completed = new LinkedBlockingQueue<>();
+				BufferedImage decoded = image;
+				for (ExportRegion region : regions) {
+					workers.execute(() -> {
+						ExportResult result = new ExportResult(region.getFilename());
+						try {
+							slots.acquire();
+							try {
+								result = export(decoded, region, dir, encoder, overwrite);
+							} finally {
+								slots.release();
+							}
+						} catch (InterruptedException ie) {
+							result.setError("The export was interrupted");
+							Thread.currentThread().interrupt();
+						} catch (Error e) {
+							// such as running out of memory encoding a large region
+							LOGGER.log(Level.SEVERE, "Unable to export " + region.getFilename(), e);
+							result.setError(e.toString());
+							throw e;
+						} finally {
+							// every region reports a result or the results below would wait forever
+							completed.add(result);
+						}
+					});
+				}
+				for (int reported = 0; reported < regions.size(); reported++) {
+					results.accept(completed.take());
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException("The export was interrupted", ie);
+			} finally {
+				workers.shutdownNow();
+				if (image != null) {
+					source.release(image);
+				}
+				admission.release(required);
+			}
+		}
+	}
+
+	Encoder createEncoder(Map<String, ?> payload) throws IOException {
+		Object format = payload.get(FORMAT);
+		Object quality = payload.get(QUALITY);
+		Object compression = payload.get(TIFF_COMPRESSION);
+		return new Encoder((format != null) ? format.toString() : FORMAT_DEFAULT,
+				(quality != null) ? intValue(quality) : QUALITY_DEFAULT,
+				(compression != null) ? compression.toString() : TIFF_COMPRESSION_DEFAULT);
+	}
+
+	private ExportResult export(BufferedImage image, ExportRegion region, Path dir, Encoder encoder, boolean overwrite) {
+		ExportResult result = new ExportResult(region.getFilename());
+		long start = System.nanoTime();
+		try {
+			Path file = dir.resolve(region.getFilename()).normalize();
+			if (!file.startsWith(dir) || file.equals(dir)) {
+				throw new IOException(region.getFilename() + " is outside of the export folder");
+			}
+			if (Files.exists(file) && !overwrite) {
+				result.setExists(true);
+			} else {
+				BufferedImage crop = crop(image, region.getBox(), region.getRotate());
+				Files.createDirectories(file.getParent());
+				// the file is written beside the target and moved into place so a partial file is never seen
+				Path temp = Files.createTempFile(file.getParent(), ".export", ".tmp");
+				try {
+					encoder.write(crop, temp);
+					Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+				result.setSaved(true);
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Unable to export " + region.getFilename(), e);
+			result.setError(e.getMessage());
+		}
+		result.setMillis((System.nanoTime() - start) / 1000000L);
+		return result;
+	}
+
+	/**
+	 * Crop the region of the image (sharing its data) and rotate it clockwise by the multiple of 90
+	 * degrees.
+	 */
+	static BufferedImage crop(BufferedImage image, BoundingBox box, int rotate) throws IOException {
+		int x = Math.max(0, box.getX());
+		int y = Math.max(0, box.getY());
+		int width = Math.min(image.getWidth(), box.getX() + box.getWidth()) - x;
+		int height = Math.min(image.getHeight(), box.getY() + box.getHeight()) - y;
+		if (width <= 0 || height <= 0) {
+			throw new IOException("The region " + box + " is outside of the image");
+		}
+		if (rotate % 90 != 0) {
+			throw new IOException("The rotation " + rotate + " is not a multiple of 90 degrees");
+		}
+		BufferedImage crop = image.getSubimage(x, y, width, height);
+		int quadrants = Math.floorMod(rotate / 90, 4);
+		if (quadrants == 0) {
+			return crop;
+		}
+		boolean swap = (quadrants % 2) == 1;
+		BufferedImage rotated = new BufferedImage(swap ? height : width, swap ? width : height,
+				crop.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		AffineTransform transform = AffineTransform.getQuadrantRotateInstance(quadrants);
+		switch (quadrants) {
+		case 1:
+			transform.preConcatenate(AffineTransform.getTranslateInstance(height, 0));
+			break;
+		case 2:
+			transform.preConcatenate(AffineTransform.getTranslateInstance(width, height));
+			break;
+		default:
+			transform.preConcatenate(AffineTransform.getTranslateInstance(0, width));
+			break;
+		}
+		Graphics2D g = rotated.createGraphics();
+		try {
+			g.drawImage(crop, transform, null);
+		} finally {
+			g.dispose();
+		}
+		return rotated;
+	}
+
+	/**
+	 * Encodes the regions in one format.  Each region is encoded by its own writer so the regions may
+	 * be written concurrently.
+	 */
+	static class Encoder {
+
+		private final String formatName;
+		private final float quality;
+		private final String compression;
+
+		Encoder(String format, int quality, String compression) throws IOException {
+			switch (format.toLowerCase(Locale.ROOT)) {
+			case "jpg":
+			case "jpeg":
+				formatName = "jpeg";
+				break;
+			case "png":
+				formatName = "png";
+				break;
+			case "tif":
+			case "tiff":
+				formatName = "tiff";
+				break;
+			default:
+				throw new IOException("The export format " + format + " is not supported");
+			}
+			this.quality = Math.max(1, Math.min(100, quality)) / 100.0f;
+			this.compression = compression;
+		}
+
+		/**
+		 * Whether the encoding can not hold an alpha channel.
+		 */
+		private boolean isOpaque() {
+			return "jpeg".equals(formatName) || ("tiff".equals(formatName) && compression.toUpperCase(Locale.ROOT).contains("JPEG"));
+		}
+
+		void write(BufferedImage image, Path file) throws IOException {
+			BufferedImage encoded = (isOpaque() && image.getColorModel().hasAlpha()) ? flatten(image) : image;
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+			if (!writers.hasNext()) {
+				throw new IOException("No writer is available for " + formatName);
+			}
+			ImageWriter writer = writers.next();
+			try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+				writer.setOutput(out);
+				ImageWriteParam param = writer.getDefaultWriteParam();
+				if ("jpeg".equals(formatName)) {
+					param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+					param.setCompressionQuality(quality);
+				} else if ("tiff".equals(formatName)) {
+					param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+					param.setCompressionType(compression);
+					if (!param.isCompressionLossless()) {
+						param.setCompressionQuality(quality);
+					}
+				}
+				writer.write(null, new IIOImage(encoded, null, null), param);
+			} finally {
+				writer.dispose();
+			}
+		}
+
+		/**
+		 * Draw the image over a white background.
+		 */
+		private static BufferedImage flatten(BufferedImage image) {
+			BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = opaque.createGraphics();
+			try {
+				g.setColor(Color.WHITE);
+				g.fillRect(0, 0, image.getWidth(), image.getHeight());
+				g.drawImage(image, 0, 0, null);
+			} finally {
+				g.dispose();
+			}
+			return opaque;
+		}
+	}
+}
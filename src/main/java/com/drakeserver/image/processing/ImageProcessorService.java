@@ -17,42 +17,49 @@ package com.drakeserver.image.processing;
 
 import com.drakeserver.image.ImageConstants;
 import com.drakeserver.image.model.BoundingBox;
-import com.drakeserver.image.model.BoundingBoxesComparator;
+import com.drakeserver.image.model.BoundingBoxBuffer;
+import com.drakeserver.image.model.ProgressEvent;
+import com.drakeserver.image.model.SweepResult;
+import com.drakeserver.image.processing.ComponentLabeller.Connectivity;
+import com.drakeserver.image.processing.DetectionPipeline.Stage;
 import com.drakeserver.messaging.MessageConstants;
-import com.drakeserver.messaging.MessageHelper;
+import com.drakeserver.messaging.ProgressPublisher;
 import com.drakeserver.util.FileUtilities;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.measure.Measurements;
 import ij.measure.ResultsTable;
-import ij.plugin.filter.ParticleAnalyzer;
-import lombok.NoArgsConstructor;
+import ij.process.ByteProcessor;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
-
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /**
  */
 @Service
-@NoArgsConstructor
 public class ImageProcessorService {
 
     static final Logger LOGGER = Logger.getLogger(ImageProcessorService.class.getName());
@@ -63,158 +70,1026 @@ public class ImageProcessorService {
     public static final int MINIMUM_AREA_DEFAULT = 10000;
     public static final float MAXIMUM_AREA_PERCENTAGE = 0.85f;
     public static final float MINIMUM_OVERLAP_PERCENTAGE = 0.25f;
+    public static final int TILE_SIZE_DEFAULT = 0;
+    public static final int TILE_OVERLAP_DEFAULT = 0;
+    // the contrast stretch of a tiled image is taken from a subsampled read of about this many pixels
+    public static final int CONTRAST_SAMPLE_PIXELS = 4 * 1024 * 1024;
 
     private static final String ENCODING_PREFIX = "base64,";
     private static final String FILENAME = "filename";
     private static final String FILE = "file";
+    private static final String OPTIONS = "options";
+    private static final String VARIANTS = "variants";
     
     @Autowired
-    private MessageHelper messageHelper;
+    private ProgressPublisher progressPublisher;
+
+    private MemoryAdmission memoryAdmission = MemoryAdmission.forHeap(MemoryAdmission.FRACTION_DEFAULT);
+
+    private final BufferPool bufferPool = BufferPool.forHeap();
+
+    private final DetectionMetrics metrics = new DetectionMetrics();
+
+    @Autowired(required = false)
+    private DetectionCache detectionCache;
+
+    @Autowired(required = false)
+    private MaskCache maskCache;
 
-    private void sendMessage(String msg) {
-   		messageHelper.dispatchMessage(MessageConstants.STATUS_MESSAGE, msg);
+    @Autowired(required = false)
+    private CpuPool cpuPool = CpuPool.common();
+
+    public ImageProcessorService() {
+    	metrics.gauge("image_memory_in_use_bytes", "The memory reserved by the images being processed",
+    			() -> memoryAdmission.getCapacity() - memoryAdmission.getAvailable());
+    	metrics.gauge("image_buffer_pool_bytes", "The pixel buffers held for reuse", bufferPool::getPooledBytes);
+    	metrics.gauge("image_cpu_pool_threads", "The threads of the pool running the pixel work", () -> cpuPool.getParallelism());
+    	metrics.gauge("image_cpu_pool_active", "The threads of the pool running pixel work", () -> cpuPool.getActiveCount());
+    	metrics.gauge("image_cpu_pool_queued", "The pixel work waiting for a thread of the pool", () -> cpuPool.getQueuedCount());
     }
-    
-    private BufferedImage getImage(Map<String, ?> opts) throws IOException {
-    	BufferedImage image = null;
-    	if (opts.containsKey(FILENAME)) {
-    		String filename = ((String) opts.get(FILENAME));
-    		File f = FileUtilities.getFile(filename);
-    		image = ImageIO.read(f);
-    	} else if (opts.containsKey(FILE)) {
-    		String data = (String) opts.get(FILE);
-            int contentStartIndex = data.indexOf(ENCODING_PREFIX) + ENCODING_PREFIX.length();
-            byte[] imageData = Base64.getMimeDecoder().decode(data.substring(contentStartIndex));
-            image = ImageIO.read(new ByteArrayInputStream(imageData)); 
-          	imageData = null;
-    	}
-    	return image;
+
+    /**
+     * @param fraction the fraction of the maximum heap shared by the images being processed
+     */
+    @Value("${memory.admissionFraction:" + MemoryAdmission.FRACTION_DEFAULT + "}")
+    public void setAdmissionFraction(double fraction) {
+    	memoryAdmission = MemoryAdmission.forHeap(fraction);
     }
-    
+
+    /**
+     * The pool of the pixel buffers shared by the requests.
+     */
+    public BufferPool getBufferPool() {
+    	return bufferPool;
+    }
+
+    /**
+     * The number of threads running the pixel work of the detection.
+     */
+    public int getCpuParallelism() {
+    	return cpuPool.getParallelism();
+    }
+
+    /**
+     * The metrics of the processing.
+     */
+    public DetectionMetrics getMetrics() {
+    	return metrics;
+    }
+
+    /**
+     * The largest image accepted as an upload.  An encoded image is rarely larger than its pixels and
+     * the working set of the detection is several times the pixels, so an upload larger than the
+     * memory shared by the images being processed could never be admitted.
+     */
+    public long getMaxUploadBytes() {
+    	return memoryAdmission.getCapacity();
+    }
+
+    MemoryAdmission getMemoryAdmission() {
+    	return memoryAdmission;
+    }
+
+    /**
+     * Acquire the memory from the budget, waiting (and saying so) until it is available.  The
+     * memory must be released to {@link #getMemoryAdmission()} once the image is processed.
+     */
+    void acquireMemory(long required, String statusDestination) throws IOException {
+    	acquireMemory(required, new StatusListener(statusDestination));
+    }
+
+    private void acquireMemory(long required, StatusListener listener) throws IOException {
+    	if (!memoryAdmission.tryAcquire(required)) {
+    		listener.progress("WAITING", 0, 0.0, "Waiting for Memory...");
+    		long start = System.nanoTime();
+    		try {
+    			memoryAdmission.acquire(required);
+    		} catch (InterruptedException ie) {
+    			Thread.currentThread().interrupt();
+    			throw new IOException("Interrupted waiting for memory", ie);
+    		}
+    		metrics.recordStage("WAIT", System.nanoTime() - start);
+    	}
+    }
+
+    /**
+     * Decode the base64 image data of a data URL.  The decoding is CPU bound (the data already being
+     * in memory) so it runs on the {@link CpuPool} rather than the request thread.
+     */
+    byte[] decodeImageData(String data) throws IOException {
+    	return cpuPool.call(() -> {
+    		int contentStartIndex = data.indexOf(ENCODING_PREFIX) + ENCODING_PREFIX.length();
+    		return Base64.getMimeDecoder().decode(data.substring(contentStartIndex));
+    	});
+    }
+
     public List<BoundingBox> process(Map<String, ?> opts) throws IOException {
+    	return process(opts, null);
+    }
+
+    /**
+     * Process the image in the request payload, sending the status messages to the given destination
+     * as well as to {@link MessageConstants#STATUS_MESSAGE}.  Both a file and the encoded image data
+     * are decoded on demand so only the pixels needed for the selected detection mode are read.
+     *
+     * @param opts the request payload
+     * @param statusDestination the additional destination for the status messages (may be null)
+     */
+    public List<BoundingBox> process(Map<String, ?> opts, String statusDestination) throws IOException {
 		Properties options = new Properties();
-		options.putAll((Map<?,?>) opts.get("options"));
-		
+		addOptions(options, (Map<?,?>) opts.get(OPTIONS));
+		if (opts.containsKey(FILENAME)) {
+			File f = FileUtilities.getFile((String) opts.get(FILENAME));
+			return processCached(() -> DetectionCache.fileKey(f), options,
+					() -> ImageReaderSource.open(f).setBufferPool(bufferPool), statusDestination);
+		} else if (opts.containsKey(FILE)) {
+			byte[] imageData = decodeImageData((String) opts.get(FILE));
+			return processCached(() -> DetectionCache.contentKey(imageData), options,
+					() -> ImageReaderSource.open(imageData).setBufferPool(bufferPool), statusDestination);
+		}
+		throw new IOException("No image was supplied");
+    }
+
+    /**
+     * Process an image supplied as a raw binary stream (for example the body of an
+     * <code>application/octet-stream</code> request or a multipart file part).  The stream
+     * is decoded on demand in the same manner as a file.
+     *
+     * @param input the encoded image bytes
+     * @param opts the processing options keyed by the {@link ImageConstants} names (may be null)
+     */
+    public List<BoundingBox> process(InputStream input, Map<?, ?> opts) throws IOException {
+		Properties options = new Properties();
+		addOptions(options, opts);
+		if (!isCaching()) {
+			try (ImageSource source = ImageReaderSource.open(input).setBufferPool(bufferPool)) {
+				return process(source, options);
+			}
+		}
+		// the stream is spooled to disk (as the ImageIO cache would) while the digest of the image is computed
+		Path spool = Files.createTempFile("image", ".spool");
+		try {
+			String imageKey = DetectionCache.contentKey(input, spool);
+			return processCached(() -> imageKey, options, () -> ImageReaderSource.open(spool.toFile()).setBufferPool(bufferPool), null);
+		} finally {
+			Files.deleteIfExists(spool);
+		}
+    }
+
+    /**
+     * Add the options of a request.  The values of a JSON payload may be numbers or booleans, which
+     * {@link Properties#getProperty} would ignore, so each value is added as its string.
+     *
+     * @param values the options of the request (may be null)
+     */
+    static void addOptions(Properties options, Map<?, ?> values) {
+    	if (values == null) {
+    		return;
+    	}
+    	for (Map.Entry<?, ?> entry : values.entrySet()) {
+    		if (entry.getKey() != null && entry.getValue() != null) {
+    			options.setProperty(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+    		}
+    	}
+    }
+
+    private interface ImageKey {
+    	String get() throws IOException;
+    }
+
+    private interface ImageOpener {
+    	ImageSource open() throws IOException;
+    }
+
+    private boolean isCaching() {
+    	return (detectionCache != null && detectionCache.isEnabled()) || (maskCache != null && maskCache.isEnabled());
+    }
+
+    /**
+     * Return the cached boxes for the image and options, or process the image and cache the result.
+     */
+    private List<BoundingBox> processCached(ImageKey imageKey, Properties options, ImageOpener opener, String statusDestination) throws IOException {
+    	String identity = isCaching() ? imageKey.get() : null;
+    	String key = (detectionCache != null && detectionCache.isEnabled()) ? DetectionCache.key(identity, options) : null;
+    	if (key != null) {
+    		List<BoundingBox> cached = detectionCache.get(key);
+    		if (cached != null) {
+    			LOGGER.log(Level.INFO, "Returning {0} cached bounding boxes", cached.size());
+    			return cached;
+    		}
+    	}
+    	List<BoundingBox> boxes;
+    	try (ImageSource source = opener.open()) {
+    		boxes = process(source, options, statusDestination, identity);
+    	}
+    	if (key != null) {
+    		detectionCache.put(key, boxes);
+    	}
+    	return boxes;
+    }
+
+    /**
+     * @return the cached boxes of the file processed with the options or null if not cached
+     */
+    List<BoundingBox> getCached(File file, Properties options) {
+    	if (detectionCache == null || !detectionCache.isEnabled()) {
+    		return null;
+    	}
+    	return detectionCache.get(DetectionCache.key(DetectionCache.fileKey(file), options));
+    }
+
+    void putCached(File file, Properties options, List<BoundingBox> boxes) {
+    	if (detectionCache != null && detectionCache.isEnabled()) {
+    		detectionCache.put(DetectionCache.key(DetectionCache.fileKey(file), options), boxes);
+    	}
+    }
+
+    protected List<BoundingBox> process(BufferedImage image, Properties options) throws IOException {
+    	if (image == null) {
+    		throw new IOException("Unable to decode the supplied image data");
+    	}
+    	try (ImageSource source = new BufferedImageSource(image)) {
+    		return process(source, options);
+    	}
+    }
+
+    protected List<BoundingBox> process(ImageSource source, Properties options) throws IOException {
+    	return process(source, options, null);
+    }
+
+    /**
+     * Process the image once its estimated working set fits within the memory budget.  An image
+     * which could never fit is processed as a proxy at a scale which does fit (with the edges
+     * refined at full resolution), or rejected if even the smallest proxy would not fit.
+     */
+    protected List<BoundingBox> process(ImageSource source, Properties options, String statusDestination) throws IOException {
+    	return process(source, options, statusDestination, null);
+    }
+
+    /**
+     * @param imageKey the identity of the image used to find its cached binary mask (may be null)
+     */
+    protected List<BoundingBox> process(ImageSource source, Properties options, String statusDestination, String imageKey) throws IOException {
+    	StatusListener listener = new StatusListener(statusDestination);
+    	int width = source.getWidth();
+    	int height = source.getHeight();
+    	double scale = ProxyDetection.getScale(options, source.getResolution());
+    	String maskKey = maskKey(imageKey, scale, options);
+    	BinaryMask mask = getMask(maskKey, options);
+    	// only the unpacked mask is needed when it is cached
+    	long required = (mask != null) ? (long) mask.getWidth() * mask.getHeight() : estimate(width, height, scale, options);
+    	if (!memoryAdmission.canAdmit(required)) {
+    		double fallback = memoryAdmission.getFallbackScale(width, height);
+    		if (fallback <= 0.0) {
+    			metrics.requestRejected();
+    			throw new IOException("The image (" + width + "x" + height + ") requires " + (required >> 20)
+    					+ "MB which exceeds the " + (memoryAdmission.getCapacity() >> 20) + "MB available for processing");
+    		}
+    		LOGGER.log(Level.WARNING, "The image ({0}x{1}) requires {2}MB which exceeds the {3}MB available, detecting on a proxy at scale {4}",
+    				new Object[] {width, height, required >> 20, memoryAdmission.getCapacity() >> 20, fallback});
+    		Properties reduced = new Properties();
+    		reduced.putAll(options);
+    		reduced.setProperty(ImageConstants.PROXY_SCALE, Double.toString(fallback));
+    		reduced.setProperty(ImageConstants.PROXY_REFINE, Boolean.toString(true));
+    		options = reduced;
+    		maskKey = maskKey(imageKey, fallback, options);
+    		mask = getMask(maskKey, options);
+    		required = (mask != null) ? (long) mask.getWidth() * mask.getHeight() : MemoryAdmission.estimate(width, height, fallback);
+    	}
+    	acquireMemory(required, listener);
+    	metrics.requestStarted(width, height);
+    	long start = System.nanoTime();
+    	try {
+    		String key = maskKey;
+    		List<BoundingBox> boxes = detectBoundingBoxes(source, options, listener, (key != null) ? m -> maskCache.put(key, m) : null, mask);
+    		metrics.requestCompleted(System.nanoTime() - start, boxes.size());
+    		return boxes;
+    	} catch (IOException | RuntimeException e) {
+    		metrics.requestFailed();
+    		throw e;
+    	} finally {
+    		memoryAdmission.release(required);
+    	}
+    }
+
+    /**
+     * Detect the bounding boxes of one image (supplied as for {@link #process(Map)}) with each of the
+     * option sets listed in <code>variants</code>, each applied over the <code>options</code> of the
+     * payload.  The image is decoded once and the variants with the same mask options (see
+     * {@link MaskCache#key}) share one run of the detection pipeline, the remaining variants of each
+     * group going straight to particle analysis.  The groups are run in parallel as far as the
+     * memory budget allows.
+     *
+     * @return the result of each variant (in the order of the variants)
+     */
+    @SuppressWarnings("unchecked")
+    public List<SweepResult> sweep(Map<String, ?> payload) throws IOException {
+		Properties base = new Properties();
+		addOptions(base, (Map<?,?>) payload.get(OPTIONS));
+		List<?> variants = (List<?>) payload.get(VARIANTS);
+		if (variants == null || variants.isEmpty()) {
+			throw new IOException("No variants were supplied");
+		}
+		List<Properties> optionSets = new ArrayList<>(variants.size());
+		List<SweepResult> results = new ArrayList<>(variants.size());
+		for (Object variant : variants) {
+			Properties options = new Properties();
+			options.putAll(base);
+			addOptions(options, (Map<?,?>) variant);
+			optionSets.add(options);
+			results.add(new SweepResult(new LinkedHashMap<>((Map<String, Object>) variant)));
+		}
+		try (ImageSource source = openImage(payload)) {
+			sweep(source, optionSets, results);
+		}
+		return results;
+    }
+
+    /**
+     * Open the image of the payload given either as a <code>filename</code> or the data URL of the
+     * <code>file</code>.
+     */
+    ImageSource openImage(Map<String, ?> payload) throws IOException {
+		if (payload.containsKey(FILENAME)) {
+			return ImageReaderSource.open(FileUtilities.getFile((String) payload.get(FILENAME))).setBufferPool(bufferPool);
+		} else if (payload.containsKey(FILE)) {
+			return ImageReaderSource.open(decodeImageData((String) payload.get(FILE))).setBufferPool(bufferPool);
+		}
+		throw new IOException("No image was supplied");
+    }
+
+    /**
+     * Run the sweep of the option sets on the image, setting the boxes or error of each result.
+     */
+    void sweep(ImageSource source, List<Properties> optionSets, List<SweepResult> results) throws IOException {
+    	int width = source.getWidth();
+    	int height = source.getHeight();
+    	// the variants are grouped by the options which produce the mask (tiled variants run alone)
+    	Map<String, List<Integer>> groups = new LinkedHashMap<>();
+    	List<Long> workingSets = new ArrayList<>();
+    	long decodedBytes = MemoryAdmission.estimateDecoded(width, height);
+    	for (int i = 0; i < optionSets.size(); i++) {
+    		Properties options = optionSets.get(i);
+    		try {
+    			double scale = ProxyDetection.getScale(options, source.getResolution());
+    			int tileSize = Integer.valueOf(options.getProperty(ImageConstants.TILE_SIZE, Integer.toString(TILE_SIZE_DEFAULT)));
+    			boolean tiled = isTiled(tileSize, (int) Math.ceil(width * scale), (int) Math.ceil(height * scale));
+    			String key = tiled ? "tiled/" + i : MaskCache.key("", scale, options);
+    			if (!groups.containsKey(key)) {
+    				// a full resolution group works on the shared image rather than decoding its own
+    				long workingSet = estimate(width, height, scale, options);
+    				workingSets.add((scale < 1.0 || tiled) ? workingSet : Math.max(0L, workingSet - decodedBytes));
+    			}
+    			groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+    		} catch (NumberFormatException nfe) {
+    			results.get(i).setError("Invalid option: " + nfe.getMessage());
+    		}
+    	}
+    	if (groups.isEmpty()) {
+    		return;
+    	}
+    	// the image is decoded once and any of the groups may be in process together, so the largest are reserved
+    	workingSets.sort(Collections.reverseOrder());
+    	int parallelism = Math.min(groups.size(), cpuPool.getParallelism());
+    	long required = decodedBytes + workingSets.subList(0, parallelism).stream().mapToLong(Long::longValue).sum();
+    	while (parallelism > 1 && !memoryAdmission.canAdmit(required)) {
+    		required -= workingSets.get(--parallelism);
+    	}
+    	if (!memoryAdmission.canAdmit(required)) {
+    		throw new IOException("The image (" + width + "x" + height + ") requires " + (required >> 20)
+    				+ "MB which exceeds the " + (memoryAdmission.getCapacity() >> 20) + "MB available for processing");
+    	}
+    	acquireMemory(required, new StatusListener(null));
+    	LOGGER.log(Level.INFO, "Sweeping {0} variants as {1} groups with a parallelism of {2}",
+    			new Object[] {optionSets.size(), groups.size(), parallelism});
+    	BufferedImage image = null;
+    	// the variants wait on virtual threads for one of the slots rather than holding a thread of their own
+    	Semaphore slots = new Semaphore(parallelism);
+    	try (ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sweep-", 0).factory())) {
+    		image = source.read();
+    		ImageSource decoded = new DecodedImageSource(image, source.getResolution());
+    		List<CompletableFuture<?>> variants = new ArrayList<>();
+    		for (List<Integer> group : groups.values()) {
+    			// the first variant prepares the mask which the others then analyze
+    			int first = group.get(0);
+    			BinaryMask[] mask = new BinaryMask[1];
+    			CompletableFuture<Void> prepared = CompletableFuture.runAsync(() ->
+    					runVariant(slots, decoded, optionSets.get(first), results.get(first), m -> mask[0] = m, null), executor);
+    			variants.add(prepared);
+    			for (int i : group.subList(1, group.size())) {
+    				variants.add(prepared.thenRunAsync(() -> runVariant(slots, decoded, optionSets.get(i), results.get(i), null, mask[0]), executor));
+    			}
+    		}
+    		CompletableFuture.allOf(variants.toArray(new CompletableFuture<?>[0])).join();
+    	} finally {
+    		if (image != null) {
+    			source.release(image);
+    		}
+    		memoryAdmission.release(required);
+    	}
+    }
+
+    private void runVariant(Semaphore slots, ImageSource source, Properties options, SweepResult result,
+    		Consumer<BinaryMask> maskSink, BinaryMask mask) {
+    	try {
+    		slots.acquire();
+    	} catch (InterruptedException ie) {
+    		Thread.currentThread().interrupt();
+    		result.setError("The sweep was interrupted");
+    		return;
+    	}
+    	long start = System.nanoTime();
+    	try {
+    		result.setBoxes(detectBoundingBoxes(source, options, new StatusListener(null), maskSink, mask));
+    		result.setSharedMask(mask != null);
+    	} catch (IOException | RuntimeException e) {
+    		LOGGER.log(Level.WARNING, "Sweep variant " + result.getOptions() + " failed", e);
+    		result.setError(e.getMessage());
+    	} finally {
+    		slots.release();
+    	}
+    	result.setProcessMillis((System.nanoTime() - start) / 1000000L);
+    }
+
+    private String maskKey(String imageKey, double scale, Properties options) {
+    	return (imageKey != null && maskCache != null && maskCache.isEnabled()) ? MaskCache.key(imageKey, scale, options) : null;
+    }
+
+    /**
+     * @return the cached mask or null if it is not cached (or the options detect the image as tiles)
+     */
+    private BinaryMask getMask(String maskKey, Properties options) {
+    	if (maskKey == null) {
+    		return null;
+    	}
+    	BinaryMask mask = maskCache.get(maskKey);
+    	int tileSize = Integer.valueOf(options.getProperty(ImageConstants.TILE_SIZE, Integer.toString(TILE_SIZE_DEFAULT)));
+    	return (mask != null && !isTiled(tileSize, mask.getWidth(), mask.getHeight())) ? mask : null;
+    }
+
+    private static boolean isTiled(int tileSize, int width, int height) {
+    	return tileSize > 0 && (width > tileSize || height > tileSize);
+    }
+
+    /**
+     * The number of tiles in process at once, which is at most the parallelism of the cpu pool.
+     */
+    private int getTileParallelism(Properties options) {
+    	int parallelism = Integer.valueOf(options.getProperty(ImageConstants.TILE_PARALLELISM, Integer.toString(cpuPool.getParallelism())));
+    	return Math.max(1, Math.min(parallelism, cpuPool.getParallelism()));
+    }
+
+    /**
+     * Estimate the working set of detecting the image with the options, which for an image detected
+     * as tiles at full resolution is that of the tiles in process rather than the whole image.
+     */
+    private long estimate(int width, int height, double scale, Properties options) {
+    	int tileSize = Integer.valueOf(options.getProperty(ImageConstants.TILE_SIZE, Integer.toString(TILE_SIZE_DEFAULT)));
+    	if (scale < 1.0 || !isTiled(tileSize, width, height)) {
+    		return MemoryAdmission.estimate(width, height, scale);
+    	}
+    	int dilationCount = Integer.valueOf(options.getProperty(ImageConstants.DILATION_COUNT, Integer.toString(DILATION_COUNT)));
+    	int overlap = Integer.valueOf(options.getProperty(ImageConstants.TILE_OVERLAP, Integer.toString(TILE_OVERLAP_DEFAULT)));
+    	int halo = Math.max(overlap, DetectionPipeline.fromOptions(options, dilationCount).getHalo());
+    	return MemoryAdmission.estimateTiled(width, height, tileSize, halo, getTileParallelism(options));
+    }
+
+    /**
+     * Detect the bounding boxes of the image.  When the binary mask of the image is cached (only the
+     * padding, minimum size or overlap options having changed) the pipeline is skipped and the
+     * particles are found directly from the mask, otherwise the mask is cached once prepared.
+     *
+     * @param listener receives the progress of the detection
+     * @param maskSink receives the prepared mask to cache (may be null)
+     * @param mask the cached mask (may be null)
+     */
+    private List<BoundingBox> detectBoundingBoxes(ImageSource source, Properties options, StatusListener listener,
+    		Consumer<BinaryMask> maskSink, BinaryMask mask) throws IOException {
+
         int image_padding = Integer.valueOf(options.getProperty(ImageConstants.BOX_PADDING, Integer.toString(PADDING_DEFAULT)));
         int minimum_size = Integer.valueOf(options.getProperty(ImageConstants.MIN_BOUNDING_AREA, Integer.toString(MINIMUM_AREA_DEFAULT)));
         float min_percentage = Float.valueOf(options.getProperty(ImageConstants.MIN_INTERCEPTING_AREA, Float.toString(MINIMUM_OVERLAP_PERCENTAGE)));
         int dilationCount = Integer.valueOf(options.getProperty(ImageConstants.DILATION_COUNT, Integer.toString(DILATION_COUNT)));
+        int tileSize = Integer.valueOf(options.getProperty(ImageConstants.TILE_SIZE, Integer.toString(TILE_SIZE_DEFAULT)));
+
+        LOGGER.log(Level.INFO, "Padding: {0}, Minimum Size: {1}, Minimum Intercepting Area: {2}, Dilation Count: {3}, Tile Size: {4}",
+                   new Object[] {image_padding, minimum_size, min_percentage, dilationCount, tileSize});
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double scale = ProxyDetection.getScale(options, source.getResolution());
+        int detectionMinimum = minimum_size;
+        int detectionDilation = dilationCount;
+        BufferedImage decoded = null;
+        if (mask != null) {
+        	listener.progress("MASK", 0, StatusListener.fraction(1, 0.0), "Using Cached Binary Mask...");
+        	if (scale < 1.0) {
+        		scale = (double) mask.getWidth() / width;
+        	}
+        } else if (scale < 1.0) {
+        	listener.progress("PROXY", 0, StatusListener.fraction(1, 0.0), "Creating Detection Proxy...");
+        	long start = System.nanoTime();
+        	decoded = ProxyDetection.readProxy(source, scale);
+        	metrics.recordStage("DECODE", System.nanoTime() - start);
+        	scale = (double) decoded.getWidth() / width;
+        	LOGGER.log(Level.INFO, "Detecting on a {0}x{1} proxy (scale {2})",
+        			new Object[] {decoded.getWidth(), decoded.getHeight(), scale});
+        } else if (!isTiled(tileSize, width, height)) {
+        	// the decode stays on the request thread as it reads the image as it goes (from a share or
+        	// the upload) and the decodes running at once are already bounded by the memory admission
+        	listener.progress("DECODE", 0, StatusListener.fraction(1, 0.0), null);
+        	long start = System.nanoTime();
+        	decoded = source.read();
+        	metrics.recordStage("DECODE", System.nanoTime() - start);
+        }
+        if (scale < 1.0) {
+        	detectionMinimum = (int) Math.round(minimum_size * scale * scale);
+        	detectionDilation = (dilationCount > 0) ? Math.max(1, (int) Math.round(dilationCount * scale)) : 0;
+        }
+        listener.setDilationCount(detectionDilation);
+
+        BoundingBoxBuffer boxes;
+        int detectionWidth = (decoded != null) ? decoded.getWidth() : width;
+        int detectionHeight = (decoded != null) ? decoded.getHeight() : height;
+        if (mask == null && isTiled(tileSize, detectionWidth, detectionHeight)) {
+        	// a tiled image is read a tile at a time (from the proxy when detecting on one)
+        	ImageSource tiles = (decoded != null) ? new DecodedImageSource(decoded, source.getResolution()) : source;
+        	int overlap = Integer.valueOf(options.getProperty(ImageConstants.TILE_OVERLAP, Integer.toString(TILE_OVERLAP_DEFAULT)));
+        	try {
+        		boxes = detectTiled(tiles, DetectionPipeline.fromOptions(options, detectionDilation), listener, detectionMinimum,
+        				tileSize, overlap, getTileParallelism(options));
+        	} finally {
+        		if (decoded != null) {
+        			source.release(decoded);
+        		}
+        	}
+        } else {
+        	// the pixel work runs on the cpu pool while the reads of the source stay on the request thread
+        	BufferedImage image = decoded;
+        	int minimum = detectionMinimum;
+        	int dilation = detectionDilation;
+        	boxes = cpuPool.call(() -> findBoundingBoxes(source, image, options, listener, maskSink, mask, minimum, dilation));
+        }
+
+        if (scale < 1.0) {
+        	ProxyDetection.mapToSource(boxes, scale, width, height);
+        	if (Boolean.parseBoolean(options.getProperty(ImageConstants.PROXY_REFINE, Boolean.toString(false)))) {
+        		listener.progress("REFINE", 0, StatusListener.fraction(StatusListener.ANALYZE_STEP + 1, 0.0), "Refining Bounding Boxes...");
+        		long start = System.nanoTime();
+        		ProxyDetection.refine(source, boxes, scale);
+        		metrics.recordStage("REFINE", System.nanoTime() - start);
+        	}
+        }
+        // the padding is applied to each of the particles (constrained to the image) and only those
+        // which satisfy the minimum size are kept
+        boxes.pad(image_padding, width, height);
+        boxes.retainLargerThan((int) Math.sqrt(minimum_size));
+
+        //  logger.log(Level.INFO, "createBoundingBoxes() - memory after completion of bounding box creation: {0}MB", UIHelper.getUsedMemory());
+        LOGGER.log(Level.INFO, "Number of rectangles found before post-processing: {0}", new Object[]{boxes.size()});
+        listener.progress("POST_PROCESS", 0, StatusListener.fraction(StatusListener.ANALYZE_STEP + 2, 0.0), "Post-Processing Image...");
+        long start = System.nanoTime();
+        postProcessBoundingBoxes(boxes, min_percentage);
+        metrics.recordStage("POST_PROCESS", System.nanoTime() - start);
+        //  if (Resources.getPreferencesNode().getBoolean(ImageConstants.CONJOIN_STAMPS, false)) {
+        //      rectangles = conjoinStamps(rectangles);
+        //  }
+        return boxes.toList();
+    }
 
-        LOGGER.log(Level.INFO, "Padding: {0}, Minimum Size: {1}, Minimum Intercepting Area: {2}, Dilation Count: {3}",
-                   new Object[] {image_padding, minimum_size, min_percentage, dilationCount});
-        
-        BufferedImage image = getImage(opts);
-        ImagePlus the_image = new ImagePlus("imported image...", image);
-
-        ArrayList<BoundingBox> boxes = new ArrayList<>();
-        try {
-            prepareImage(the_image);
-/*            if (Resources.getPreferencesNode().getBoolean(ImageConstants.STAMP_AGE, false)) {
-                EventBus.publish(new StatusEvent(StatusType.Message, Resources.getString("message.boundingBoxes.modernConvert")));
-                IJ.run(the_image, "Make Binary", "");
-                logImage(the_image, "binaryModern");
-            }*/
-
-            for (int i = 0; i < dilationCount; i++) {
-            	sendMessage("Dilating Image - Phase:" + (i+1));
-                IJ.run(the_image, "Dilate", "");
-            }
-            IJ.run(the_image, "Fill Holes", "");
-            IJ.run(the_image, "Set Measurements...", "area bounding redirect=None decimal=3");
-            ResultsTable table = new ResultsTable();
-
-            int maximum_area = the_image.getWidth() * the_image.getHeight();
-
-            ParticleAnalyzer partAnalyzer = new ParticleAnalyzer(ParticleAnalyzer.EXCLUDE_EDGE_PARTICLES + ParticleAnalyzer.SHOW_NONE,
-                    Measurements.AREA + Measurements.RECT, table, (1.0 * minimum_size), maximum_area, 0.0, 1.0);
-            partAnalyzer.analyze(the_image, the_image.getProcessor());
-            partAnalyzer = null;
-
-            int total = table.getCounter();
-            int h = image.getHeight();
-            int w = image.getWidth();
-            int size_min = (int) Math.sqrt(minimum_size);
-            for (int row = 0; row < total; row++) {
-            	BoundingBox r = createBoundingBox(table, h, w, row, image_padding);
-                if (r.getWidth() > size_min && r.getHeight() > size_min) {
-                    boxes.add(r);
-                }
-            }
-            table.reset();
-            table = null;
-
-            //  logger.log(Level.INFO, "createBoundingBoxes() - memory after completion of bounding box creation: {0}MB", UIHelper.getUsedMemory());
-            LOGGER.log(Level.INFO, "Number of rectangles found before post-processing: {0}", new Object[]{boxes.size()});
-            sendMessage("Post-Processing Image...");
-            postProcessBoundingBoxes(boxes, min_percentage);
-            //  if (Resources.getPreferencesNode().getBoolean(ImageConstants.CONJOIN_STAMPS, false)) {
-            //      rectangles = conjoinStamps(rectangles);
-            //  }
-        } finally {
-            the_image.flush();
-            the_image.close();
-            image.flush();
-            image = null;
-            the_image = null;
+    /**
+     * Find the unpadded bounds of the particles in the decoded image, or in the cached mask.
+     */
+    private BoundingBoxBuffer findBoundingBoxes(ImageSource source, BufferedImage decoded, Properties options, StatusListener listener,
+    		Consumer<BinaryMask> maskSink, BinaryMask mask, int detectionMinimum, int detectionDilation) throws IOException {
+        BoundingBoxBuffer boxes;
+        if (mask != null) {
+        	listener.progress("ANALYZE", 0, StatusListener.fraction(StatusListener.ANALYZE_STEP, 0.0), null);
+        	boxes = findParticles(mask, detectionMinimum);
+        } else {
+        	DetectionPipeline pipeline = DetectionPipeline.fromOptions(options, detectionDilation);
+        	ByteProcessor detectionImage;
+        	// only the 8-bit luminance is kept so the decoded image is released before the filters run
+        	try {
+        		detectionImage = pipeline.ingest(decoded, bufferPool.borrowBytes(decoded.getWidth() * decoded.getHeight()), listener);
+        	} finally {
+        		source.release(decoded);
+        	}
+        	try {
+        		// the neighbourhood filters run over bands of the image in parallel
+        		int bands = Integer.valueOf(options.getProperty(ImageConstants.FILTER_PARALLELISM, Integer.toString(cpuPool.getParallelism())));
+        		boxes = detect(detectionImage, pipeline.striped(cpuPool, bands), listener, detectionMinimum, maskSink);
+        	} finally {
+        		bufferPool.release((byte[]) detectionImage.getPixels());
+        	}
         }
         return boxes;
     }
 
-	private void prepareImage(ImagePlus the_image) {
-		sendMessage("Smoothing Image...");
-		IJ.run(the_image, "Smooth", "");
-		sendMessage("Enhancing Image Constrast...");
-		IJ.run(the_image, "Enhance Contrast", "saturated=0.4");
-		IJ.run(the_image, "8-bit", "");
-		//handleLightBackground(the_image);
-		sendMessage("Despeckling Image...");
-		IJ.run(the_image, "Despeckle", "");
-		IJ.run(the_image, "Remove Outliers...", "radius=5 threshold=50 which=Bright");
-		IJ.run(the_image, "Make Binary", "");
-	}
+    /**
+     * Find the bounds of the particles in the image, returning the unpadded bounds of each particle.
+     *
+     * @param maskSink receives the binary mask of the image (may be null)
+     */
+    private BoundingBoxBuffer detect(ByteProcessor image, DetectionPipeline pipeline, StatusListener listener, int minimum_size,
+    		Consumer<BinaryMask> maskSink) {
+        BinaryMask binary = pipeline.runToMask(image, listener);
+        listener.progress("ANALYZE", 0, StatusListener.fraction(StatusListener.ANALYZE_STEP, 0.0), null);
+        if (maskSink != null) {
+        	maskSink.accept(binary);
+        }
+        return findParticles(binary, minimum_size);
+    }
+
+    /**
+     * Find the bounds of the particles in the binary mask (which is not modified, so may be a cached
+     * mask), excluding those which touch the edge of the image.
+     */
+    BoundingBoxBuffer findParticles(BinaryMask binary, int minimum_size) {
+        int maximum_area = binary.getWidth() * binary.getHeight();
+        long start = System.nanoTime();
+        ComponentLabeller labeller = new ComponentLabeller(Connectivity.EIGHT);
+        BoundingBoxBuffer particles = new BoundingBoxBuffer(labeller.label(binary));
+        labeller.collect(particles, minimum_size, maximum_area, true);
+        metrics.recordStage("ANALYZE", System.nanoTime() - start);
+        return particles;
+    }
+
+    /**
+     * Find the particles by processing the image as a series of tiles on the cpu pool.  The image is
+     * read in a single pass of horizontal bands (each a row of tiles with the context the pipeline
+     * needs around them) on the calling thread, and the tiles of each band are converted and
+     * filtered on the pool while the next band is read.  The threshold depends on the whole filtered
+     * image so the filtered 8-bit pixels of the tiles are kept (a byte a pixel rather than the
+     * decoded image) until it is known, the tiles then being made binary from the kept pixels
+     * without reading the image again.  The contrast stretch also depends on the whole image and is
+     * taken from the histogram of a subsampled read.  The particles of the tiles are joined across
+     * the seams (see {@link TiledDetection}) and are the same as those found on the whole image with
+     * the same contrast stretch.
+     */
+    private BoundingBoxBuffer detectTiled(ImageSource source, DetectionPipeline pipeline, StatusListener listener, int minimum_size,
+    		int tileSize, int overlap, int parallelism) throws IOException {
+    	int w = source.getWidth();
+    	int h = source.getHeight();
+    	int halo = Math.max(overlap, pipeline.getHalo());
+    	List<BoundingBox> cores = TiledDetection.createTiles(w, h, tileSize, 0);
+    	List<BoundingBox> tiles = TiledDetection.createTiles(w, h, tileSize, halo);
+    	LOGGER.log(Level.INFO, "Processing image as {0} tiles with {1} pixels of context", new Object[] {tiles.size(), halo});
+    	DetectionPipeline.Listener timer = metrics.stageTimer();
+
+    	int[] table = null;
+    	if (pipeline.isEnabled(Stage.ENHANCE_CONTRAST)) {
+    		listener.stageStarted(Stage.ENHANCE_CONTRAST, 1);
+    		long start = System.nanoTime();
+    		table = sampleContrastTable(source, pipeline);
+    		listener.stageCompleted(Stage.ENHANCE_CONTRAST, System.nanoTime() - start);
+    	}
+    	int[] contrast = table;
+
+    	// the rows of the filtered image (each tile keeping its core) and the histogram of its pixels
+    	byte[][] filtered = new byte[h][];
+    	long[] histogram = new long[256];
+    	ForkJoinTask<List<int[]>> pending = null;
+    	BufferedImage pendingBand = null;
+    	try {
+    		int first = 0;
+    		while (first < tiles.size()) {
+    			BoundingBox row = tiles.get(first);
+    			int last = first;
+    			while (last < tiles.size() && tiles.get(last).getY() == row.getY()) {
+    				last++;
+    			}
+    			long start = System.nanoTime();
+    			BufferedImage band = source.readRegion(new BoundingBox(0, row.getY(), w, row.getHeight()));
+    			metrics.recordStage("DECODE", System.nanoTime() - start);
+    			if (pending != null) {
+    				finishBand(source, pendingBand, pending, histogram);
+    				pending = null;
+    				tileProgress(listener, first, 2 * tiles.size());
+    			}
+    			BoundingBox core = cores.get(first);
+    			for (int y = core.getY(); y < core.getY() + core.getHeight(); y++) {
+    				filtered[y] = new byte[w];
+    			}
+    			// the tiles of the band are shared between at most parallelism tasks
+    			List<Callable<int[]>> tasks = new ArrayList<>();
+    			int from = first;
+    			int to = last;
+    			int step = Math.max(1, Math.min(parallelism, to - from));
+    			for (int task = 0; task < step; task++) {
+    				int offset = from + task;
+    				tasks.add(() -> {
+    					int[] counts = new int[256];
+    					for (int t = offset; t < to; t += step) {
+    						add(counts, filterTile(band, tiles.get(t), cores.get(t), pipeline, contrast, filtered, timer));
+    					}
+    					return counts;
+    				});
+    			}
+    			pending = cpuPool.fork(tasks);
+    			pendingBand = band;
+    			first = last;
+    		}
+    		if (pending != null) {
+    			finishBand(source, pendingBand, pending, histogram);
+    			pending = null;
+    		}
+    	} finally {
+    		if (pending != null) {
+    			// the read failed so the tiles already in process are only waited for
+    			try {
+    				cpuPool.join(pending);
+    			} catch (IOException | RuntimeException e) {
+    				LOGGER.log(Level.FINE, "Tile failed after the read of the image failed", e);
+    			}
+    			source.release(pendingBand);
+    		}
+    	}
+    	tileProgress(listener, tiles.size(), 2 * tiles.size());
+    	int[] threshold = DetectionPipeline.threshold(toHistogram(histogram));
+
+    	boolean fillHoles = pipeline.isEnabled(Stage.FILL_HOLES);
+    	List<TiledDetection.Tile> analyzed = runTiles(tiles.size(), parallelism, t -> {
+    		BoundingBox tile = tiles.get(t);
+    		BoundingBox core = cores.get(t);
+    		byte[] pixels = bufferPool.borrowBytes(tile.getWidth() * tile.getHeight());
+    		BinaryMask binary;
+    		try {
+    			for (int y = 0; y < tile.getHeight(); y++) {
+    				System.arraycopy(filtered[tile.getY() + y], tile.getX(), pixels, y * tile.getWidth(), tile.getWidth());
+    			}
+    			binary = pipeline.toMask(new ByteProcessor(tile.getWidth(), tile.getHeight(), pixels), threshold, timer);
+    		} finally {
+    			bufferPool.release(pixels);
+    		}
+    		long start = System.nanoTime();
+    		BinaryMask coreMask = binary.region(core.getX() - tile.getX(), core.getY() - tile.getY(), core.getWidth(), core.getHeight());
+    		TiledDetection.Tile result = TiledDetection.analyze(coreMask, core, w, h, fillHoles);
+    		metrics.recordStage("ANALYZE", System.nanoTime() - start);
+    		return result;
+    	}, completed -> tileProgress(listener, tiles.size() + completed, 2 * tiles.size()));
+
+    	long start = System.nanoTime();
+    	BoundingBoxBuffer particles = TiledDetection.merge(analyzed, w, h, minimum_size, true);
+    	metrics.recordStage("ANALYZE", System.nanoTime() - start);
+    	return particles;
+    }
+
+    /**
+     * The contrast stretch of the whole image from the histogram of a read subsampled to about
+     * {@link #CONTRAST_SAMPLE_PIXELS} pixels.  The read is made on the calling thread and only the
+     * histogram is computed on the pool.
+     */
+    private int[] sampleContrastTable(ImageSource source, DetectionPipeline pipeline) throws IOException {
+    	double pixels = (double) source.getWidth() * source.getHeight();
+    	int subsampling = Math.max(1, (int) Math.ceil(Math.sqrt(pixels / CONTRAST_SAMPLE_PIXELS)));
+    	long start = System.nanoTime();
+    	BufferedImage sample = source.read(subsampling);
+    	metrics.recordStage("DECODE", System.nanoTime() - start);
+    	try {
+    		int[] counts = cpuPool.call(() -> LuminanceConverter.histogram(sample));
+    		return pipeline.contrastTable(counts, Arrays.stream(counts).asLongStream().sum());
+    	} finally {
+    		source.release(sample);
+    	}
+    }
+
+    /**
+     * Wait for the tiles of a band, adding the histograms of their filtered cores, and release it.
+     */
+    private void finishBand(ImageSource source, BufferedImage band, ForkJoinTask<List<int[]>> tiles, long[] histogram) throws IOException {
+    	try {
+    		for (int[] counts : cpuPool.join(tiles)) {
+    			add(histogram, counts);
+    		}
+    	} finally {
+    		source.release(band);
+    	}
+    }
 
+    private interface TileTask<T> {
+    	T run(int tile) throws IOException;
+    }
+
+    /**
+     * Run the task for each of the tiles on the cpu pool, <code>parallelism</code> tiles at a time.
+     *
+     * @param completed receives the number of tiles completed (may be null)
+     * @return the results in the order of the tiles
+     */
+    private <T> List<T> runTiles(int count, int parallelism, TileTask<T> task, Consumer<Integer> completed) throws IOException {
+    	List<T> results = new ArrayList<>(count);
+    	int batch = Math.max(1, parallelism);
+    	for (int first = 0; first < count; first += batch) {
+    		List<Callable<T>> tasks = new ArrayList<>();
+    		for (int t = first; t < Math.min(count, first + batch); t++) {
+    			final int index = t;
+    			tasks.add(() -> task.run(index));
+    		}
+    		results.addAll(cpuPool.invokeAll(tasks));
+    		if (completed != null) {
+    			completed.accept(results.size());
+    		}
+    	}
+    	return results;
+    }
+
+    private void tileProgress(StatusListener listener, int completed, int total) {
+    	// the tiles run the pipeline stages and the analysis
+    	listener.progress("TILES", completed, StatusListener.fraction(StatusListener.PIPELINE_STEP,
+    			(StatusListener.ANALYZE_STEP + 1.0 - StatusListener.PIPELINE_STEP) * completed / total),
+    			"Processed Tile " + completed + " of " + total);
+    }
+
+    /**
+     * Convert the tile of the band to 8-bit with the contrast stretch of the whole image, run the
+     * neighbourhood filters over it and keep the filtered pixels of its core.
+     *
+     * @param band the band of the image holding the tile (at the top of the tile)
+     * @param filtered the rows of the filtered image receiving the core
+     * @return the histogram of the filtered core
+     */
+    private int[] filterTile(BufferedImage band, BoundingBox tile, BoundingBox core, DetectionPipeline pipeline, int[] table,
+    		byte[][] filtered, DetectionPipeline.Listener timer) {
+    	BufferedImage region = band.getSubimage(tile.getX(), 0, tile.getWidth(), tile.getHeight());
+    	ByteProcessor bp = pipeline.ingest(region, bufferPool.borrowBytes(tile.getWidth() * tile.getHeight()), table, timer);
+    	try {
+    		pipeline.runFilters(bp, timer);
+    		int x = core.getX() - tile.getX();
+    		int y = core.getY() - tile.getY();
+    		byte[] pixels = (byte[]) bp.getPixels();
+    		for (int row = 0; row < core.getHeight(); row++) {
+    			System.arraycopy(pixels, (y + row) * tile.getWidth() + x, filtered[core.getY() + row], core.getX(), core.getWidth());
+    		}
+    		bp.setRoi(x, y, core.getWidth(), core.getHeight());
+    		return bp.getHistogram();
+    	} finally {
+    		bufferPool.release((byte[]) bp.getPixels());
+    	}
+    }
+
+    private static void add(int[] histogram, int[] counts) {
+    	for (int i = 0; i < histogram.length; i++) {
+    		histogram[i] += counts[i];
+    	}
+    }
+
+    private static void add(long[] histogram, int[] counts) {
+    	for (int i = 0; i < histogram.length; i++) {
+    		histogram[i] += counts[i];
+    	}
+    }
+
+    /**
+     * The histogram as the counts ImageJ works with, scaled down in proportion if the image is so
+     * large that a count would overflow.
+     */
+    private static int[] toHistogram(long[] histogram) {
+    	long max = 0L;
+    	for (long count : histogram) {
+    		max = Math.max(max, count);
+    	}
+    	long divisor = Math.max(1L, (max + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE);
+    	int[] counts = new int[histogram.length];
+    	for (int i = 0; i < counts.length; i++) {
+    		counts[i] = (int) (histogram[i] / divisor);
+    	}
+    	return counts;
+    }
+
+    /**
+     * Publishes the progress of a request (including that of the stages of the detection pipeline)
+     * and logs the time taken by each stage.  The status text is sent to all clients while the
+     * destination of a job receives a {@link ProgressEvent} for every step.  Both are published
+     * asynchronously and coalesced by the {@link ProgressPublisher}.
+     * <p>
+     * The fraction completed is estimated from the steps: waiting, reading the image, each of the
+     * pipeline stages, the analysis, the refinement and the post-processing.
+     */
+    private class StatusListener implements DetectionPipeline.Listener {
+
+    	static final int PIPELINE_STEP = 2;
+    	static final int ANALYZE_STEP = PIPELINE_STEP + Stage.values().length;
+    	static final int STEPS = ANALYZE_STEP + 3;
+
+    	private final String destination;
+    	private final String jobId;
+    	private final long start = System.nanoTime();
+    	private int dilationCount;
+
+    	StatusListener(String destination) {
+    		this.destination = destination;
+    		this.jobId = (destination != null && destination.startsWith(MessageConstants.JOB_STATUS_PREFIX))
+    				? destination.substring(MessageConstants.JOB_STATUS_PREFIX.length()) : destination;
+    	}
+
+    	static double fraction(int step, double within) {
+    		return (step + within) / STEPS;
+    	}
+
+    	void setDilationCount(int dilationCount) {
+    		this.dilationCount = dilationCount;
+    	}
+
+    	/**
+    	 * @param stage the stage or step in progress
+    	 * @param iteration the iteration of a repeated stage (or zero)
+    	 * @param fraction the fraction of the processing completed
+    	 * @param msg the status text for all clients (or null if the step has none)
+    	 */
+    	void progress(String stage, int iteration, double fraction, String msg) {
+    		if (progressPublisher == null) {
+    			// not running within the application (such as the regression harness)
+    			return;
+    		}
+    		if (msg != null) {
+    			progressPublisher.publish(MessageConstants.STATUS_MESSAGE, msg);
+    		}
+    		if (destination != null) {
+    			ProgressEvent event = new ProgressEvent();
+    			event.setJobId(jobId);
+    			event.setStage(stage);
+    			event.setIteration(iteration);
+    			event.setFraction(Math.min(1.0, fraction));
+    			event.setMessage(msg);
+    			event.setElapsedMillis((System.nanoTime() - start) / 1000000L);
+    			event.setBytesInUse(memoryAdmission.getCapacity() - memoryAdmission.getAvailable());
+    			progressPublisher.publish(destination, event);
+    		}
+    	}
+
+    	@Override
+    	public void stageStarted(Stage stage, int iteration) {
+    		String msg = null;
+    		double within = 0.0;
+    		switch (stage) {
+    		case SMOOTH:
+    			msg = "Smoothing Image...";
+    			break;
+    		case ENHANCE_CONTRAST:
+    			msg = "Enhancing Image Constrast...";
+    			break;
+    		case DESPECKLE:
+    			msg = "Despeckling Image...";
+    			break;
+    		case DILATE:
+    			msg = "Dilating Image - Phase:" + iteration;
+    			within = (dilationCount > 0) ? (iteration - 1.0) / dilationCount : 0.0;
+    			break;
+    		default:
+    			break;
+    		}
+    		progress(stage.name(), iteration, fraction(PIPELINE_STEP + stage.ordinal(), within), msg);
+    	}
+
+    	@Override
+    	public void stageCompleted(Stage stage, long nanos) {
+    		metrics.recordStage(stage.name(), nanos);
+    		if (LOGGER.isLoggable(Level.FINE)) {
+    			LOGGER.log(Level.FINE, "{0} completed in {1}ms", new Object[] {stage, nanos / 1000000L});
+    		}
+    	}
+    }
+
+    /**
+     * Remove the boxes which are enclosed by another box or which substantially intersect a larger
+     * box, and order the remaining boxes in reading order (rows from the top and left to right within
+     * each row).
+     */
     protected void postProcessBoundingBoxes(List<BoundingBox> rectangles, float min_percentage) {
-        Collections.sort(rectangles, new BoundingBoxesComparator());
-        Set<BoundingBox> removal = new HashSet<>();
-        int size = rectangles.size();
-        
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-            	BoundingBox r = rectangles.get(i);
-            	BoundingBox master = rectangles.get(j);
-                if (master == r) {
-                    continue;
-                } else if (master.contains(r)) {
-                    if (LOGGER.isLoggable(Level.FINE)) {
-                        LOGGER.log(Level.FINE, "postProcessBoundingBoxes() - removing enclosed child: {0}", r);
-                    }
-                    removal.add(r);
-                } else if (master.intersects(r)) {
-                	BoundingBox intercept = master.intersection(r);
-                    double intercept_area = intercept.getWidth() * intercept.getHeight();
-                    double master_area = master.getWidth() * master.getHeight();
-                    if (intercept_area > min_percentage * master_area && (master_area > r.getWidth() * r.getHeight())) {
-                        if (LOGGER.isLoggable(Level.FINE)) {
-                            LOGGER.log(Level.FINE, "postProcessBoundingBoxes() - removing smaller intercepting box: {0}", r);
-                        }
-                        removal.add(r);
-                    }
-                }
-            }
-        }
-        if (!removal.isEmpty()) {
-            LOGGER.log(Level.FINE, "postProcessBoundingBoxes() - total bounding boxes: {0}", removal.size());
-            rectangles.removeAll(removal);
+        BoundingBoxBuffer boxes = BoundingBoxBuffer.of(rectangles);
+        postProcessBoundingBoxes(boxes, min_percentage);
+        rectangles.clear();
+        rectangles.addAll(boxes.toList());
+    }
+
+    private void postProcessBoundingBoxes(BoundingBoxBuffer boxes, float min_percentage) {
+        BoundingBoxBuffer removed = LOGGER.isLoggable(Level.FINE) ? new BoundingBoxBuffer() : null;
+        int total = boxes.removeOverlaps(min_percentage, removed);
+        if (removed != null) {
+        	for (int i = 0; i < removed.size(); i++) {
+        		LOGGER.log(Level.FINE, "postProcessBoundingBoxes() - removing enclosed or intercepting box: {0}", removed.get(i));
+        	}
+        	LOGGER.log(Level.FINE, "postProcessBoundingBoxes() - total bounding boxes removed: {0}", total);
         }
+        boxes.sortReadingOrder();
     }
 
     protected BoundingBox createBoundingBox(ResultsTable table, int h, int w, int row, int image_padding) {
+        return createBoundingBox(Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_X, row)).intValue(),
+                Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_Y, row)).intValue(),
+                Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_WIDTH, row)).intValue(),
+                Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_HEIGHT, row)).intValue(),
+                h, w, image_padding);
+    }
+
+    protected BoundingBox createBoundingBox(int x, int y, int width, int height, int h, int w, int image_padding) {
     	BoundingBox r = new BoundingBox();
 
-        r.setX(Math.max(0, Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_X, row)).intValue() - image_padding));
-        r.setY(Math.max(0, Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_Y, row)).intValue() - image_padding));
-        r.setWidth(Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_WIDTH, row)).intValue() + (2 * image_padding));
-        r.setHeight(Double.valueOf(table.getValueAsDouble(ResultsTable.ROI_HEIGHT, row)).intValue() + (2 * image_padding));
+        r.setX(Math.max(0, x - image_padding));
+        r.setY(Math.max(0, y - image_padding));
+        r.setWidth(width + (2 * image_padding));
+        r.setHeight(height + (2 * image_padding));
         if (r.getWidth() + r.getX() > w) {
             r.setWidth(w - r.getX());
         }
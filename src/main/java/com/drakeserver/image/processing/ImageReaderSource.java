@@ -0,0 +1,215 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * An {@link ImageSource} which decodes on demand using an {@link ImageReader}.  Reduced resolution
+ * reads use the source subsampling of the {@link ImageReadParam} and region reads use the source
+ * region so only the required pixels are materialized.  The dimensions are available from the
+ * image header without decoding any pixels.
+ *
+ */
+public class ImageReaderSource implements ImageSource {
+
+	private static final Logger LOGGER = Logger.getLogger(ImageReaderSource.class.getName());
+
+	private static final double MM_PER_INCH = 25.4;
+
+	private final ImageInputStream stream;
+	private final ImageReader reader;
+	private BufferPool bufferPool;
+	private BufferedImage pooledImage;
+
+	private ImageReaderSource(ImageInputStream stream) throws IOException {
+		if (stream == null) {
+			throw new IOException("Unable to open the image for reading");
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			stream.close();
+			throw new IOException("Unable to decode the supplied image data");
+		}
+		this.stream = stream;
+		this.reader = readers.next();
+		reader.setInput(stream, false, false);
+	}
+
+	public static ImageReaderSource open(File file) throws IOException {
+		return new ImageReaderSource(ImageIO.createImageInputStream(file));
+	}
+
+	/**
+	 * Open a source over the stream.  Since the image may be read more than once the stream is
+	 * cached by {@link ImageIO} (on disk when {@link ImageIO#getUseCache()} is set).  The caller
+	 * remains responsible for closing the input stream.
+	 */
+	public static ImageReaderSource open(InputStream input) throws IOException {
+		return new ImageReaderSource(ImageIO.createImageInputStream(input));
+	}
+
+	/**
+	 * Open a source over the encoded image held in memory (without caching a second copy on disk).
+	 */
+	public static ImageReaderSource open(byte[] data) throws IOException {
+		return new ImageReaderSource(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+	}
+
+	/**
+	 * Decode the full resolution image into a pixel buffer borrowed from the pool, which is returned
+	 * to the pool when the image is {@link #release released}.
+	 */
+	public ImageReaderSource setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		return this;
+	}
+
+	@Override
+	public int getWidth() throws IOException {
+		return reader.getWidth(0);
+	}
+
+	@Override
+	public int getHeight() throws IOException {
+		return reader.getHeight(0);
+	}
+
+	@Override
+	public double getResolution() {
+		try {
+			IIOMetadata metadata = reader.getImageMetadata(0);
+			if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+				return 0.0;
+			}
+			Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+			for (Node dimension = root.getFirstChild(); dimension != null; dimension = dimension.getNextSibling()) {
+				if (!"Dimension".equals(dimension.getNodeName())) {
+					continue;
+				}
+				for (Node child = dimension.getFirstChild(); child != null; child = child.getNextSibling()) {
+					if ("HorizontalPixelSize".equals(child.getNodeName())) {
+						NamedNodeMap attributes = child.getAttributes();
+						double mmPerPixel = Double.parseDouble(attributes.getNamedItem("value").getNodeValue());
+						return (mmPerPixel > 0.0) ? Math.round(MM_PER_INCH / mmPerPixel) : 0.0;
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "Unable to determine the image resolution", e);
+		}
+		return 0.0;
+	}
+
+	@Override
+	public BufferedImage read() throws IOException {
+		ImageReadParam param = reader.getDefaultReadParam();
+		BufferedImage destination = (bufferPool != null && pooledImage == null) ? createPooledImage() : null;
+		if (destination == null) {
+			return reader.read(0, param);
+		}
+		param.setDestination(destination);
+		try {
+			pooledImage = reader.read(0, param);
+		} catch (IOException | RuntimeException e) {
+			bufferPool.release(((DataBufferByte) destination.getRaster().getDataBuffer()).getData());
+			throw e;
+		}
+		return pooledImage;
+	}
+
+	/**
+	 * Create an image of the reader's own (byte interleaved) type over a pooled buffer.  Decoding into
+	 * any other type would add a colour conversion which costs more than the allocation it saves.
+	 *
+	 * @return the image or null if the reader does not decode to interleaved bytes
+	 */
+	private BufferedImage createPooledImage() throws IOException {
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		if (!types.hasNext()) {
+			return null;
+		}
+		ImageTypeSpecifier type = types.next();
+		SampleModel model = type.getSampleModel(getWidth(), getHeight());
+		if (model.getDataType() != DataBuffer.TYPE_BYTE || !(model instanceof PixelInterleavedSampleModel)) {
+			return null;
+		}
+		int length = ((PixelInterleavedSampleModel) model).getScanlineStride() * getHeight();
+		WritableRaster raster = Raster.createWritableRaster(model, new DataBufferByte(bufferPool.borrowBytes(length), length), null);
+		ColorModel colorModel = type.getColorModel();
+		return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+	}
+
+	@Override
+	public void release(BufferedImage image) {
+		if (image != null && image == pooledImage) {
+			bufferPool.release(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+			pooledImage = null;
+		}
+		ImageSource.super.release(image);
+	}
+
+	@Override
+	public BufferedImage read(int subsampling) throws IOException {
+		ImageReadParam param = reader.getDefaultReadParam();
+		if (subsampling > 1) {
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		}
+		return reader.read(0, param);
+	}
+
+	@Override
+	public BufferedImage readRegion(BoundingBox region) throws IOException {
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(region.getX(), region.getY(), region.getWidth(), region.getHeight()));
+		return reader.read(0, param);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.dispose();
+		stream.close();
+	}
+}
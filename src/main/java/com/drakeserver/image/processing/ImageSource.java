@@ -0,0 +1,66 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * A source of image pixels which can be read in full, at a reduced resolution or as
+ * a region of the full resolution image.  This allows the processing to only decode
+ * the pixels it actually requires.
+ *
+ */
+public interface ImageSource extends Closeable {
+
+	public int getWidth() throws IOException;
+
+	public int getHeight() throws IOException;
+
+	/**
+	 * The resolution of the image in dots per inch if it is known.
+	 *
+	 * @return the resolution or zero if unknown
+	 */
+	public double getResolution() throws IOException;
+
+	/**
+	 * Read the full resolution image.
+	 */
+	public BufferedImage read() throws IOException;
+
+	/**
+	 * Read the image keeping only every <code>subsampling</code> pixel in each direction.
+	 */
+	public BufferedImage read(int subsampling) throws IOException;
+
+	/**
+	 * Read a region of the full resolution image.  The returned image may share data with
+	 * the source so it should be treated as read-only.
+	 */
+	public BufferedImage readRegion(BoundingBox region) throws IOException;
+
+	/**
+	 * Release an image returned by {@link #read()} once it is no longer needed, which allows a
+	 * source to reuse its pixel buffer.
+	 */
+	public default void release(BufferedImage image) {
+		image.flush();
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Converts a decoded image directly into an 8-bit grayscale buffer in a single pass over the raster
+ * using the (ITU-R 601) luminance weights.  The common layouts produced by the decoders (packed
+ * <code>int</code> RGB and interleaved <code>byte</code> BGR/ABGR/gray) are read a row at a time
+ * straight from the data buffer without creating an intermediate colour image, while any other
+ * layout is read through the colour model.
+ *
+ */
+public class LuminanceConverter {
+
+	private static final int RED_WEIGHT = 299;
+	private static final int GREEN_WEIGHT = 587;
+	private static final int BLUE_WEIGHT = 114;
+	private static final int WEIGHT_TOTAL = 1000;
+
+	private LuminanceConverter() { }
+
+	public static int luminance(int r, int g, int b) {
+		return (r * RED_WEIGHT + g * GREEN_WEIGHT + b * BLUE_WEIGHT) / WEIGHT_TOTAL;
+	}
+
+	public static int luminance(int rgb) {
+		return luminance((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+	}
+
+	public static ByteProcessor toByteProcessor(BufferedImage image, int[] channelTable) {
+		return toByteProcessor(image, channelTable, new byte[image.getWidth() * image.getHeight()]);
+	}
+
+	/**
+	 * @param pixels the buffer to convert into (of exactly <code>width * height</code> bytes)
+	 */
+	public static ByteProcessor toByteProcessor(BufferedImage image, int[] channelTable, byte[] pixels) {
+		return new ByteProcessor(image.getWidth(), image.getHeight(), toGray(image, channelTable, pixels));
+	}
+
+	/**
+	 * Convert the image (which may be a sub-image) into a new grayscale buffer of
+	 * <code>width * height</code> bytes.
+	 *
+	 * @param image the decoded image
+	 * @param channelTable a lookup table applied to each of the colour channels before they are
+	 *   weighted (may be null)
+	 */
+	public static byte[] toGray(BufferedImage image, int[] channelTable) {
+		return toGray(image, channelTable, new byte[image.getWidth() * image.getHeight()]);
+	}
+
+	/**
+	 * Convert the image into the given grayscale buffer (every byte of which is written).
+	 */
+	public static byte[] toGray(BufferedImage image, int[] channelTable, byte[] gray) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] row = new int[width];
+		RowReader reader = createReader(image);
+		for (int y = 0; y < height; y++) {
+			reader.read(y, row);
+			int offset = y * width;
+			if (channelTable == null) {
+				for (int x = 0; x < width; x++) {
+					gray[offset + x] = (byte) luminance(row[x]);
+				}
+			} else {
+				for (int x = 0; x < width; x++) {
+					int c = row[x];
+					gray[offset + x] = (byte) luminance(channelTable[(c >> 16) & 0xff], channelTable[(c >> 8) & 0xff], channelTable[c & 0xff]);
+				}
+			}
+		}
+		return gray;
+	}
+
+	/**
+	 * Compute the histogram of the unweighted mean of the colour channels (as ImageJ does for an RGB
+	 * image by default) which is used to determine the contrast stretch of the channels.
+	 */
+	public static int[] histogram(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] histogram = new int[256];
+		int[] row = new int[width];
+		RowReader reader = createReader(image);
+		for (int y = 0; y < height; y++) {
+			reader.read(y, row);
+			for (int x = 0; x < width; x++) {
+				int c = row[x];
+				histogram[(((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff) + 1) / 3]++;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Reads a row of the image as packed RGB.
+	 */
+	private interface RowReader {
+		void read(int y, int[] row);
+	}
+
+	private static RowReader createReader(BufferedImage image) {
+		if (isPackedRGB(image)) {
+			return packedReader(image.getRaster());
+		} else if (isInterleaved(image)) {
+			return interleavedReader(image.getRaster());
+		}
+		return (y, row) -> image.getRGB(0, y, row.length, 1, row, 0, row.length);
+	}
+
+	/**
+	 * Whether the image is 8 bits per channel RGB packed into an <code>int</code> per pixel (with
+	 * any alpha not premultiplied) such as <code>TYPE_INT_RGB</code>.
+	 */
+	private static boolean isPackedRGB(BufferedImage image) {
+		Raster raster = image.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferInt) || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				|| raster.getNumBands() < 3 || image.isAlphaPremultiplied() || !image.getColorModel().getColorSpace().isCS_sRGB()) {
+			return false;
+		}
+		int[] masks = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getBitMasks();
+		int[] offsets = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getBitOffsets();
+		for (int b = 0; b < 3; b++) {
+			if (masks[b] != (0xff << offsets[b])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the image is 8-bit gray or 8 bits per channel RGB stored as bytes (with any alpha not
+	 * premultiplied) such as <code>TYPE_BYTE_GRAY</code> or <code>TYPE_3BYTE_BGR</code>.  The gray
+	 * values are used as stored, as ImageJ does, rather than converted through the linear gray
+	 * colour space.
+	 */
+	private static boolean isInterleaved(BufferedImage image) {
+		Raster raster = image.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferByte) || !(raster.getSampleModel() instanceof ComponentSampleModel)
+				|| image.isAlphaPremultiplied() || raster.getSampleModel().getSampleSize(0) != 8) {
+			return false;
+		}
+		if (raster.getNumBands() == 1) {
+			return image.getType() == BufferedImage.TYPE_BYTE_GRAY;
+		}
+		return raster.getNumBands() >= 3 && image.getColorModel().getColorSpace().isCS_sRGB();
+	}
+
+	private static RowReader packedReader(Raster raster) {
+		SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+		int[] data = buffer.getData();
+		int stride = model.getScanlineStride();
+		int[] offsets = model.getBitOffsets();
+		int rShift = offsets[0];
+		int gShift = offsets[1];
+		int bShift = offsets[2];
+		int base = buffer.getOffset() + model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+		if (rShift == 16 && gShift == 8 && bShift == 0) {
+			return (y, row) -> System.arraycopy(data, base + y * stride, row, 0, row.length);
+		}
+		return (y, row) -> {
+			int index = base + y * stride;
+			for (int x = 0; x < row.length; x++) {
+				int c = data[index + x];
+				row[x] = (((c >> rShift) & 0xff) << 16) | (((c >> gShift) & 0xff) << 8) | ((c >> bShift) & 0xff);
+			}
+		};
+	}
+
+	private static RowReader interleavedReader(Raster raster) {
+		ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+		DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+		int[] banks = model.getBankIndices();
+		int[] offsets = model.getBandOffsets();
+		int stride = model.getScanlineStride();
+		int pixelStride = model.getPixelStride();
+		int base = model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY(), 0) - offsets[0];
+		if (raster.getNumBands() == 1) {
+			byte[] data = buffer.getData(banks[0]);
+			int start = base + offsets[0] + buffer.getOffsets()[banks[0]];
+			return (y, row) -> {
+				for (int x = 0, index = start + y * stride; x < row.length; x++, index += pixelStride) {
+					int v = data[index] & 0xff;
+					row[x] = (v << 16) | (v << 8) | v;
+				}
+			};
+		}
+		byte[] red = buffer.getData(banks[0]);
+		byte[] green = buffer.getData(banks[1]);
+		byte[] blue = buffer.getData(banks[2]);
+		int r0 = base + offsets[0] + buffer.getOffsets()[banks[0]];
+		int g0 = base + offsets[1] + buffer.getOffsets()[banks[1]];
+		int b0 = base + offsets[2] + buffer.getOffsets()[banks[2]];
+		return (y, row) -> {
+			for (int x = 0, index = y * stride; x < row.length; x++, index += pixelStride) {
+				row[x] = ((red[r0 + index] & 0xff) << 16) | ((green[g0 + index] & 0xff) << 8) | (blue[b0 + index] & 0xff);
+			}
+		};
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.drakeserver.image.ImageConstants;
+
+/**
+ * A cache of the binary masks produced by the detection pipeline, keyed by the image identity and
+ * the options which change the mask (the detection scale, the dilation count and the skipped
+ * stages).  The options applied after the mask (the padding, the minimum size and the overlap
+ * removal) are tuned against the same page so such a request goes straight to particle analysis.
+ * The masks are held bit-packed and evicted in least recently used order once
+ * <code>cache.maskBytes</code> is exceeded.
+ *
+ */
+@Component
+public class MaskCache {
+
+	public static final long MAX_BYTES_DEFAULT = 64L * 1024 * 1024;
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, BinaryMask> masks = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long hits;
+	private long misses;
+
+	public MaskCache(@Value("${cache.maskBytes:" + MAX_BYTES_DEFAULT + "}") long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	/**
+	 * The key of the mask of the image detected at the scale with the options.
+	 */
+	public static String key(String imageKey, double scale, Properties options) {
+		StringBuilder key = new StringBuilder(imageKey);
+		key.append("|scale=").append(scale);
+		key.append('|').append(ImageConstants.DILATION_COUNT).append('=')
+				.append(options.getProperty(ImageConstants.DILATION_COUNT, Integer.toString(ImageProcessorService.DILATION_COUNT)).trim());
+		TreeSet<String> skipped = new TreeSet<>();
+		for (String name : options.getProperty(ImageConstants.SKIP_STAGES, "").split(",")) {
+			if (!name.isBlank()) {
+				skipped.add(name.trim().toUpperCase(Locale.ROOT));
+			}
+		}
+		key.append('|').append(ImageConstants.SKIP_STAGES).append('=').append(skipped);
+		return key.toString();
+	}
+
+	public synchronized BinaryMask get(String key) {
+		BinaryMask mask = masks.get(key);
+		if (mask != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return mask;
+	}
+
+	public synchronized void put(String key, BinaryMask mask) {
+		if (mask.getSize() > maxBytes) {
+			return;
+		}
+		BinaryMask previous = masks.put(key, mask);
+		if (previous != null) {
+			bytes -= previous.getSize();
+		}
+		bytes += mask.getSize();
+		Iterator<Map.Entry<String, BinaryMask>> it = masks.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().getValue().getSize();
+			it.remove();
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+}
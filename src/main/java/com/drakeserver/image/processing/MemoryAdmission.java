@@ -0,0 +1,159 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits images for processing against a budget of heap bytes rather than a count of requests.  The
+ * working set of an image is estimated from its dimensions (read from the header) before anything is
+ * decoded and the request waits until that many bytes of the budget are free, so several small
+ * images may be processed at once while a very large scan waits for the others to finish.
+ * <p>
+ * The budget is held as a fair {@link Semaphore} of kilobyte permits so a large request is not
+ * starved by a stream of smaller ones.
+ *
+ */
+public class MemoryAdmission {
+
+	public static final double FRACTION_DEFAULT = 0.75;
+
+	/**
+	 * The smallest proxy scale an image is reduced to when it does not fit the budget at the
+	 * requested scale.
+	 */
+	public static final double MINIMUM_FALLBACK_SCALE = 0.125;
+
+	private static final int BYTES_PER_PIXEL = 4;
+	private static final long PERMIT_SIZE = 1024L;
+
+	private final Semaphore permits;
+	private final long capacity;
+
+	public MemoryAdmission(long capacity) {
+		int count = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, capacity / PERMIT_SIZE));
+		this.capacity = count * PERMIT_SIZE;
+		this.permits = new Semaphore(count, true);
+	}
+
+	/**
+	 * @param fraction the fraction of the maximum heap available for processing images
+	 */
+	public static MemoryAdmission forHeap(double fraction) {
+		return new MemoryAdmission((long) (Runtime.getRuntime().maxMemory() * fraction));
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getAvailable() {
+		return permits.availablePermits() * PERMIT_SIZE;
+	}
+
+	/**
+	 * Estimate the peak working set of processing the image, which is
+	 * {@link ImageProcessorService#AVAILABLE_MEMORY_RATIO} times the size of the decoded image.  A
+	 * proxy is decoded with subsampling to roughly twice its size (see {@link ProxyDetection#readProxy})
+	 * so only that fraction of the pixels are counted.
+	 *
+	 * @param width the width of the source image
+	 * @param height the height of the source image
+	 * @param scale the detection scale (1.0 for the full resolution)
+	 */
+	public static long estimate(int width, int height, double scale) {
+		double decoded = Math.min(1.0, 4.0 * scale * scale);
+		return (long) (ImageProcessorService.AVAILABLE_MEMORY_RATIO * BYTES_PER_PIXEL * decoded * width * height);
+	}
+
+	/**
+	 * Estimate the size of the decoded image, which the variants of a sweep share.
+	 */
+	public static long estimateDecoded(int width, int height) {
+		return (long) BYTES_PER_PIXEL * width * height;
+	}
+
+	/**
+	 * Estimate the peak working set of detecting the image at full resolution a tile at a time (see
+	 * {@link TiledDetection}): the filtered 8-bit image (a byte a pixel), the two bands of decoded
+	 * pixels (the one in process and the one being read) and the subsampled read for the contrast,
+	 * the working set of each of the tiles in process, with the context read around it, and the
+	 * labels of the edges of the tiles kept for joining them.
+	 *
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param tileSize the size of the tiles
+	 * @param halo the context read on each side of a tile
+	 * @param parallelism the number of tiles in process at once
+	 */
+	public static long estimateTiled(int width, int height, int tileSize, int halo, int parallelism) {
+		int tileWidth = Math.min(width, tileSize + 2 * halo);
+		int tileHeight = Math.min(height, tileSize + 2 * halo);
+		long rows = (height + tileSize - 1) / tileSize;
+		long columns = (width + tileSize - 1) / tileSize;
+		long edges = 2L * Integer.BYTES * (width * rows + height * columns);
+		long filtered = (long) width * height;
+		long decoded = BYTES_PER_PIXEL * (2L * width * tileHeight + ImageProcessorService.CONTRAST_SAMPLE_PIXELS);
+		return estimate(tileWidth, tileHeight, 1.0) * parallelism + filtered + decoded + edges;
+	}
+
+	public boolean canAdmit(long bytes) {
+		return bytes <= capacity;
+	}
+
+	/**
+	 * Find the largest proxy scale (to two decimal places) at which the image fits within the budget.
+	 *
+	 * @return the scale or 0.0 if the image does not fit at the {@link #MINIMUM_FALLBACK_SCALE}
+	 */
+	public double getFallbackScale(int width, int height) {
+		double pixels = ImageProcessorService.AVAILABLE_MEMORY_RATIO * BYTES_PER_PIXEL * (double) width * height;
+		double scale = Math.floor(100.0 * Math.sqrt(capacity / (4.0 * pixels))) / 100.0;
+		return (scale >= MINIMUM_FALLBACK_SCALE) ? scale : 0.0;
+	}
+
+	/**
+	 * Wait until the bytes are available.  The bytes must be released once processing completes.
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		permits.acquire(toPermits(bytes));
+	}
+
+	/**
+	 * Acquire the bytes if they are available now and no other request is waiting for the budget.
+	 * Unlike the untimed <code>tryAcquire</code> of the semaphore this does not barge ahead of the
+	 * requests already waiting, so a large request is not starved by smaller ones.
+	 *
+	 * @return whether the bytes were acquired
+	 */
+	public boolean tryAcquire(long bytes) {
+		try {
+			return permits.tryAcquire(toPermits(bytes), 0L, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public void release(long bytes) {
+		permits.release(toPermits(bytes));
+	}
+
+	private int toPermits(long bytes) {
+		return (int) Math.min(capacity / PERMIT_SIZE, Math.max(1L, (bytes + PERMIT_SIZE - 1) / PERMIT_SIZE));
+	}
+}
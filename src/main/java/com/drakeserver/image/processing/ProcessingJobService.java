@@ -0,0 +1,170 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.ProcessingJob;
+import com.drakeserver.image.model.ProcessingJob.State;
+import com.drakeserver.messaging.MessageConstants;
+import com.drakeserver.messaging.ProgressPublisher;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Runs the image processing requests as jobs on a bounded executor.  At most <code>jobs.threads</code>
+ * images are processed at once with up to <code>jobs.queueDepth</code> further jobs waiting; a job
+ * submitted when the queue is full is rejected immediately rather than slowing down the jobs already
+ * accepted.  The progress events of each job are sent to its own destination
+ * (<code>/data/jobs/{id}</code>) and the finished job (with its bounding boxes) is pushed to the
+ * same destination.  Finished jobs are kept for <code>jobs.retentionSeconds</code> for polling.
+ *
+ */
+@Service
+public class ProcessingJobService {
+
+	static final Logger LOGGER = Logger.getLogger(ProcessingJobService.class.getName());
+
+	public static final int THREADS_DEFAULT = 1;
+	public static final int QUEUE_DEPTH_DEFAULT = 4;
+	public static final long RETENTION_SECONDS_DEFAULT = 600;
+
+	private final ImageProcessorService imageProcessorService;
+	private final ProgressPublisher progressPublisher;
+	private final ThreadPoolExecutor executor;
+	private final long retentionMillis;
+	private final Map<String, ProcessingJob> jobs = new ConcurrentHashMap<>();
+
+	@Autowired
+	public ProcessingJobService(ImageProcessorService imageProcessorService, ProgressPublisher progressPublisher,
+			@Value("${jobs.threads:" + THREADS_DEFAULT + "}") int threads,
+			@Value("${jobs.queueDepth:" + QUEUE_DEPTH_DEFAULT + "}") int queueDepth,
+			@Value("${jobs.retentionSeconds:" + RETENTION_SECONDS_DEFAULT + "}") long retentionSeconds) {
+		this.imageProcessorService = imageProcessorService;
+		this.progressPublisher = progressPublisher;
+		this.retentionMillis = TimeUnit.SECONDS.toMillis(retentionSeconds);
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queueDepth)), r -> {
+					Thread t = new Thread(r, "image-job-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@PostConstruct
+	public void registerMetrics() {
+		DetectionMetrics metrics = imageProcessorService.getMetrics();
+		metrics.gauge("image_jobs_queued", "The jobs waiting to be processed", this::getQueuedCount);
+		metrics.gauge("image_jobs_active", "The jobs being processed", this::getActiveCount);
+	}
+
+	/**
+	 * Queue the request for processing.
+	 *
+	 * @param payload the request payload (as accepted by {@link ImageProcessorService#process(Map)})
+	 * @return the queued job
+	 * @throws JobRejectedException if the queue is full
+	 */
+	public ProcessingJob submit(Map<String, ?> payload) {
+		expireJobs();
+		String id = UUID.randomUUID().toString();
+		ProcessingJob job = new ProcessingJob(id, MessageConstants.JOB_STATUS_PREFIX + id);
+		jobs.put(id, job);
+		try {
+			executor.execute(() -> run(job, payload));
+		} catch (RejectedExecutionException ree) {
+			jobs.remove(id);
+			imageProcessorService.getMetrics().requestRejected();
+			throw new JobRejectedException("The processing queue is full (" + executor.getQueue().size() + " jobs waiting)");
+		}
+		LOGGER.log(Level.INFO, "Queued job {0} ({1} waiting)", new Object[] {id, executor.getQueue().size()});
+		return job;
+	}
+
+	/**
+	 * @return the job or null if there is no such job (or it has expired)
+	 */
+	public ProcessingJob getJob(String id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * The number of jobs being processed.
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * The number of jobs waiting to be processed.
+	 */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	private void run(ProcessingJob job, Map<String, ?> payload) {
+		job.setStarted(System.currentTimeMillis());
+		job.setState(State.RUNNING);
+		State state = State.FAILED;
+		try {
+			List<BoundingBox> boxes = imageProcessorService.process(payload, job.getDestination());
+			job.setBoxes(boxes);
+			state = State.COMPLETED;
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Job " + job.getId() + " failed", e);
+			job.setError(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+		} finally {
+			// the completion time is set before the job is seen to be finished so it is not expired early
+			job.setCompleted(System.currentTimeMillis());
+			job.setState(state);
+		}
+		// sent after any progress of the job still pending
+		progressPublisher.publishFinal(job.getDestination(), job);
+	}
+
+	private void expireJobs() {
+		long expiry = System.currentTimeMillis() - retentionMillis;
+		for (Iterator<ProcessingJob> it = jobs.values().iterator(); it.hasNext();) {
+			ProcessingJob job = it.next();
+			if (job.isFinished() && job.getCompleted() < expiry) {
+				it.remove();
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import com.drakeserver.image.ImageConstants;
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.BoundingBoxBuffer;
+
+/**
+ * Support for detecting on a reduced resolution proxy of the image.  Stamp outlines are easily
+ * found at low resolutions (ie. 150 dpi) so the expensive filters can be run on a fraction of the
+ * pixels with the resulting particles mapped back to the source coordinates.  Optionally each
+ * edge of a mapped particle can be refined against a narrow strip of the full resolution image.
+ *
+ */
+public class ProxyDetection {
+
+	/**
+	 * The minimum difference in the mean luminance between the inside and outside of an edge
+	 * strip for the edge to be refined.
+	 */
+	static final int MINIMUM_EDGE_CONTRAST = 16;
+
+	private ProxyDetection() { }
+
+	/**
+	 * Determine the scale of the detection proxy from the options.  The scale is either given
+	 * directly as <code>proxyScale</code> or as the ratio of <code>proxyResolution</code> to the
+	 * source <code>resolution</code> (both in dpi).  If the source resolution is not supplied the
+	 * resolution recorded in the image (if any) is used.
+	 *
+	 * @param options the processing options
+	 * @param sourceResolution the resolution recorded in the image or zero if unknown
+	 * @return the scale in the range (0,1] where 1.0 indicates no proxy should be used
+	 */
+	public static double getScale(Properties options, double sourceResolution) {
+		double scale = 1.0;
+		if (options.getProperty(ImageConstants.PROXY_SCALE) != null) {
+			scale = Double.parseDouble(options.getProperty(ImageConstants.PROXY_SCALE));
+		} else if (options.getProperty(ImageConstants.PROXY_RESOLUTION) != null) {
+			double resolution = Double.parseDouble(options.getProperty(ImageConstants.RESOLUTION, Double.toString(sourceResolution)));
+			if (resolution > 0.0) {
+				scale = Double.parseDouble(options.getProperty(ImageConstants.PROXY_RESOLUTION)) / resolution;
+			}
+		}
+		return (scale > 0.0 && scale < 1.0) ? scale : 1.0;
+	}
+
+	/**
+	 * Read the detection proxy from the source.  Where the source supports it the image is decoded
+	 * with subsampling to roughly twice the proxy size and then averaged down to the final size which
+	 * avoids both materializing the full resolution image and point sampling the perforations.
+	 */
+	public static BufferedImage readProxy(ImageSource source, double scale) throws IOException {
+		int subsampling = Math.max(1, (int) Math.floor(1.0 / (2.0 * scale)));
+		BufferedImage image = source.read(subsampling);
+		double remaining = Math.min(1.0, scale * source.getWidth() / image.getWidth());
+		if (remaining >= 1.0) {
+			return image;
+		}
+		BufferedImage proxy = downscale(image, remaining);
+		image.flush();
+		return proxy;
+	}
+
+	/**
+	 * Downscale the image by repeated halving (with bilinear interpolation) so each output pixel
+	 * is the average of its source pixels rather than a point sample which would alias the
+	 * perforations and paper texture.
+	 */
+	public static BufferedImage downscale(BufferedImage image, double scale) {
+		int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+		int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+		BufferedImage current = image;
+		int w = image.getWidth();
+		int h = image.getHeight();
+		do {
+			w = Math.max(targetWidth, w / 2);
+			h = Math.max(targetHeight, h / 2);
+			BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = next.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				g.drawImage(current, 0, 0, w, h, null);
+			} finally {
+				g.dispose();
+			}
+			if (current != image) {
+				current.flush();
+			}
+			current = next;
+		} while (w != targetWidth || h != targetHeight);
+		return current;
+	}
+
+	/**
+	 * Map the particles found on the proxy back to the source coordinates (in place).  The mapped
+	 * bounds cover every source pixel which contributed to the proxy particle.
+	 */
+	public static void mapToSource(BoundingBoxBuffer particles, double scale, int width, int height) {
+		for (int i = 0; i < particles.size(); i++) {
+			int x0 = Math.max(0, (int) Math.floor(particles.getX(i) / scale));
+			int y0 = Math.max(0, (int) Math.floor(particles.getY(i) / scale));
+			int x1 = Math.min(width, (int) Math.ceil((particles.getX(i) + particles.getWidth(i)) / scale));
+			int y1 = Math.min(height, (int) Math.ceil((particles.getY(i) + particles.getHeight(i)) / scale));
+			particles.set(i, x0, y0, x1 - x0, y1 - y0);
+		}
+	}
+
+	/**
+	 * Snap each edge of the mapped particles to the full resolution image.  For each edge a strip a
+	 * few proxy pixels wide is read from the source and the edge is moved to the first row or column
+	 * (from the outside in) whose mean luminance crosses half way between the background outside the
+	 * edge and the particle inside it.  Edges without sufficient contrast are left unchanged.  Only the
+	 * regions under the particles (plus the search margin) are read from the source.
+	 */
+	public static void refine(ImageSource source, BoundingBoxBuffer particles, double scale) throws IOException {
+		int margin = (int) Math.ceil(2.0 / scale);
+		int width = source.getWidth();
+		int height = source.getHeight();
+		int size = particles.size();
+		BoundingBoxBuffer regions = new BoundingBoxBuffer(size);
+		Integer[] order = new Integer[size];
+		int maximumBand = height / 4;
+		for (int i = 0; i < size; i++) {
+			int rx = Math.max(0, particles.getX(i) - margin);
+			int ry = Math.max(0, particles.getY(i) - margin);
+			regions.add(rx, ry,
+					Math.min(width, particles.getX(i) + particles.getWidth(i) + margin) - rx,
+					Math.min(height, particles.getY(i) + particles.getHeight(i) + margin) - ry);
+			maximumBand = Math.max(maximumBand, regions.getHeight(i));
+			order[i] = i;
+		}
+		// decoders generally have to decode every row above a region so the regions are read in
+		// horizontal bands (each bounded to a quarter of the image) rather than one at a time
+		Arrays.sort(order, Comparator.comparingInt(regions::getY));
+		int first = 0;
+		while (first < size) {
+			int r = order[first];
+			BoundingBox band = regions.get(r);
+			int last = first + 1;
+			while (last < size) {
+				r = order[last];
+				int bottom = Math.max(band.getY() + band.getHeight(), regions.getY(r) + regions.getHeight(r));
+				if (bottom - band.getY() > maximumBand) {
+					break;
+				}
+				int left = Math.min(band.getX(), regions.getX(r));
+				band.setWidth(Math.max(band.getX() + band.getWidth(), regions.getX(r) + regions.getWidth(r)) - left);
+				band.setX(left);
+				band.setHeight(bottom - band.getY());
+				last++;
+			}
+			BufferedImage image = source.readRegion(band);
+			for (int i = first; i < last; i++) {
+				refine(image, band, particles, order[i], margin);
+			}
+			image.flush();
+			first = last;
+		}
+	}
+
+	private static void refine(BufferedImage image, BoundingBox band, BoundingBoxBuffer particles, int p, int margin) {
+		// edges relative to the band
+		int left = particles.getX(p) - band.getX();
+		int top = particles.getY(p) - band.getY();
+		int right = left + particles.getWidth(p);
+		int bottom = top + particles.getHeight(p);
+
+		int newLeft = snapEdge(image, left, top, bottom, margin, true, true);
+		int newRight = snapEdge(image, right, top, bottom, margin, true, false);
+		int newTop = snapEdge(image, top, left, right, margin, false, true);
+		int newBottom = snapEdge(image, bottom, left, right, margin, false, false);
+		if (newRight > newLeft && newBottom > newTop) {
+			particles.set(p, band.getX() + newLeft, band.getY() + newTop, newRight - newLeft, newBottom - newTop);
+		}
+	}
+
+	/**
+	 * Find the refined position of a single edge.
+	 *
+	 * @param edge the current position of the edge (exclusive for the right and bottom edges)
+	 * @param start the first row (or column) along the edge
+	 * @param end the last row (or column) along the edge (exclusive)
+	 * @param margin the number of pixels to search on either side of the edge
+	 * @param vertical true for the left and right edges
+	 * @param leading true for the left and top edges
+	 * @return the refined position of the edge
+	 */
+	static int snapEdge(BufferedImage image, int edge, int start, int end, int margin, boolean vertical, boolean leading) {
+		int limit = vertical ? image.getWidth() : image.getHeight();
+		int from = Math.max(0, edge - margin);
+		int to = Math.min(limit, edge + margin);
+		if (to - from < 3 || end <= start) {
+			return edge;
+		}
+		int[] profile = profile(image, from, to, start, end, vertical);
+		// index 0 of the profile is outside the particle for leading edges and inside for trailing edges
+		int outside = leading ? profile[0] : profile[profile.length - 1];
+		int inside = leading ? profile[profile.length - 1] : profile[0];
+		if (Math.abs(outside - inside) < MINIMUM_EDGE_CONTRAST) {
+			return edge;
+		}
+		int mid = (outside + inside) / 2;
+		boolean outsideAbove = outside > mid;
+		if (leading) {
+			for (int i = 0; i < profile.length; i++) {
+				if ((profile[i] > mid) != outsideAbove) {
+					return from + i;
+				}
+			}
+		} else {
+			for (int i = profile.length - 1; i >= 0; i--) {
+				if ((profile[i] > mid) != outsideAbove) {
+					return from + i + 1;
+				}
+			}
+		}
+		return edge;
+	}
+
+	/**
+	 * Compute the mean luminance of each column (vertical edge) or row (horizontal edge) of the strip.
+	 */
+	private static int[] profile(BufferedImage image, int from, int to, int start, int end, boolean vertical) {
+		int size = to - from;
+		int length = end - start;
+		long[] sums = new long[size];
+		int[] rgb = vertical ? image.getRGB(from, start, size, length, null, 0, size)
+				: image.getRGB(start, from, length, size, null, 0, length);
+		for (int i = 0; i < rgb.length; i++) {
+			sums[vertical ? i % size : i / length] += LuminanceConverter.luminance(rgb[i]);
+		}
+		int[] profile = new int[size];
+		for (int i = 0; i < size; i++) {
+			profile[i] = (int) (sums[i] / length);
+		}
+		return profile;
+	}
+}
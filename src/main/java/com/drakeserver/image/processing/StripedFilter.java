@@ -0,0 +1,94 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Runs a neighbourhood filter over horizontal bands of an 8-bit image in parallel on the
+ * {@link CpuPool}.  Each band is copied with <code>halo</code> rows of context above and below
+ * (clipped to the image), filtered on its own and only its own rows are copied back.  As long as
+ * the halo covers the radius of the filter every row sees exactly the neighbours it would in the
+ * full image, so the result is bit-identical to filtering the whole image on one thread.  The
+ * bands are copied before any are filtered so no band reads the rows another has written.
+ *
+ */
+class StripedFilter {
+
+	/**
+	 * Bands are not made shorter than this so the halo stays small relative to the band.
+	 */
+	static final int MIN_BAND_HEIGHT = 64;
+
+	private final CpuPool pool;
+	private final int bands;
+
+	/**
+	 * @param bands the number of bands to split an image into (1 filters in place)
+	 */
+	StripedFilter(CpuPool pool, int bands) {
+		this.pool = pool;
+		this.bands = Math.max(1, bands);
+	}
+
+	int getBands() {
+		return bands;
+	}
+
+	/**
+	 * Filter the image in place.
+	 *
+	 * @param halo the rows of context each band needs above and below (at least the radius of the
+	 *   filter)
+	 * @param filter the filter applied to the image (or to each band)
+	 */
+	void apply(ByteProcessor bp, int halo, Consumer<ByteProcessor> filter) {
+		int width = bp.getWidth();
+		int height = bp.getHeight();
+		int count = Math.min(bands, height / MIN_BAND_HEIGHT);
+		if (count <= 1) {
+			filter.accept(bp);
+			return;
+		}
+		byte[] pixels = (byte[]) bp.getPixels();
+		List<Callable<Void>> tasks = new ArrayList<>(count);
+		for (int b = 0; b < count; b++) {
+			int y0 = (int) ((long) height * b / count);
+			int y1 = (int) ((long) height * (b + 1) / count);
+			int from = Math.max(0, y0 - halo);
+			int to = Math.min(height, y1 + halo);
+			byte[] band = new byte[(to - from) * width];
+			System.arraycopy(pixels, from * width, band, 0, band.length);
+			tasks.add(() -> {
+				filter.accept(new ByteProcessor(width, to - from, band));
+				System.arraycopy(band, (y0 - from) * width, pixels, y0 * width, (y1 - y0) * width);
+				return null;
+			});
+		}
+		try {
+			pool.invokeAll(tasks);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
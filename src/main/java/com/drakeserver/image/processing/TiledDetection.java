@@ -0,0 +1,558 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.image.processing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.BoundingBoxBuffer;
+import com.drakeserver.image.processing.ComponentLabeller.Connectivity;
+
+/**
+ * Support for detecting particles on very large images by splitting the page into tiles.  Each tile
+ * is prepared with enough context around it (see {@link DetectionPipeline#getHalo()}) for the mask of
+ * its core to match the mask of the whole page, and only the core is kept.  The cores partition the
+ * page so every pixel is counted by exactly one tile.
+ * <p>
+ * The components of each core are summarized as a {@link Tile}: their bounds and areas, the labels
+ * of the pixels along the edges of the core and, when the holes are filled, the background
+ * components and which particles they touch.  The tiles are then joined by the adjacency of the
+ * pixels on either side of each seam: particles are 8-connected and the background 4-connected as
+ * they are on the whole page.  A background component which does not reach the edge of the page is
+ * a hole and joins the particles around it, just as filling the holes of the page would.  The
+ * particles found are the same, with the same bounds and areas, as those of the whole page.
+ *
+ */
+public class TiledDetection {
+
+	/**
+	 * The components within the core of one tile.  The particles are numbered first (in the raster
+	 * order of their first pixel) followed by the background components which reach the edge of the
+	 * core.  Particles which enclose a hole within the core are already joined and the hole counted
+	 * in their area.  The bounds are in page coordinates.
+	 */
+	public static class Tile {
+		private final BoundingBox core;
+		private int particles;
+		private int size;
+		private int[] minX;
+		private int[] minY;
+		private int[] maxX;
+		private int[] maxY;
+		private long[] area;
+		private int[] firstX;
+		private int[] firstY;
+		private boolean[] outside;
+		// the component of each pixel along the edges of the core (-1 for an unlabelled background)
+		private int[] top;
+		private int[] bottom;
+		private int[] left;
+		private int[] right;
+		// pairs of a background component and a particle it touches
+		private int[] touching;
+
+		Tile(BoundingBox core) {
+			this.core = core;
+		}
+
+		public BoundingBox getCore() {
+			return core;
+		}
+
+		/**
+		 * The number of particles (or parts of particles) in the core.
+		 */
+		public int getParticles() {
+			return particles;
+		}
+
+		/**
+		 * The number of components in the core including the background components.
+		 */
+		public int size() {
+			return size;
+		}
+
+		private boolean isParticle(int i) {
+			return i < particles;
+		}
+	}
+
+	private TiledDetection() { }
+
+	/**
+	 * Split an image into tiles of at most <code>tileSize</code> square with each tile extended by
+	 * <code>overlap</code> pixels into its neighbours (clamped to the image bounds).
+	 *
+	 * @param width the image width
+	 * @param height the image height
+	 * @param tileSize the size of the tile core
+	 * @param overlap the number of pixels each tile extends past its core on every side
+	 * @return the tiles in row order
+	 */
+	public static List<BoundingBox> createTiles(int width, int height, int tileSize, int overlap) {
+		if (tileSize <= 0) {
+			throw new IllegalArgumentException("Tile size must be greater than zero");
+		}
+		List<BoundingBox> tiles = new ArrayList<>();
+		for (int y = 0; y < height; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize) {
+				int x0 = Math.max(0, x - overlap);
+				int y0 = Math.max(0, y - overlap);
+				int x1 = Math.min(width, x + tileSize + overlap);
+				int y1 = Math.min(height, y + tileSize + overlap);
+				tiles.add(new BoundingBox(x0, y0, x1 - x0, y1 - y0));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Summarize the components of the mask of a tile's core.
+	 *
+	 * @param mask the mask of the core, before the holes are filled
+	 * @param core the bounds of the core in the page
+	 * @param pageWidth the width of the page
+	 * @param pageHeight the height of the page
+	 * @param fillHoles whether the holes of the page are filled (which needs the background components)
+	 */
+	public static Tile analyze(BinaryMask mask, BoundingBox core, int pageWidth, int pageHeight, boolean fillHoles) {
+		int width = mask.getWidth();
+		int height = mask.getHeight();
+		ComponentLabeller particles = new ComponentLabeller(Connectivity.EIGHT);
+		int count = particles.label(mask);
+		ComponentLabeller background = null;
+		int backgroundCount = 0;
+		if (fillHoles) {
+			background = new ComponentLabeller(Connectivity.FOUR);
+			backgroundCount = background.label(mask.invert());
+		}
+
+		// the particles joined through a hole within the core, and the open background each touches
+		int[] parent = identity(count);
+		int[] holeOwner = new int[backgroundCount];
+		int[] lastTouched = new int[backgroundCount];
+		Arrays.fill(holeOwner, -1);
+		Arrays.fill(lastTouched, -1);
+		long[] touching = new long[16];
+		int touchingCount = 0;
+		if (fillHoles) {
+			// each row is labelled with the particle, or the complement of the background component
+			int[] above = new int[width];
+			int[] current = new int[width];
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				particles.labelRow(y, current);
+				background.labelRow(y, row);
+				for (int x = 0; x < width; x++) {
+					if (current[x] < 0) {
+						current[x] = ~row[x];
+					}
+				}
+				for (int x = 0; x < width; x++) {
+					int c = current[x];
+					for (int n = 0; n < 2; n++) {
+						int neighbour;
+						if (n == 0) {
+							if (x == 0) {
+								continue;
+							}
+							neighbour = current[x - 1];
+						} else {
+							if (y == 0) {
+								continue;
+							}
+							neighbour = above[x];
+						}
+						if ((c ^ neighbour) >= 0) {
+							continue;
+						}
+						int particle = Math.max(c, neighbour);
+						int b = ~Math.min(c, neighbour);
+						if (!background.touchesEdge(b)) {
+							if (holeOwner[b] < 0) {
+								holeOwner[b] = particle;
+							} else {
+								union(parent, particle, holeOwner[b]);
+							}
+						} else if (lastTouched[b] != particle) {
+							lastTouched[b] = particle;
+							if (touchingCount == touching.length) {
+								touching = Arrays.copyOf(touching, touchingCount * 2);
+							}
+							touching[touchingCount++] = ((long) b << 32) | particle;
+						}
+					}
+				}
+				int[] spare = above;
+				above = current;
+				current = spare;
+			}
+		}
+
+		// number the joined particles then the open background components
+		int[] id = new int[count + backgroundCount];
+		Arrays.fill(id, -1);
+		int joined = 0;
+		for (int i = 0; i < count; i++) {
+			int root = find(parent, i);
+			if (id[root] < 0) {
+				id[root] = joined++;
+			}
+			id[i] = id[root];
+		}
+		int size = joined;
+		for (int b = 0; b < backgroundCount; b++) {
+			if (background.touchesEdge(b)) {
+				id[count + b] = size++;
+			}
+		}
+
+		Tile tile = new Tile(core);
+		tile.particles = joined;
+		tile.size = size;
+		tile.minX = new int[size];
+		tile.minY = new int[size];
+		tile.maxX = new int[size];
+		tile.maxY = new int[size];
+		tile.area = new long[size];
+		tile.firstX = new int[size];
+		tile.firstY = new int[size];
+		tile.outside = new boolean[size];
+		Arrays.fill(tile.minX, Integer.MAX_VALUE);
+		Arrays.fill(tile.minY, Integer.MAX_VALUE);
+		Arrays.fill(tile.maxX, Integer.MIN_VALUE);
+		Arrays.fill(tile.maxY, Integer.MIN_VALUE);
+		Arrays.fill(tile.firstY, -1);
+		for (int i = 0; i < count; i++) {
+			int c = id[i];
+			add(tile, c, particles.getX(i), particles.getY(i), particles.getWidth(i), particles.getHeight(i), particles.getArea(i));
+			// the particles are in raster order so the first of those joined has the first pixel
+			if (tile.firstY[c] < 0) {
+				tile.firstX[c] = core.getX() + particles.getFirstX(i);
+				tile.firstY[c] = core.getY() + particles.getY(i);
+			}
+		}
+		for (int b = 0; b < backgroundCount; b++) {
+			int c = background.touchesEdge(b) ? id[count + b] : (holeOwner[b] >= 0 ? id[holeOwner[b]] : -1);
+			if (c >= 0) {
+				add(tile, c, background.getX(b), background.getY(b), background.getWidth(b), background.getHeight(b), background.getArea(b));
+			}
+		}
+		for (int c = 0; c < size; c++) {
+			tile.minX[c] += core.getX();
+			tile.maxX[c] += core.getX();
+			tile.minY[c] += core.getY();
+			tile.maxY[c] += core.getY();
+			tile.outside[c] = c >= joined && (tile.minX[c] == 0 || tile.minY[c] == 0
+					|| tile.maxX[c] == pageWidth - 1 || tile.maxY[c] == pageHeight - 1);
+		}
+
+		tile.top = new int[width];
+		tile.bottom = new int[width];
+		tile.left = new int[height];
+		tile.right = new int[height];
+		for (int x = 0; x < width; x++) {
+			tile.top[x] = label(particles, background, id, count, x, 0);
+			tile.bottom[x] = label(particles, background, id, count, x, height - 1);
+		}
+		for (int y = 0; y < height; y++) {
+			tile.left[y] = label(particles, background, id, count, 0, y);
+			tile.right[y] = label(particles, background, id, count, width - 1, y);
+		}
+
+		Arrays.sort(touching, 0, touchingCount);
+		tile.touching = new int[touchingCount * 2];
+		int pairs = 0;
+		long previous = -1L;
+		for (int i = 0; i < touchingCount; i++) {
+			long pair = ((touching[i] >>> 32) << 32) | id[(int) touching[i]];
+			if (pair != previous) {
+				tile.touching[pairs++] = id[count + (int) (touching[i] >>> 32)];
+				tile.touching[pairs++] = id[(int) touching[i]];
+				previous = pair;
+			}
+		}
+		tile.touching = Arrays.copyOf(tile.touching, pairs);
+		return tile;
+	}
+
+	/**
+	 * Merge the tiles into the particles of the page.  The particles are filtered by area and, if
+	 * requested, any particle touching the edge of the page is discarded (matching the behavior of
+	 * the <code>EXCLUDE_EDGE_PARTICLES</code> option of the particle analyzer).
+	 *
+	 * @param tiles the tiles whose cores cover the page, in row order
+	 * @param pageWidth the width of the page
+	 * @param pageHeight the height of the page
+	 * @param minimumArea the minimum particle area to keep
+	 * @param excludeEdges whether to remove particles touching the edge of the page
+	 * @return the bounds of the particles in the raster order of their first pixel
+	 */
+	public static BoundingBoxBuffer merge(List<Tile> tiles, int pageWidth, int pageHeight, long minimumArea, boolean excludeEdges) {
+		int[] offsets = new int[tiles.size() + 1];
+		for (int t = 0; t < tiles.size(); t++) {
+			offsets[t + 1] = offsets[t] + tiles.get(t).size();
+		}
+		int total = offsets[tiles.size()];
+		boolean[] particle = new boolean[total];
+		for (int t = 0; t < tiles.size(); t++) {
+			Arrays.fill(particle, offsets[t], offsets[t] + tiles.get(t).getParticles(), true);
+		}
+		Merge merge = new Merge(particle);
+
+		// the tiles of each row of the page, joined along the seams within the row and to the row above
+		Map<Integer, List<Integer>> rows = new LinkedHashMap<>();
+		for (int t = 0; t < tiles.size(); t++) {
+			rows.computeIfAbsent(tiles.get(t).getCore().getY(), y -> new ArrayList<>()).add(t);
+		}
+		int[] upper = null;
+		for (List<Integer> row : rows.values()) {
+			int[] lower = new int[pageWidth];
+			int[] bottom = new int[pageWidth];
+			for (int k = 0; k < row.size(); k++) {
+				int t = row.get(k);
+				Tile tile = tiles.get(t);
+				int x0 = tile.getCore().getX();
+				for (int x = 0; x < tile.top.length; x++) {
+					lower[x0 + x] = global(tile.top[x], offsets[t]);
+					bottom[x0 + x] = global(tile.bottom[x], offsets[t]);
+				}
+				if (k > 0) {
+					int s = row.get(k - 1);
+					merge.join(tiles.get(s).right, offsets[s], tile.left, offsets[t]);
+				}
+			}
+			if (upper != null) {
+				merge.join(upper, 0, lower, 0);
+			}
+			upper = bottom;
+		}
+
+		// a background component which does not reach the edge of the page is a hole
+		boolean[] outside = new boolean[total];
+		for (int t = 0; t < tiles.size(); t++) {
+			Tile tile = tiles.get(t);
+			for (int c = tile.getParticles(); c < tile.size(); c++) {
+				if (tile.outside[c]) {
+					outside[merge.find(offsets[t] + c)] = true;
+				}
+			}
+		}
+		boolean[] hole = new boolean[total];
+		for (int g = 0; g < total; g++) {
+			hole[g] = !particle[g] && !outside[merge.find(g)];
+		}
+		for (int t = 0; t < tiles.size(); t++) {
+			int[] touching = tiles.get(t).touching;
+			for (int i = 0; i < touching.length; i += 2) {
+				merge.touch(offsets[t] + touching[i], offsets[t] + touching[i + 1]);
+			}
+		}
+		for (int i = 0; i < merge.touchingCount; i += 2) {
+			if (hole[merge.touching[i]]) {
+				merge.union(merge.touching[i], merge.touching[i + 1]);
+			}
+		}
+		for (int g = 0; g < total; g++) {
+			if (merge.touched[g] >= 0 && hole[g]) {
+				merge.union(g, merge.touched[g]);
+			}
+		}
+
+		// accumulate the particles (with the holes they enclose) by their root
+		int[] minX = new int[total];
+		int[] minY = new int[total];
+		int[] maxX = new int[total];
+		int[] maxY = new int[total];
+		long[] area = new long[total];
+		long[] first = new long[total];
+		Arrays.fill(minX, Integer.MAX_VALUE);
+		Arrays.fill(minY, Integer.MAX_VALUE);
+		Arrays.fill(maxX, Integer.MIN_VALUE);
+		Arrays.fill(maxY, Integer.MIN_VALUE);
+		Arrays.fill(first, Long.MAX_VALUE);
+		for (int t = 0; t < tiles.size(); t++) {
+			Tile tile = tiles.get(t);
+			for (int c = 0; c < tile.size(); c++) {
+				int g = offsets[t] + c;
+				if (!particle[g] && !hole[g]) {
+					continue;
+				}
+				int root = merge.find(g);
+				minX[root] = Math.min(minX[root], tile.minX[c]);
+				minY[root] = Math.min(minY[root], tile.minY[c]);
+				maxX[root] = Math.max(maxX[root], tile.maxX[c]);
+				maxY[root] = Math.max(maxY[root], tile.maxY[c]);
+				area[root] += tile.area[c];
+				if (particle[g]) {
+					first[root] = Math.min(first[root], (long) tile.firstY[c] * pageWidth + tile.firstX[c]);
+				}
+			}
+		}
+
+		long maximumArea = (long) pageWidth * pageHeight;
+		List<Integer> found = new ArrayList<>();
+		for (int g = 0; g < total; g++) {
+			if (merge.find(g) != g || first[g] == Long.MAX_VALUE || area[g] < minimumArea || area[g] > maximumArea) {
+				continue;
+			}
+			if (excludeEdges && (minX[g] == 0 || minY[g] == 0 || maxX[g] == pageWidth - 1 || maxY[g] == pageHeight - 1)) {
+				continue;
+			}
+			found.add(g);
+		}
+		found.sort((a, b) -> Long.compare(first[a], first[b]));
+		BoundingBoxBuffer boxes = new BoundingBoxBuffer(found.size());
+		for (int g : found) {
+			boxes.add(minX[g], minY[g], maxX[g] - minX[g] + 1, maxY[g] - minY[g] + 1);
+		}
+		return boxes;
+	}
+
+	/**
+	 * The union-find over the components of all of the tiles, with the pairs of background
+	 * components and particles found to touch across the seams.
+	 */
+	private static class Merge {
+		private final boolean[] particle;
+		private final int[] parent;
+		// the one particle each background component was first seen to touch, and any others
+		private final int[] touched;
+		private int[] touching = new int[16];
+		private int touchingCount;
+
+		Merge(boolean[] particle) {
+			this.particle = particle;
+			this.parent = identity(particle.length);
+			this.touched = new int[particle.length];
+			Arrays.fill(touched, -1);
+		}
+
+		int find(int i) {
+			return TiledDetection.find(parent, i);
+		}
+
+		void union(int a, int b) {
+			TiledDetection.union(parent, a, b);
+		}
+
+		/**
+		 * Join the neighbouring pixels either side of a seam: the edge <code>a</code> of one side and
+		 * the edge <code>b</code> along the same pixels of the other.
+		 */
+		void join(int[] a, int offsetA, int[] b, int offsetB) {
+			for (int i = 0; i < a.length; i++) {
+				int p = global(a[i], offsetA);
+				connect(p, global(b[i], offsetB));
+				// diagonal neighbours only join particles
+				if (p >= 0 && particle[p]) {
+					if (i > 0) {
+						connectParticles(p, global(b[i - 1], offsetB));
+					}
+					if (i + 1 < b.length) {
+						connectParticles(p, global(b[i + 1], offsetB));
+					}
+				}
+			}
+		}
+
+		private void connect(int a, int b) {
+			if (a < 0 || b < 0) {
+				return;
+			}
+			if (particle[a] == particle[b]) {
+				union(a, b);
+			} else if (particle[a]) {
+				touch(b, a);
+			} else {
+				touch(a, b);
+			}
+		}
+
+		private void connectParticles(int a, int b) {
+			if (b >= 0 && particle[b]) {
+				union(a, b);
+			}
+		}
+
+		/**
+		 * Record that the background component touches the particle.
+		 */
+		void touch(int background, int particle) {
+			if (touched[background] < 0) {
+				touched[background] = particle;
+			} else if (touched[background] != particle) {
+				if (touchingCount == touching.length) {
+					touching = Arrays.copyOf(touching, touchingCount * 2);
+				}
+				touching[touchingCount++] = background;
+				touching[touchingCount++] = particle;
+			}
+		}
+	}
+
+	private static int global(int label, int offset) {
+		return (label < 0) ? -1 : offset + label;
+	}
+
+	/**
+	 * The component of the pixel of the core, numbered as in the {@link Tile}.
+	 */
+	private static int label(ComponentLabeller particles, ComponentLabeller background, int[] id, int count, int x, int y) {
+		int p = particles.labelAt(x, y);
+		if (p >= 0) {
+			return id[p];
+		}
+		return (background != null) ? id[count + background.labelAt(x, y)] : -1;
+	}
+
+	private static void add(Tile tile, int c, int x, int y, int width, int height, long area) {
+		tile.minX[c] = Math.min(tile.minX[c], x);
+		tile.minY[c] = Math.min(tile.minY[c], y);
+		tile.maxX[c] = Math.max(tile.maxX[c], x + width - 1);
+		tile.maxY[c] = Math.max(tile.maxY[c], y + height - 1);
+		tile.area[c] += area;
+	}
+
+	private static int[] identity(int size) {
+		int[] parent = new int[size];
+		for (int i = 0; i < size; i++) {
+			parent[i] = i;
+		}
+		return parent;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra != rb) {
+			parent[Math.max(ra, rb)] = Math.min(ra, rb);
+		}
+	}
+}
@@ -19,5 +19,7 @@ public interface MessageConstants {
 
 	public static final String STATUS_MESSAGE = "/data/status-msg";
 	public static final String MEMORY_STATS = "/data/memory-stats";
+	/** The prefix of the per job destinations (followed by the job id) */
+	public static final String JOB_STATUS_PREFIX = "/data/jobs/";
 }
 
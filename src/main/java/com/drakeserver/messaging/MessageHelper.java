@@ -28,4 +28,8 @@ public class MessageHelper {
 	public void dispatchMessage(String destination, String msg) {
 		template.convertAndSend(destination, msg);
 	}
+
+	public void dispatchMessage(String destination, Object payload) {
+		template.convertAndSend(destination, payload);
+	}
 }
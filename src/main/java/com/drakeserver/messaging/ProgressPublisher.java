@@ -0,0 +1,113 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.messaging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Publishes the progress messages on a single dispatch thread so the processing threads never wait
+ * on the clients.  The progress of a destination is coalesced: only the latest message is kept
+ * while one is pending and a destination is sent at most one message every
+ * <code>progress.intervalMillis</code>, so a stage repeated in a tight loop (or a client which is
+ * slow or gone) costs the processing nothing more than replacing the pending message.
+ *
+ */
+@Service
+public class ProgressPublisher {
+
+	static final Logger LOGGER = Logger.getLogger(ProgressPublisher.class.getName());
+
+	public static final long INTERVAL_DEFAULT = 250L;
+
+	private final MessageHelper messageHelper;
+	private final long intervalNanos;
+	private final ScheduledExecutorService dispatcher;
+	private final Map<String, Object> pending = new ConcurrentHashMap<>();
+	private final Map<String, Long> lastSent = new ConcurrentHashMap<>();
+
+	@Autowired
+	public ProgressPublisher(MessageHelper messageHelper, @Value("${progress.intervalMillis:" + INTERVAL_DEFAULT + "}") long intervalMillis) {
+		this.messageHelper = messageHelper;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, intervalMillis));
+		this.dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "progress-publisher");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Publish the progress to the destination, replacing any progress of the destination not yet
+	 * sent.  Returns immediately.
+	 */
+	public void publish(String destination, Object payload) {
+		if (pending.put(destination, payload) == null) {
+			Long last = lastSent.get(destination);
+			long delay = (last != null) ? Math.max(0L, last + intervalNanos - System.nanoTime()) : 0L;
+			dispatcher.schedule(() -> flush(destination), delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Publish the final message of the destination (such as the finished job) after any pending
+	 * progress of the destination.  The message is never coalesced.  Returns immediately.
+	 */
+	public void publishFinal(String destination, Object payload) {
+		dispatcher.execute(() -> {
+			flush(destination);
+			lastSent.remove(destination);
+			send(destination, payload);
+		});
+	}
+
+	private void flush(String destination) {
+		// the time is recorded first so a message published meanwhile is delayed by the interval
+		lastSent.put(destination, System.nanoTime());
+		Object payload = pending.remove(destination);
+		if (payload != null) {
+			send(destination, payload);
+		}
+	}
+
+	private void send(String destination, Object payload) {
+		try {
+			if (payload instanceof String msg) {
+				messageHelper.dispatchMessage(destination, msg);
+			} else {
+				messageHelper.dispatchMessage(destination, payload);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.FINE, "Unable to send to " + destination, e);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		dispatcher.shutdownNow();
+	}
+}
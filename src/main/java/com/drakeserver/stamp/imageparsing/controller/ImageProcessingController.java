@@ -15,18 +15,48 @@
  */
 package com.drakeserver.stamp.imageparsing.controller;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.drakeserver.image.model.BatchResult;
 import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.CacheStatistics;
+import com.drakeserver.image.model.ExportRegion;
+import com.drakeserver.image.model.ExportResult;
+import com.drakeserver.image.model.ProcessingJob;
+import com.drakeserver.image.model.SweepResult;
+import com.drakeserver.image.processing.BatchProcessingService;
+import com.drakeserver.image.processing.DetectionCache;
+import com.drakeserver.image.processing.ExportService;
 import com.drakeserver.image.processing.ImageProcessorService;
+import com.drakeserver.image.processing.JobRejectedException;
+import com.drakeserver.image.processing.ProcessingJobService;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController
 public class ImageProcessingController {
@@ -34,11 +64,211 @@ public class ImageProcessingController {
 	@Autowired
 	private ImageProcessorService imageProcessorService;
 
+	@Autowired
+	private ProcessingJobService processingJobService;
+
+	@Autowired
+	private BatchProcessingService batchProcessingService;
+
+	@Autowired
+	private ExportService exportService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private DetectionCache detectionCache;
+
 	@RequestMapping(value = "/api/svc/process-image", method = RequestMethod.POST)
 	public List<BoundingBox> processImage(@RequestBody Map<String, ?> payload) throws IOException {
-		List<BoundingBox> bounds = imageProcessorService.process(payload);
-		System.gc();
-		return bounds;
+		return imageProcessorService.process(payload);
+	}
+
+	/**
+	 * Process the raw image bytes sent as the request body.  The processing options are
+	 * supplied as query parameters (ie. <code>?padding=20&amp;dilationCount=1</code>).  A body
+	 * larger than the memory available for processing is rejected with <code>413</code>, either
+	 * up front from its length or (when it is chunked) once that much has been read.
+	 */
+	@RequestMapping(value = "/api/svc/process-image", method = RequestMethod.POST, consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public List<BoundingBox> processImageStream(InputStream body, @RequestParam Map<String, String> options,
+			@RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long length) throws IOException {
+		long limit = imageProcessorService.getMaxUploadBytes();
+		if (length != null && length > limit) {
+			throw new MaxUploadSizeExceededException(limit);
+		}
+		return imageProcessorService.process(new BoundedInputStream(body, limit), options);
+	}
+
+	/**
+	 * Process an image uploaded as the <code>file</code> part of a multipart request with the
+	 * processing options supplied as an optional JSON <code>options</code> part.  An upload larger
+	 * than the memory available for processing is rejected with <code>413</code>.
+	 */
+	@RequestMapping(value = "/api/svc/process-image", method = RequestMethod.POST, consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+	public List<BoundingBox> processImageMultipart(@RequestPart("file") MultipartFile file,
+			@RequestPart(value = "options", required = false) Map<String, ?> options) throws IOException {
+		try (InputStream in = file.getInputStream()) {
+			return imageProcessorService.process(in, options);
+		}
+	}
+
+	/**
+	 * Detect one image (with the same payload as <code>/api/svc/process-image</code>) with each of the
+	 * option sets in <code>variants</code>, returning the boxes and processing time of each variant.
+	 * The image is decoded once and the variants which differ only in the padding, minimum size or
+	 * overlap options share the image preparation.
+	 */
+	@RequestMapping(value = "/api/svc/process-sweep", method = RequestMethod.POST)
+	public List<SweepResult> processSweep(@RequestBody Map<String, ?> payload) throws IOException {
+		return imageProcessorService.sweep(payload);
+	}
+
+	/**
+	 * Queue the image (with the same payload as <code>/api/svc/process-image</code>) for processing
+	 * and return the job immediately.  The status messages and the finished job are sent to the
+	 * job's <code>destination</code> and the job may also be polled with <code>GET</code>.  Responds
+	 * with <code>429</code> when the processing queue is full.
+	 */
+	@RequestMapping(value = "/api/svc/jobs", method = RequestMethod.POST)
+	public ResponseEntity<ProcessingJob> submitJob(@RequestBody Map<String, ?> payload) {
+		return ResponseEntity.status(HttpStatus.ACCEPTED).body(processingJobService.submit(payload));
+	}
+
+	@RequestMapping(value = "/api/svc/jobs/{id}", method = RequestMethod.GET)
+	public ResponseEntity<ProcessingJob> getJob(@PathVariable("id") String id) {
+		ProcessingJob job = processingJobService.getJob(id);
+		return (job != null) ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+	}
+
+	/**
+	 * Process the images of a <code>directory</code> (optionally matching a <code>glob</code>) with
+	 * the processing <code>options</code>, using up to <code>parallelism</code> workers.  One line of
+	 * JSON is streamed for each file as it completes.  An invalid <code>parallelism</code> is
+	 * rejected with <code>400</code> before the response starts.
+	 */
+	@RequestMapping(value = "/api/svc/process-batch", method = RequestMethod.POST, produces = "application/x-ndjson")
+	public ResponseEntity<StreamingResponseBody> processBatch(@RequestBody Map<String, ?> payload) throws IOException {
+		batchProcessingService.getRequestedParallelism(payload);
+		List<Path> files = batchProcessingService.listFiles(payload);
+		StreamingResponseBody body = (OutputStream out) -> {
+			batchProcessingService.process(files, payload, (BatchResult result) -> {
+				try {
+					out.write(objectMapper.writeValueAsBytes(result));
+					out.write("\n".getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		};
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(body);
+	}
+
+	/**
+	 * Crop the <code>regions</code> (each a <code>box</code> and <code>filename</code>) of the image
+	 * (given by <code>filename</code> or the data URL of <code>file</code>) and write them to the
+	 * <code>folder</code> in the <code>format</code> (jpg, png or tiff) and <code>quality</code>.
+	 * Existing files are reported rather than replaced unless <code>overwrite</code> is set.  One
+	 * line of JSON is streamed for each region as its file is written.
+	 */
+	@RequestMapping(value = "/api/svc/export-regions", method = RequestMethod.POST, produces = "application/x-ndjson")
+	public ResponseEntity<StreamingResponseBody> exportRegions(@RequestBody Map<String, ?> payload) throws IOException {
+		List<ExportRegion> regions = exportService.getRegions(payload);
+		StreamingResponseBody body = (OutputStream out) -> {
+			exportService.export(regions, payload, (ExportResult result) -> {
+				try {
+					out.write(objectMapper.writeValueAsBytes(result));
+					out.write("\n".getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		};
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(body);
+	}
+
+	@RequestMapping(value = "/api/svc/cache-statistics", method = RequestMethod.GET)
+	public CacheStatistics getCacheStatistics() {
+		return detectionCache.getStatistics();
+	}
+
+	/**
+	 * The processing metrics (request counters, memory and queue gauges and the time of each step of
+	 * the detection) in the Prometheus text format.
+	 */
+	@RequestMapping(value = "/api/svc/metrics", method = RequestMethod.GET, produces = "text/plain;version=0.0.4;charset=utf-8")
+	public String getMetrics() {
+		return imageProcessorService.getMetrics().scrape();
+	}
+
+	@ExceptionHandler(JobRejectedException.class)
+	public ResponseEntity<String> jobRejected(JobRejectedException e) {
+		return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header("Retry-After", "5").body(e.getMessage());
+	}
+
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+		return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+	}
+
+	@ExceptionHandler(MaxUploadSizeExceededException.class)
+	public ResponseEntity<String> uploadTooLarge(MaxUploadSizeExceededException e) {
+		return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body("The upload exceeds the "
+				+ (imageProcessorService.getMaxUploadBytes() >> 20) + "MB available for processing");
+	}
+
+	/**
+	 * A request body which fails with {@link MaxUploadSizeExceededException} once more than the
+	 * limit is read, so an image streamed without a length is not spooled or decoded past it.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+
+		private final long limit;
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				consumed(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				consumed(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			consumed(skipped);
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void consumed(long n) {
+			remaining -= n;
+			if (remaining < 0) {
+				throw new MaxUploadSizeExceededException(limit);
+			}
+		}
 	}
-	
 }
@@ -15,6 +15,7 @@
  */
 package com.drakeserver.ws;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.SendTo;
 import org.springframework.stereotype.Controller;
@@ -24,15 +25,21 @@ import com.drakeserver.ws.model.MemoryInfoModel;
 
 @Controller
 public class MemoryInfo {
-	 
+
+	private final MemoryStatsPublisher memoryStatsPublisher;
+
+	@Autowired
+	public MemoryInfo(MemoryStatsPublisher memoryStatsPublisher) {
+		this.memoryStatsPublisher = memoryStatsPublisher;
+	}
+
+	/**
+	 * The statistics are pushed by the {@link MemoryStatsPublisher} when they change, this replies
+	 * with the latest so a client which has just subscribed need not wait for a change.
+	 */
 	@MessageMapping("/memory-info") 
 	@SendTo(MessageConstants.MEMORY_STATS)
 	public MemoryInfoModel getMemoryInformation() {
-		MemoryInfoModel model = new MemoryInfoModel();
-		Runtime rt = Runtime.getRuntime();
-		model.setFreeMemory(rt.freeMemory());
-		model.setMaxMemory(rt.maxMemory());
-		model.setTotalMemory(rt.totalMemory());
-		return model;
+		return memoryStatsPublisher.getLatest();
 	}
 }
@@ -0,0 +1,195 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.ws;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.drakeserver.image.processing.ImageProcessorService;
+import com.drakeserver.image.processing.ProcessingJobService;
+import com.drakeserver.messaging.MessageConstants;
+import com.drakeserver.messaging.MessageHelper;
+import com.drakeserver.ws.model.MemoryInfoModel;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Pushes the JVM memory, garbage collection and CPU statistics along with the processing load to
+ * {@link MessageConstants#MEMORY_STATS} every <code>memoryStats.intervalMillis</code> so the clients
+ * no longer poll for them.  A tick is only pushed when something has changed since the last push:
+ * a collection ran, the heap or non-heap use moved by at least
+ * <code>memoryStats.changeBytes</code>, the CPU load moved by more than a percent or the thread,
+ * job, image or pooled buffer figures differ.  An idle server therefore sends nothing.
+ *
+ */
+@Component
+public class MemoryStatsPublisher {
+
+	static final Logger LOGGER = Logger.getLogger(MemoryStatsPublisher.class.getName());
+
+	public static final long INTERVAL_DEFAULT = 2000L;
+	public static final long CHANGE_BYTES_DEFAULT = 1048576L;
+
+	private static final double CPU_CHANGE = 0.01;
+
+	private final MessageHelper messageHelper;
+	private final ImageProcessorService imageProcessorService;
+	private final ProcessingJobService jobService;
+	private final long intervalMillis;
+	private final long changeBytes;
+	private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+	private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+
+	private ScheduledExecutorService scheduler;
+	private long gcCount;
+	private long gcMillis;
+	private volatile MemoryInfoModel latest;
+	private MemoryInfoModel lastSent;
+
+	@Autowired
+	public MemoryStatsPublisher(MessageHelper messageHelper, ImageProcessorService imageProcessorService, ProcessingJobService jobService,
+			@Value("${memoryStats.intervalMillis:" + INTERVAL_DEFAULT + "}") long intervalMillis,
+			@Value("${memoryStats.changeBytes:" + CHANGE_BYTES_DEFAULT + "}") long changeBytes) {
+		this.messageHelper = messageHelper;
+		this.imageProcessorService = imageProcessorService;
+		this.jobService = jobService;
+		this.intervalMillis = intervalMillis;
+		this.changeBytes = Math.max(0L, changeBytes);
+	}
+
+	@PostConstruct
+	public void start() {
+		if (intervalMillis <= 0) {
+			LOGGER.info("The memory statistics are not pushed (memoryStats.intervalMillis is 0)");
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "memory-stats");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::tick, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * The statistics of the latest tick (collected now if there has not been one).
+	 */
+	public MemoryInfoModel getLatest() {
+		MemoryInfoModel model = latest;
+		return (model != null) ? model : collect();
+	}
+
+	/**
+	 * Collect the statistics and push them if they have changed since the last push.
+	 *
+	 * @return whether the statistics were pushed
+	 */
+	synchronized boolean tick() {
+		try {
+			MemoryInfoModel model = collect();
+			latest = model;
+			if (!isChanged(lastSent, model, changeBytes)) {
+				return false;
+			}
+			messageHelper.dispatchMessage(MessageConstants.MEMORY_STATS, model);
+			lastSent = model;
+			return true;
+		} catch (RuntimeException e) {
+			// a failed tick must not cancel the schedule
+			LOGGER.log(Level.FINE, "Unable to push the memory statistics", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Collect the statistics with the collection count and pause time since the previous call.
+	 */
+	synchronized MemoryInfoModel collect() {
+		MemoryInfoModel model = new MemoryInfoModel();
+		Runtime rt = Runtime.getRuntime();
+		model.setFreeMemory(rt.freeMemory());
+		model.setMaxMemory(rt.maxMemory());
+		model.setTotalMemory(rt.totalMemory());
+
+		MemoryUsage heap = memoryBean.getHeapMemoryUsage();
+		MemoryUsage nonHeap = memoryBean.getNonHeapMemoryUsage();
+		model.setHeapUsed(heap.getUsed());
+		model.setHeapCommitted(heap.getCommitted());
+		model.setNonHeapUsed(nonHeap.getUsed());
+		model.setNonHeapCommitted(nonHeap.getCommitted());
+
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			// either is -1 when the collector does not report it
+			count += Math.max(0L, gc.getCollectionCount());
+			millis += Math.max(0L, gc.getCollectionTime());
+		}
+		model.setGcCount(count - gcCount);
+		model.setGcPauseMillis(millis - gcMillis);
+		gcCount = count;
+		gcMillis = millis;
+
+		model.setProcessCpuLoad((osBean instanceof com.sun.management.OperatingSystemMXBean os) ? os.getProcessCpuLoad() : -1.0);
+		model.setLiveThreads(ManagementFactory.getThreadMXBean().getThreadCount());
+		model.setActiveJobs(jobService.getActiveCount());
+		model.setQueuedJobs(jobService.getQueuedCount());
+		model.setImagesInProcess(imageProcessorService.getMetrics().getInFlight());
+		model.setPooledBufferBytes(imageProcessorService.getBufferPool().getPooledBytes());
+		model.setTimestamp(System.currentTimeMillis());
+		return model;
+	}
+
+	/**
+	 * Whether the statistics have changed enough from those last pushed to be pushed again.
+	 *
+	 * @param previous the statistics last pushed (null if none have been)
+	 */
+	static boolean isChanged(MemoryInfoModel previous, MemoryInfoModel current, long changeBytes) {
+		if (previous == null || current.getGcCount() > 0) {
+			return true;
+		}
+		return Math.abs(current.getHeapUsed() - previous.getHeapUsed()) >= Math.max(1L, changeBytes)
+				|| Math.abs(current.getNonHeapUsed() - previous.getNonHeapUsed()) >= Math.max(1L, changeBytes)
+				|| current.getHeapCommitted() != previous.getHeapCommitted()
+				|| Math.abs(current.getProcessCpuLoad() - previous.getProcessCpuLoad()) > CPU_CHANGE
+				|| current.getLiveThreads() != previous.getLiveThreads()
+				|| current.getActiveJobs() != previous.getActiveJobs()
+				|| current.getQueuedJobs() != previous.getQueuedJobs()
+				|| current.getImagesInProcess() != previous.getImagesInProcess()
+				|| current.getPooledBufferBytes() != previous.getPooledBufferBytes();
+	}
+}
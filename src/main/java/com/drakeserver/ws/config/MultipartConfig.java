@@ -0,0 +1,47 @@
+/*
+ Copyright 2019 Jason Drake (jadrake75@gmail.com)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.drakeserver.ws.config;
+
+import org.springframework.boot.web.servlet.MultipartConfigFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import com.drakeserver.image.processing.ImageProcessorService;
+
+import jakarta.servlet.MultipartConfigElement;
+
+/**
+ * The multipart uploads are spooled to disk as they are received rather than held on the heap, and
+ * limited to the {@link ImageProcessorService#getMaxUploadBytes() memory available for processing}
+ * (the request allowing a little more for the options part) so an upload which could never be
+ * processed is not spooled.
+ */
+@Configuration
+public class MultipartConfig {
+
+	static final long OPTIONS_BYTES = 64 * 1024;
+
+	@Bean
+	public MultipartConfigElement multipartConfigElement(ImageProcessorService imageProcessorService) {
+		long maxUploadBytes = imageProcessorService.getMaxUploadBytes();
+		MultipartConfigFactory factory = new MultipartConfigFactory();
+		factory.setMaxFileSize(DataSize.ofBytes(maxUploadBytes));
+		factory.setMaxRequestSize(DataSize.ofBytes(maxUploadBytes + OPTIONS_BYTES));
+		factory.setFileSizeThreshold(DataSize.ofBytes(0));
+		return factory.createMultipartConfig();
+	}
+}
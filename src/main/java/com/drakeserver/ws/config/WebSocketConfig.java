@@ -16,19 +16,21 @@
 package com.drakeserver.ws.config;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
-import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
+import org.springframework.web.socket.config.annotation.DelegatingWebSocketMessageBrokerConfiguration;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
 
 @Configuration
-@EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 	
 	@Autowired
 	WebSocketAuthorizer authorizer;
-	
+
 	@Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         config.enableSimpleBroker("/data");
@@ -42,4 +44,31 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         		.addInterceptors(authorizer)
         		.withSockJS();
     }
+
+    /**
+     * Replaces {@code @EnableWebSocketMessageBroker} so the client channels can run each message
+     * on its own virtual thread. {@code ChannelRegistration} only accepts a pooled executor, which
+     * would put a fixed cap on the virtual threads (and a slow client could hold one of them).
+     */
+    @Configuration
+    static class MessageBrokerConfiguration extends DelegatingWebSocketMessageBrokerConfiguration {
+
+        @Bean
+        @Override
+        public TaskExecutor clientInboundChannelExecutor() {
+            return virtualThreadExecutor("ws-inbound-");
+        }
+
+        @Bean
+        @Override
+        public TaskExecutor clientOutboundChannelExecutor() {
+            return virtualThreadExecutor("ws-outbound-");
+        }
+
+        private static TaskExecutor virtualThreadExecutor(String prefix) {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(prefix);
+            executor.setVirtualThreads(true);
+            return executor;
+        }
+    }
 }
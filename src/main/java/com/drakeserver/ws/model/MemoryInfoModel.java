@@ -28,4 +28,20 @@ public class MemoryInfoModel {
 	private long freeMemory;
 	private long maxMemory;
 	private long totalMemory;
+
+	// the extended statistics pushed by the MemoryStatsPublisher (the GC figures are since the previous push)
+	private long heapUsed;
+	private long heapCommitted;
+	private long nonHeapUsed;
+	private long nonHeapCommitted;
+	private long gcCount;
+	private long gcPauseMillis;
+	/** the recent CPU use of the process (0 to 1) or negative if unknown */
+	private double processCpuLoad;
+	private int liveThreads;
+	private int activeJobs;
+	private int queuedJobs;
+	private long imagesInProcess;
+	private long pooledBufferBytes;
+	private long timestamp;
 }
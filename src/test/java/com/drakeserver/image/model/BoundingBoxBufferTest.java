@@ -0,0 +1,56 @@
+package com.drakeserver.image.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class BoundingBoxBufferTest {
+
+	@Test
+	public void add_GrowsCapacity() {
+		BoundingBoxBuffer buffer = new BoundingBoxBuffer(1);
+		for (int i = 0; i < 100; i++) {
+			buffer.add(i, i + 1, i + 2, i + 3);
+		}
+		assertEquals(100, buffer.size());
+		assertEquals(new BoundingBox(99, 100, 101, 102), buffer.get(99));
+		buffer.clear();
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void pad_ConstrainedToImage() {
+		BoundingBoxBuffer buffer = new BoundingBoxBuffer();
+		buffer.add(5, 5, 20, 20);
+		buffer.add(80, 50, 15, 10);
+		buffer.pad(10, 100, 60);
+		assertEquals(new BoundingBox(0, 0, 40, 40), buffer.get(0));
+		assertEquals(new BoundingBox(70, 40, 30, 20), buffer.get(1));
+	}
+
+	@Test
+	public void retainLargerThan_KeepsOrder() {
+		BoundingBoxBuffer buffer = new BoundingBoxBuffer();
+		buffer.add(0, 0, 10, 10);
+		buffer.add(20, 0, 5, 30);
+		buffer.add(40, 0, 11, 12);
+		buffer.retainLargerThan(9);
+		assertEquals(List.of(new BoundingBox(0, 0, 10, 10), new BoundingBox(40, 0, 11, 12)), buffer.toList());
+	}
+
+	@Test
+	public void removeOverlaps_ThenReadingOrder() {
+		BoundingBoxBuffer buffer = new BoundingBoxBuffer();
+		buffer.add(100, 0, 50, 50);
+		buffer.add(0, 5, 50, 50);
+		buffer.add(10, 10, 20, 20);
+		buffer.add(0, 100, 50, 50);
+		BoundingBoxBuffer removed = new BoundingBoxBuffer();
+		assertEquals(1, buffer.removeOverlaps(0.2f, removed));
+		assertEquals(new BoundingBox(10, 10, 20, 20), removed.get(0));
+		buffer.sortReadingOrder();
+		assertEquals(List.of(new BoundingBox(0, 5, 50, 50), new BoundingBox(100, 0, 50, 50), new BoundingBox(0, 100, 50, 50)),
+				buffer.toList());
+	}
+}
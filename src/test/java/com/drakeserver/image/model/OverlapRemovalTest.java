@@ -0,0 +1,113 @@
+package com.drakeserver.image.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class OverlapRemovalTest {
+
+	/**
+	 * The all pairs comparison previously used by the post-processing.
+	 */
+	private boolean[] findRemovedAllPairs(BoundingBox[] boxes, float minPercentage) {
+		boolean[] removed = new boolean[boxes.length];
+		for (int i = 0; i < boxes.length; i++) {
+			for (int j = 0; j < boxes.length; j++) {
+				BoundingBox r = boxes[i];
+				BoundingBox master = boxes[j];
+				if (i == j) {
+					continue;
+				} else if (master.contains(r)) {
+					removed[i] = true;
+				} else if (master.intersects(r)) {
+					BoundingBox intercept = master.intersection(r);
+					double interceptArea = intercept.getWidth() * intercept.getHeight();
+					double masterArea = master.getWidth() * master.getHeight();
+					if (interceptArea > minPercentage * masterArea && masterArea > r.getWidth() * r.getHeight()) {
+						removed[i] = true;
+					}
+				}
+			}
+		}
+		return removed;
+	}
+
+	@Test
+	public void findRemoved_MatchesAllPairs() {
+		Random random = new Random(42);
+		for (int run = 0; run < 50; run++) {
+			int size = 1 + random.nextInt(300);
+			BoundingBox[] boxes = new BoundingBox[size];
+			int[] x = new int[size];
+			int[] y = new int[size];
+			int[] width = new int[size];
+			int[] height = new int[size];
+			for (int i = 0; i < size; i++) {
+				boxes[i] = new BoundingBox(random.nextInt(1000), random.nextInt(1000), 1 + random.nextInt(200), 1 + random.nextInt(200));
+				if (i > 0 && random.nextInt(20) == 0) {
+					boxes[i] = new BoundingBox(boxes[i - 1].getX(), boxes[i - 1].getY(), boxes[i - 1].getWidth(), boxes[i - 1].getHeight());
+				}
+				x[i] = boxes[i].getX();
+				y[i] = boxes[i].getY();
+				width[i] = boxes[i].getWidth();
+				height[i] = boxes[i].getHeight();
+			}
+			float minPercentage = random.nextFloat();
+			boolean[] removed = new boolean[size];
+			OverlapRemoval.findRemoved(x, y, width, height, size, minPercentage, removed);
+			assertArrayEquals(findRemovedAllPairs(boxes, minPercentage), removed);
+		}
+	}
+
+	@Test
+	public void findRemoved_ColumnsMatchAllPairs() {
+		// columns of tall boxes spanning the width, each column nesting a few smaller boxes
+		Random random = new Random(7);
+		for (int run = 0; run < 20; run++) {
+			int columns = 1 + random.nextInt(10);
+			int rows = 1 + random.nextInt(40);
+			int size = columns * rows;
+			BoundingBox[] boxes = new BoundingBox[size];
+			int[] x = new int[size];
+			int[] y = new int[size];
+			int[] width = new int[size];
+			int[] height = new int[size];
+			for (int i = 0; i < size; i++) {
+				int column = i % columns;
+				int row = i / columns;
+				if (random.nextInt(4) == 0) {
+					boxes[i] = new BoundingBox(column * 50 + random.nextInt(10), random.nextInt(rows * 30), 5 + random.nextInt(30), 5 + random.nextInt(60));
+				} else {
+					boxes[i] = new BoundingBox(random.nextInt(5), row * 30 + random.nextInt(10), columns * 50, 10 + random.nextInt(30));
+				}
+				x[i] = boxes[i].getX();
+				y[i] = boxes[i].getY();
+				width[i] = boxes[i].getWidth();
+				height[i] = boxes[i].getHeight();
+			}
+			float minPercentage = random.nextFloat();
+			boolean[] removed = new boolean[size];
+			OverlapRemoval.findRemoved(x, y, width, height, size, minPercentage, removed);
+			assertArrayEquals(findRemovedAllPairs(boxes, minPercentage), removed);
+		}
+	}
+
+	@Test
+	public void findRemoved_TouchingNotRemoved() {
+		int[] x = { 0, 100 };
+		int[] y = { 0, 0 };
+		int[] width = { 100, 10 };
+		int[] height = { 100, 10 };
+		boolean[] removed = new boolean[2];
+		assertEquals(0, OverlapRemoval.findRemoved(x, y, width, height, 2, 0.0f, removed));
+	}
+
+	@Test
+	public void readingOrder_RowsThenColumns() {
+		int[] x = { 300, 10, 150, 20, 200 };
+		int[] y = { 15, 0, 30, 200, 190 };
+		int[] height = { 100, 100, 100, 80, 80 };
+		assertArrayEquals(new int[] { 1, 2, 0, 3, 4 }, OverlapRemoval.readingOrder(x, y, height, 5));
+	}
+}
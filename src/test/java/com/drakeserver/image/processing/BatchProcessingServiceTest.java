@@ -0,0 +1,97 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import com.drakeserver.image.model.BatchResult;
+import com.drakeserver.image.model.BoundingBox;
+
+public class BatchProcessingServiceTest {
+
+	@TempDir
+	Path directory;
+
+	private BatchProcessingService createService() {
+		return new BatchProcessingService(new ImageProcessorService() {
+			@Override
+			protected List<BoundingBox> process(ImageSource source, Properties options) throws IOException {
+				return List.of(new BoundingBox(0, 0, source.getWidth(), source.getHeight()));
+			}
+		});
+	}
+
+	@Test
+	public void process_ResultPerFile() throws IOException {
+		for (int i = 1; i <= 5; i++) {
+			ImageIO.write(new BufferedImage(10 * i, 20, BufferedImage.TYPE_INT_RGB), "png", directory.resolve("page" + i + ".png").toFile());
+		}
+		Files.write(directory.resolve("broken.png"), new byte[] {1, 2, 3});
+		Files.write(directory.resolve("notes.txt"), new byte[] {1, 2, 3});
+
+		BatchProcessingService service = createService();
+		List<Path> files = service.listFiles(Map.of(BatchProcessingService.DIRECTORY, directory.toString()));
+		assertEquals(6, files.size());
+
+		List<BatchResult> results = new ArrayList<>();
+		service.process(files, Map.of(BatchProcessingService.PARALLELISM, 3), results::add);
+		assertEquals(6, results.size());
+		for (BatchResult r : results) {
+			if (r.getFilename().endsWith("broken.png")) {
+				assertNotNull(r.getError());
+				assertNull(r.getBoxes());
+			} else {
+				assertNull(r.getError());
+				int i = Integer.parseInt(r.getFilename().replaceAll(".*page(\\d)\\.png", "$1"));
+				assertEquals(List.of(new BoundingBox(0, 0, 10 * i, 20)), r.getBoxes());
+			}
+		}
+	}
+
+	@Test
+	public void getParallelism_CappedAtCpuPool() throws IOException {
+		Path file = directory.resolve("page.png");
+		ImageIO.write(new BufferedImage(10, 20, BufferedImage.TYPE_INT_RGB), "png", file.toFile());
+		BatchProcessingService service = new BatchProcessingService(new ImageProcessorService() {
+			@Override
+			public int getCpuParallelism() {
+				return 2;
+			}
+		});
+		assertEquals(2, service.getParallelism(file, 0));
+		assertEquals(2, service.getParallelism(file, 64));
+		assertEquals(1, service.getParallelism(file, 1));
+	}
+
+	@Test
+	public void getRequestedParallelism_Validated() {
+		BatchProcessingService service = new BatchProcessingService(new ImageProcessorService());
+		assertEquals(0, service.getRequestedParallelism(Map.of()));
+		assertEquals(4, service.getRequestedParallelism(Map.of(BatchProcessingService.PARALLELISM, 4)));
+		assertEquals(4, service.getRequestedParallelism(Map.of(BatchProcessingService.PARALLELISM, "4")));
+		assertThrows(IllegalArgumentException.class, () -> service.getRequestedParallelism(Map.of(BatchProcessingService.PARALLELISM, "many")));
+		assertThrows(IllegalArgumentException.class, () -> service.getRequestedParallelism(Map.of(BatchProcessingService.PARALLELISM, 0)));
+	}
+
+	@Test
+	public void listFiles_Glob() throws IOException {
+		Files.write(directory.resolve("a.jpg"), new byte[0]);
+		Files.write(directory.resolve("b.png"), new byte[0]);
+		List<Path> files = createService().listFiles(Map.of(BatchProcessingService.DIRECTORY, directory.toString(),
+				BatchProcessingService.GLOB, "*.jpg"));
+		assertEquals(List.of(directory.resolve("a.jpg")), files);
+		assertThrows(IOException.class, () -> createService().listFiles(Map.of(BatchProcessingService.DIRECTORY,
+				directory.resolve("missing").toString())));
+	}
+}
@@ -0,0 +1,108 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+import java.util.Random;
+
+import com.drakeserver.image.ImageConstants;
+
+import ij.process.ByteProcessor;
+
+public class BinaryMaskTest {
+
+	@Test
+	public void pack_UnpackRoundTrip() {
+		ByteProcessor binary = new ByteProcessor(130, 7);
+		binary.set(0, 0, DetectionPipeline.FOREGROUND);
+		binary.set(63, 1, DetectionPipeline.FOREGROUND);
+		binary.set(64, 1, DetectionPipeline.FOREGROUND);
+		binary.set(129, 6, DetectionPipeline.FOREGROUND);
+		BinaryMask mask = BinaryMask.pack(binary);
+		assertEquals(3 * 7 * Long.BYTES, mask.getSize());
+		assertTrue(mask.get(64, 1));
+		assertFalse(mask.get(65, 1));
+		assertArrayEquals((byte[]) binary.getPixels(), mask.unpack(new byte[130 * 7]));
+	}
+
+	private ByteProcessor createNoise(int width, int height, long seed) {
+		ByteProcessor binary = new ByteProcessor(width, height);
+		Random random = new Random(seed);
+		for (int i = 0; i < width * height; i++) {
+			binary.set(i, (random.nextInt(4) == 0) ? DetectionPipeline.FOREGROUND : DetectionPipeline.BACKGROUND);
+		}
+		return binary;
+	}
+
+	@Test
+	public void dilate_ErodeMatchImageJ() {
+		// widths either side of a word boundary
+		for (int width : new int[] { 1, 63, 64, 65, 150 }) {
+			ByteProcessor binary = createNoise(width, 40, width);
+			BinaryMask mask = BinaryMask.pack(binary);
+			mask.dilate();
+			ByteProcessor expected = (ByteProcessor) binary.duplicate();
+			expected.dilate(1, DetectionPipeline.BACKGROUND);
+			assertArrayEquals((byte[]) expected.getPixels(), mask.unpack(new byte[width * 40]), "dilate " + width);
+
+			mask = BinaryMask.pack(binary);
+			mask.erode();
+			expected = (ByteProcessor) binary.duplicate();
+			expected.erode(1, DetectionPipeline.BACKGROUND);
+			assertArrayEquals((byte[]) expected.getPixels(), mask.unpack(new byte[width * 40]), "erode " + width);
+		}
+	}
+
+	@Test
+	public void fillHoles_FillsOnlyEnclosedRegions() {
+		ByteProcessor binary = new ByteProcessor(150, 40);
+		binary.setValue(DetectionPipeline.FOREGROUND);
+		// a ring across the word boundary with a wall part way across its hole
+		binary.fillRect(50, 5, 40, 30);
+		binary.setValue(DetectionPipeline.BACKGROUND);
+		binary.fillRect(52, 7, 36, 26);
+		binary.setValue(DetectionPipeline.FOREGROUND);
+		binary.fillRect(60, 7, 2, 20);
+		// a ring opening onto the bottom of the image
+		binary.fillRect(100, 5, 30, 35);
+		binary.setValue(DetectionPipeline.BACKGROUND);
+		binary.fillRect(102, 7, 26, 26);
+		binary.fillRect(110, 33, 3, 7);
+		BinaryMask mask = BinaryMask.pack(binary);
+		mask.fillHoles();
+		assertTrue(mask.get(70, 20));
+		assertTrue(mask.get(55, 30));
+		assertFalse(mask.get(120, 10));
+		assertFalse(mask.get(111, 39));
+		assertFalse(mask.get(10, 10));
+		assertFalse(mask.get(149, 39));
+	}
+
+	@Test
+	public void maskCache_EvictsLeastRecentlyUsed() {
+		BinaryMask mask = new BinaryMask(64, 8);
+		MaskCache cache = new MaskCache(2 * mask.getSize());
+		cache.put("a", mask);
+		cache.put("b", new BinaryMask(64, 8));
+		assertSame(mask, cache.get("a"));
+		cache.put("c", new BinaryMask(64, 8));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertEquals(2 * mask.getSize(), cache.getBytes());
+	}
+
+	@Test
+	public void maskCache_KeyIgnoresPostAnalysisOptions() {
+		Properties options = new Properties();
+		options.setProperty(ImageConstants.SKIP_STAGES, "smooth,despeckle");
+		String key = MaskCache.key("image", 1.0, options);
+		options.setProperty(ImageConstants.BOX_PADDING, "5");
+		options.setProperty(ImageConstants.MIN_BOUNDING_AREA, "100");
+		options.setProperty(ImageConstants.SKIP_STAGES, "Despeckle, SMOOTH");
+		assertEquals(key, MaskCache.key("image", 1.0, options));
+		options.setProperty(ImageConstants.DILATION_COUNT, "2");
+		assertNotEquals(key, MaskCache.key("image", 1.0, options));
+		assertNotEquals(key, MaskCache.key("image", 0.5, new Properties()));
+	}
+}
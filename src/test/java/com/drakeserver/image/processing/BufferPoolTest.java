@@ -0,0 +1,60 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+public class BufferPoolTest {
+
+	@Test
+	public void borrow_ReusesReleasedBuffer() {
+		BufferPool pool = new BufferPool(1000);
+		byte[] buffer = pool.borrowBytes(100);
+		pool.release(buffer);
+		assertEquals(100, pool.getPooledBytes());
+		assertNotSame(buffer, pool.borrowBytes(50));
+		assertSame(buffer, pool.borrowBytes(100));
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(1, pool.getHits());
+	}
+
+	@Test
+	public void release_BoundedByCapacity() {
+		BufferPool pool = new BufferPool(250);
+		byte[] first = new byte[100];
+		byte[] second = new byte[120];
+		pool.release(first);
+		pool.release(second);
+		pool.release(new byte[300]);
+		assertEquals(220, pool.getPooledBytes());
+		// the least recently used length is evicted to make room
+		pool.release(new byte[60]);
+		assertEquals(180, pool.getPooledBytes());
+		assertSame(second, pool.borrowBytes(120));
+		assertNotSame(first, pool.borrowBytes(100));
+	}
+
+	@Test
+	public void read_DecodesIntoPooledBuffer() throws IOException {
+		BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_3BYTE_BGR);
+		image.setRGB(5, 7, 0x336699);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+
+		BufferPool pool = new BufferPool(1 << 20);
+		try (ImageReaderSource source = ImageReaderSource.open(out.toByteArray()).setBufferPool(pool)) {
+			BufferedImage decoded = source.read();
+			assertEquals(0x336699, decoded.getRGB(5, 7) & 0xffffff);
+			source.release(decoded);
+			assertEquals(40 * 30 * 3, pool.getPooledBytes());
+			BufferedImage again = source.read();
+			assertEquals(0x336699, again.getRGB(5, 7) & 0xffffff);
+			assertEquals(1, pool.getHits());
+		}
+	}
+}
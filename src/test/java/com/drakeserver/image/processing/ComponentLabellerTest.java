@@ -0,0 +1,93 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import com.drakeserver.image.model.BoundingBoxBuffer;
+import com.drakeserver.image.processing.ComponentLabeller.Connectivity;
+
+import ij.process.ByteProcessor;
+
+public class ComponentLabellerTest {
+
+	private ByteProcessor createImage() {
+		ByteProcessor bp = new ByteProcessor(20, 12);
+		// a U shape whose arms join on a later row
+		bp.setValue(DetectionPipeline.FOREGROUND);
+		bp.fillRect(3, 2, 2, 6);
+		bp.fillRect(8, 2, 2, 6);
+		bp.fillRect(3, 7, 7, 2);
+		// two pixels touching diagonally
+		bp.set(13, 3, DetectionPipeline.FOREGROUND);
+		bp.set(14, 4, DetectionPipeline.FOREGROUND);
+		// a particle on the right edge
+		bp.fillRect(17, 8, 3, 2);
+		return bp;
+	}
+
+	@Test
+	public void label_EightConnected() {
+		ComponentLabeller labeller = new ComponentLabeller(Connectivity.EIGHT);
+		assertEquals(3, labeller.label(createImage()));
+		assertEquals(3, labeller.getX(0));
+		assertEquals(2, labeller.getY(0));
+		assertEquals(7, labeller.getWidth(0));
+		assertEquals(7, labeller.getHeight(0));
+		assertEquals(12 + 12 + 14 - 4, labeller.getArea(0));
+		assertEquals(13, labeller.getX(1));
+		assertEquals(2, labeller.getWidth(1));
+		assertEquals(2, labeller.getArea(1));
+		assertFalse(labeller.touchesEdge(1));
+		assertTrue(labeller.touchesEdge(2));
+	}
+
+	@Test
+	public void label_FourConnected() {
+		ComponentLabeller labeller = new ComponentLabeller(Connectivity.FOUR);
+		assertEquals(4, labeller.label(createImage()));
+		assertEquals(13, labeller.getX(1));
+		assertEquals(14, labeller.getX(2));
+		assertEquals(1, labeller.getArea(2));
+	}
+
+	@Test
+	public void collect_ExcludesEdgesAndSmall() {
+		ComponentLabeller labeller = new ComponentLabeller(Connectivity.EIGHT);
+		labeller.label(createImage());
+		BoundingBoxBuffer boxes = new BoundingBoxBuffer();
+		labeller.collect(boxes, 3, Integer.MAX_VALUE, true);
+		assertEquals(1, boxes.size());
+		assertEquals(3, boxes.getX(0));
+
+		boxes.clear();
+		labeller.collect(boxes, 0, Integer.MAX_VALUE, false);
+		assertEquals(3, boxes.size());
+	}
+
+	@Test
+	public void label_MaskMatchesImage() {
+		ByteProcessor binary = createImage();
+		ComponentLabeller labeller = new ComponentLabeller(Connectivity.EIGHT);
+		labeller.label(binary);
+		BoundingBoxBuffer expected = new BoundingBoxBuffer();
+		labeller.collect(expected, 0, Integer.MAX_VALUE, false);
+
+		assertEquals(3, labeller.label(BinaryMask.pack(binary)));
+		BoundingBoxBuffer actual = new BoundingBoxBuffer();
+		labeller.collect(actual, 0, Integer.MAX_VALUE, false);
+		assertEquals(expected.toList(), actual.toList());
+		assertEquals(12 + 12 + 14 - 4, labeller.getArea(0));
+	}
+
+	@Test
+	public void label_ReusedForNextImage() {
+		ComponentLabeller labeller = new ComponentLabeller(Connectivity.EIGHT);
+		ByteProcessor noise = new ByteProcessor(300, 300);
+		for (int i = 0; i < 300 * 300; i += 2) {
+			noise.set(i, DetectionPipeline.FOREGROUND);
+		}
+		labeller.label(noise);
+		assertEquals(3, labeller.label(createImage()));
+		assertEquals(12 + 12 + 14 - 4, labeller.getArea(0));
+	}
+}
@@ -0,0 +1,57 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+public class CpuPoolTest {
+
+	CpuPool pool;
+
+	@BeforeEach
+	public void setup() {
+		pool = new CpuPool(2);
+	}
+
+	@AfterEach
+	public void teardown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void call_RunsOnPool() throws IOException {
+		assertEquals(2, pool.getParallelism());
+		String caller = Thread.currentThread().getName();
+		String worker = pool.call(() -> Thread.currentThread().getName());
+		assertTrue(worker.startsWith("cpu-pool-"));
+		assertNotEquals(caller, worker);
+		// a nested call runs in place rather than waiting on the pool
+		assertEquals(List.of(true), pool.call(() -> {
+			Thread outer = Thread.currentThread();
+			return List.of(pool.call(() -> Thread.currentThread() == outer));
+		}));
+	}
+
+	@Test
+	public void invokeAll_ResultsInOrder() throws IOException {
+		List<Callable<Integer>> tasks = List.of(() -> 1, () -> 2, () -> 3);
+		assertEquals(List.of(1, 2, 3), pool.invokeAll(tasks));
+	}
+
+	@Test
+	public void invokeAll_CheckedExceptionRethrown() {
+		List<Callable<Integer>> tasks = List.of(() -> 1, () -> {
+			throw new IOException("Unable to read the tile");
+		});
+		IOException e = assertThrows(IOException.class, () -> pool.invokeAll(tasks));
+		assertEquals("Unable to read the tile", e.getMessage());
+		assertThrows(IllegalStateException.class, () -> pool.call(() -> {
+			throw new IllegalStateException();
+		}));
+	}
+}
@@ -0,0 +1,43 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+public class DecodedImageSourceTest {
+
+	@Test
+	public void read_SubsamplingMatchesDecoder() throws IOException {
+		BufferedImage image = new BufferedImage(101, 67, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(7);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, random.nextInt(0x1000000));
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		byte[] data = out.toByteArray();
+
+		BufferedImage expected;
+		try (ImageSource source = ImageReaderSource.open(data)) {
+			expected = source.read(3);
+		}
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(data));
+		BufferedImage subsampled = new DecodedImageSource(decoded, 0.0).read(3);
+		assertEquals(expected.getWidth(), subsampled.getWidth());
+		assertEquals(expected.getHeight(), subsampled.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				assertEquals(expected.getRGB(x, y), subsampled.getRGB(x, y));
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import com.drakeserver.image.ImageConstants;
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.CacheStatistics;
+
+public class DetectionCacheTest {
+
+	@TempDir
+	Path directory;
+
+	private List<BoundingBox> boxes(int count) {
+		List<BoundingBox> boxes = new java.util.ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			boxes.add(new BoundingBox(i, i, 10, 10));
+		}
+		return boxes;
+	}
+
+	@Test
+	public void key_OptionsNormalized() throws IOException {
+		Properties a = new Properties();
+		a.setProperty(ImageConstants.BOX_PADDING, "20");
+		a.setProperty(ImageConstants.DILATION_COUNT, "1");
+		Properties b = new Properties();
+		b.setProperty(ImageConstants.DILATION_COUNT, "1");
+		b.setProperty(ImageConstants.BOX_PADDING, "20");
+		b.setProperty(ImageConstants.TILE_PARALLELISM, "4");
+		String image = DetectionCache.contentKey(new byte[] {1, 2, 3});
+		assertEquals(DetectionCache.key(image, a), DetectionCache.key(image, b));
+		b.setProperty(ImageConstants.BOX_PADDING, "10");
+		assertNotEquals(DetectionCache.key(image, a), DetectionCache.key(image, b));
+
+		Path copy = directory.resolve("copy");
+		assertEquals(image, DetectionCache.contentKey(new ByteArrayInputStream(new byte[] {1, 2, 3}), copy));
+		assertEquals(3, Files.size(copy));
+	}
+
+	@Test
+	public void get_HitsAndEviction() {
+		DetectionCache cache = new DetectionCache(2, 1 << 20, null, 0);
+		cache.put("a", boxes(1));
+		cache.put("b", boxes(2));
+		assertEquals(boxes(1), cache.get("a"));
+		cache.put("c", boxes(3));
+		// b was the least recently used
+		assertNull(cache.get("b"));
+		assertEquals(boxes(3), cache.get("c"));
+
+		CacheStatistics statistics = cache.getStatistics();
+		assertEquals(2, statistics.getHits());
+		assertEquals(1, statistics.getMisses());
+		assertEquals(1, statistics.getEvictions());
+		assertEquals(2, statistics.getEntries());
+	}
+
+	@Test
+	public void get_BoundedByBytes() {
+		DetectionCache cache = new DetectionCache(100, 1000, null, 0);
+		cache.put("a", boxes(10));
+		cache.put("b", boxes(10));
+		cache.put("c", boxes(10));
+		assertTrue(cache.getStatistics().getBytes() <= 1000);
+		assertEquals(2, cache.getStatistics().getEntries());
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void get_ReadFromDisk() {
+		DetectionCache cache = new DetectionCache(10, 1 << 20, directory.toString(), 10);
+		cache.put("page", boxes(3));
+		DetectionCache restarted = new DetectionCache(10, 1 << 20, directory.toString(), 10);
+		assertEquals(boxes(3), restarted.get("page"));
+		assertEquals(1, restarted.getStatistics().getDiskHits());
+		assertNull(restarted.get("other"));
+	}
+}
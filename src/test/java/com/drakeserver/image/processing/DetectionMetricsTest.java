@@ -0,0 +1,36 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class DetectionMetricsTest {
+
+	@Test
+	public void scrape_PrometheusTextFormat() {
+		DetectionMetrics metrics = new DetectionMetrics();
+		metrics.gauge("image_jobs_queued", "The jobs waiting to be processed", () -> 3L);
+		metrics.requestStarted(2000, 1500);
+		metrics.recordStage("DECODE", TimeUnit.MILLISECONDS.toNanos(30));
+		metrics.recordStage("DECODE", TimeUnit.SECONDS.toNanos(2));
+		metrics.requestCompleted(TimeUnit.SECONDS.toNanos(3), 7);
+		metrics.requestStarted(10, 10);
+		metrics.requestFailed();
+		metrics.requestRejected();
+
+		String text = metrics.scrape();
+		assertTrue(text.contains("# TYPE image_requests_total counter\nimage_requests_total 2\n"), text);
+		assertTrue(text.contains("\nimage_failures_total 1\n"));
+		assertTrue(text.contains("\nimage_rejections_total 1\n"));
+		assertTrue(text.contains("\nimage_boxes_total 7\n"));
+		assertTrue(text.contains("\nimage_megapixels_total 3.000\n"));
+		assertTrue(text.contains("\nimage_requests_in_flight 0\n"));
+		assertTrue(text.contains("\nimage_jobs_queued 3\n"));
+		assertTrue(text.contains("\nimage_stage_seconds_bucket{stage=\"DECODE\",le=\"0.025\"} 0\n"));
+		assertTrue(text.contains("\nimage_stage_seconds_bucket{stage=\"DECODE\",le=\"0.05\"} 1\n"));
+		assertTrue(text.contains("\nimage_stage_seconds_bucket{stage=\"DECODE\",le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("\nimage_stage_seconds_count{stage=\"DECODE\"} 2\n"));
+		assertTrue(text.contains("\nimage_processing_seconds_bucket{le=\"5.0\"} 1\n"));
+	}
+}
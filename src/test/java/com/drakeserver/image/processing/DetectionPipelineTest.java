@@ -0,0 +1,102 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import com.drakeserver.image.ImageConstants;
+import com.drakeserver.image.processing.DetectionPipeline.Stage;
+
+import ij.process.ByteProcessor;
+
+public class DetectionPipelineTest {
+
+	private BufferedImage createImage() {
+		BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, 200, 150);
+		g.setColor(Color.DARK_GRAY);
+		g.fillRect(40, 30, 100, 80);
+		g.setColor(Color.WHITE);
+		g.fillRect(80, 60, 20, 20);
+		g.dispose();
+		return image;
+	}
+
+	@Test
+	public void run_BinaryWithHolesFilled() {
+		DetectionPipeline pipeline = new DetectionPipeline(0, EnumSet.noneOf(Stage.class));
+		ByteProcessor binary = pipeline.run(createImage(), null);
+		assertEquals(200, binary.getWidth());
+		assertEquals(DetectionPipeline.BACKGROUND, binary.get(10, 10));
+		assertEquals(DetectionPipeline.FOREGROUND, binary.get(45, 35));
+		assertEquals(DetectionPipeline.FOREGROUND, binary.get(90, 70));
+	}
+
+	@Test
+	public void run_SkippedStagesNotRun() {
+		List<Stage> stages = new ArrayList<>();
+		DetectionPipeline.Listener listener = new DetectionPipeline.Listener() {
+			@Override
+			public void stageStarted(Stage stage, int iteration) {
+			}
+
+			@Override
+			public void stageCompleted(Stage stage, long nanos) {
+				assertTrue(nanos >= 0);
+				stages.add(stage);
+			}
+		};
+		DetectionPipeline pipeline = new DetectionPipeline(2, EnumSet.of(Stage.SMOOTH, Stage.FILL_HOLES));
+		ByteProcessor binary = pipeline.run(createImage(), listener);
+		assertEquals(List.of(Stage.ENHANCE_CONTRAST, Stage.CONVERT_TO_8BIT, Stage.DESPECKLE, Stage.REMOVE_OUTLIERS,
+				Stage.MAKE_BINARY, Stage.DILATE), stages);
+		assertEquals(DetectionPipeline.BACKGROUND, binary.get(90, 70));
+	}
+
+	@Test
+	public void apply_StripedMatchesWholeImage() {
+		ByteProcessor source = new ByteProcessor(90, 400);
+		Random random = new Random(7);
+		for (int i = 0; i < 90 * 400; i++) {
+			source.set(i, random.nextInt(256));
+		}
+		DetectionPipeline pipeline = new DetectionPipeline(0, EnumSet.noneOf(Stage.class));
+		CpuPool pool = new CpuPool(3);
+		try {
+			DetectionPipeline striped = pipeline.striped(pool, 5);
+			for (Stage stage : EnumSet.of(Stage.SMOOTH, Stage.DESPECKLE, Stage.REMOVE_OUTLIERS)) {
+				ByteProcessor expected = (ByteProcessor) source.duplicate();
+				ByteProcessor actual = (ByteProcessor) source.duplicate();
+				pipeline.apply(stage, expected);
+				striped.apply(stage, actual);
+				assertArrayEquals((byte[]) expected.getPixels(), (byte[]) actual.getPixels(), stage.name());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void fromOptions_SkipStages() {
+		Properties options = new Properties();
+		options.setProperty(ImageConstants.SKIP_STAGES, "smooth, Remove_Outliers");
+		DetectionPipeline pipeline = DetectionPipeline.fromOptions(options, 3);
+		assertFalse(pipeline.isEnabled(Stage.SMOOTH));
+		assertFalse(pipeline.isEnabled(Stage.REMOVE_OUTLIERS));
+		assertTrue(pipeline.isEnabled(Stage.DESPECKLE));
+		assertEquals(3, pipeline.getDilationCount());
+
+		options.setProperty(ImageConstants.SKIP_STAGES, "make_binary");
+		assertThrows(IllegalArgumentException.class, () -> DetectionPipeline.fromOptions(options, 0));
+	}
+}
@@ -0,0 +1,292 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.drakeserver.image.ImageConstants;
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * Runs the detection modes over the synthetic corpus of {@link SyntheticPageGenerator} and checks
+ * the precision, recall and mean IoU against the ground truth along with the throughput against the
+ * recorded baseline.  The throughput of each mode is checked relative to the <code>default</code>
+ * mode of the same run, which holds across machines.  The throughput of the <code>default</code>
+ * mode itself (in megapixels of page per second of processing) depends on the machine, so it is
+ * checked with the wider <code>referenceThroughput.tolerance</code> (overridden on another machine
+ * with <code>-Dregression.referenceThroughputTolerance</code>) to catch a slowdown of every mode.
+ * The peak heap of each mode is reported.
+ * <p>
+ * The harness is tagged <code>regression</code> and only runs with <code>mvn -P regression test</code>.
+ * Record a new baseline with <code>-Dregression.record=true</code> (which writes the baseline file
+ * rather than checking it) when a change is expected to alter the results.
+ */
+@Tag("regression")
+public class DetectionRegressionTest {
+
+	static final Path BASELINE = Paths.get("src", "test", "resources", "regression", "baseline.properties");
+	static final Path REPORT = Paths.get("target", "regression-report.txt");
+
+	static final double IOU_MATCH = 0.5;
+	static final double ACCURACY_TOLERANCE_DEFAULT = 0.01;
+	static final double THROUGHPUT_TOLERANCE_DEFAULT = 0.3;
+	static final double REFERENCE_THROUGHPUT_TOLERANCE_DEFAULT = 0.5;
+
+	static final String REFERENCE_MODE = "default";
+
+	static final Map<String, Properties> MODES = new LinkedHashMap<>();
+
+	static {
+		MODES.put(REFERENCE_MODE, options());
+		Properties proxy = options();
+		proxy.setProperty(ImageConstants.PROXY_SCALE, "0.5");
+		proxy.setProperty(ImageConstants.PROXY_REFINE, "true");
+		MODES.put("proxy", proxy);
+		Properties tiled = options();
+		tiled.setProperty(ImageConstants.TILE_SIZE, "1024");
+		MODES.put("tiled", tiled);
+	}
+
+	/**
+	 * The detection results of a mode over the corpus.
+	 */
+	static class Score {
+		int truth;
+		int detected;
+		int matched;
+		double iou;
+		double megapixels;
+		long nanos;
+		long peakHeap;
+
+		double precision() {
+			return (detected > 0) ? matched / (double) detected : 0.0;
+		}
+
+		double recall() {
+			return (truth > 0) ? matched / (double) truth : 0.0;
+		}
+
+		double meanIoU() {
+			return (matched > 0) ? iou / matched : 0.0;
+		}
+
+		double megapixelsPerSecond() {
+			return megapixels / (nanos / 1e9);
+		}
+	}
+
+	static int pages;
+	static Properties baseline;
+
+	@BeforeAll
+	public static void setup() throws IOException {
+		baseline = new Properties();
+		if (Files.exists(BASELINE)) {
+			try (InputStream in = Files.newInputStream(BASELINE)) {
+				baseline.load(in);
+			}
+		}
+		// the baseline only holds for the corpus it was recorded on
+		pages = Integer.getInteger("regression.pages", Integer.parseInt(baseline.getProperty("pages", "6")));
+	}
+
+	private static Properties options() {
+		Properties options = new Properties();
+		// the ground truth is the stamp itself
+		options.setProperty(ImageConstants.BOX_PADDING, "0");
+		return options;
+	}
+
+	@Test
+	public void corpus_AccuracyAndThroughput() throws IOException {
+		ImageProcessorService service = new ImageProcessorService();
+		Map<String, Score> scores = new LinkedHashMap<>();
+		for (Map.Entry<String, Properties> mode : MODES.entrySet()) {
+			// warm up the mode so the first page measured is not interpreted
+			service.process(SyntheticPageGenerator.page(0).image, mode.getValue());
+			Score score = new Score();
+			for (int i = 0; i < pages; i++) {
+				SyntheticPageGenerator.Page page = SyntheticPageGenerator.page(i);
+				resetPeakHeap();
+				long start = System.nanoTime();
+				List<BoundingBox> boxes = service.process(page.image, mode.getValue());
+				score.nanos += System.nanoTime() - start;
+				score.peakHeap = Math.max(score.peakHeap, peakHeap());
+				score.megapixels += page.getMegapixels();
+				match(page.stamps, boxes, score);
+			}
+			scores.put(mode.getKey(), score);
+		}
+		String report = report(scores);
+		Files.createDirectories(REPORT.getParent());
+		Files.writeString(REPORT, report);
+
+		if (Boolean.getBoolean("regression.record")) {
+			record(scores);
+			return;
+		}
+		double accuracyTolerance = tolerance("accuracy", ACCURACY_TOLERANCE_DEFAULT);
+		double throughputTolerance = tolerance("throughput", THROUGHPUT_TOLERANCE_DEFAULT);
+		double referenceTolerance = tolerance("referenceThroughput", REFERENCE_THROUGHPUT_TOLERANCE_DEFAULT);
+		List<String> failures = new ArrayList<>();
+		for (Map.Entry<String, Score> entry : scores.entrySet()) {
+			String mode = entry.getKey();
+			Score score = entry.getValue();
+			check(failures, mode + ".precision", score.precision(), accuracyTolerance);
+			check(failures, mode + ".recall", score.recall(), accuracyTolerance);
+			check(failures, mode + ".meanIoU", score.meanIoU(), accuracyTolerance);
+			if (REFERENCE_MODE.equals(mode)) {
+				check(failures, mode + ".megapixelsPerSecond", score.megapixelsPerSecond(),
+						Double.parseDouble(baseline.getProperty(mode + ".megapixelsPerSecond", "0")) * referenceTolerance);
+			} else {
+				check(failures, mode + ".relativeThroughput", relativeThroughput(scores, mode),
+						Double.parseDouble(baseline.getProperty(mode + ".relativeThroughput", "0")) * throughputTolerance);
+			}
+		}
+		assertTrue(failures.isEmpty(), "Below the baseline: " + failures);
+	}
+
+	/**
+	 * Match the detected boxes to the stamps greedily in order of decreasing IoU, a pair matching
+	 * when the IoU is at least {@link #IOU_MATCH}.
+	 */
+	static void match(List<BoundingBox> truth, List<BoundingBox> detected, Score score) {
+		List<double[]> pairs = new ArrayList<>();
+		for (int t = 0; t < truth.size(); t++) {
+			for (int d = 0; d < detected.size(); d++) {
+				double iou = iou(truth.get(t), detected.get(d));
+				if (iou >= IOU_MATCH) {
+					pairs.add(new double[] { iou, t, d });
+				}
+			}
+		}
+		pairs.sort((a, b) -> Double.compare(b[0], a[0]));
+		boolean[] truthMatched = new boolean[truth.size()];
+		boolean[] detectedMatched = new boolean[detected.size()];
+		for (double[] pair : pairs) {
+			int t = (int) pair[1];
+			int d = (int) pair[2];
+			if (!truthMatched[t] && !detectedMatched[d]) {
+				truthMatched[t] = true;
+				detectedMatched[d] = true;
+				score.matched++;
+				score.iou += pair[0];
+			}
+		}
+		score.truth += truth.size();
+		score.detected += detected.size();
+	}
+
+	/**
+	 * The throughput of the mode as a fraction of the throughput of the {@link #REFERENCE_MODE}.
+	 */
+	static double relativeThroughput(Map<String, Score> scores, String mode) {
+		return scores.get(mode).megapixelsPerSecond() / scores.get(REFERENCE_MODE).megapixelsPerSecond();
+	}
+
+	static double iou(BoundingBox a, BoundingBox b) {
+		long w = Math.min(a.getX() + a.getWidth(), b.getX() + b.getWidth()) - Math.max(a.getX(), b.getX());
+		long h = Math.min(a.getY() + a.getHeight(), b.getY() + b.getHeight()) - Math.max(a.getY(), b.getY());
+		if (w <= 0 || h <= 0) {
+			return 0.0;
+		}
+		double intersection = w * h;
+		return intersection / ((long) a.getWidth() * a.getHeight() + (long) b.getWidth() * b.getHeight() - intersection);
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static double tolerance(String name, double defaultTolerance) {
+		String value = System.getProperty("regression." + name + "Tolerance", baseline.getProperty(name + ".tolerance"));
+		return (value != null) ? Double.parseDouble(value) : defaultTolerance;
+	}
+
+	/**
+	 * @param slack the amount the value may fall below the baseline
+	 */
+	private static void check(List<String> failures, String key, double value, double slack) {
+		String recorded = baseline.getProperty(key);
+		if (recorded != null && value < Double.parseDouble(recorded) - slack) {
+			failures.add(String.format(Locale.ROOT, "%s %.4f (baseline %s)", key, value, recorded));
+		}
+	}
+
+	private static String report(Map<String, Score> scores) {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(Locale.ROOT, "Detection regression over %d synthetic pages%n", pages));
+		report.append(String.format(Locale.ROOT, "%-8s %9s %9s %9s %9s %9s %9s %10s%n", "mode", "precision", "recall", "mean IoU", "boxes", "MP/s",
+				"relative", "peak heap"));
+		for (Map.Entry<String, Score> entry : scores.entrySet()) {
+			Score s = entry.getValue();
+			report.append(String.format(Locale.ROOT, "%-8s %9.4f %9.4f %9.4f %4d/%-4d %9.2f %9.2f %8dMB%n", entry.getKey(), s.precision(),
+					s.recall(), s.meanIoU(), s.detected, s.truth, s.megapixelsPerSecond(), relativeThroughput(scores, entry.getKey()),
+					s.peakHeap >> 20));
+		}
+		return report.toString();
+	}
+
+	private static void record(Map<String, Score> scores) throws IOException {
+		Map<String, String> recorded = new TreeMap<>();
+		recorded.put("pages", Integer.toString(pages));
+		recorded.put("accuracy.tolerance", baseline.getProperty("accuracy.tolerance", Double.toString(ACCURACY_TOLERANCE_DEFAULT)));
+		recorded.put("throughput.tolerance", baseline.getProperty("throughput.tolerance", Double.toString(THROUGHPUT_TOLERANCE_DEFAULT)));
+		recorded.put("referenceThroughput.tolerance", baseline.getProperty("referenceThroughput.tolerance",
+				Double.toString(REFERENCE_THROUGHPUT_TOLERANCE_DEFAULT)));
+		for (Map.Entry<String, Score> entry : scores.entrySet()) {
+			Score s = entry.getValue();
+			recorded.put(entry.getKey() + ".precision", String.format(Locale.ROOT, "%.4f", s.precision()));
+			recorded.put(entry.getKey() + ".recall", String.format(Locale.ROOT, "%.4f", s.recall()));
+			recorded.put(entry.getKey() + ".meanIoU", String.format(Locale.ROOT, "%.4f", s.meanIoU()));
+			if (REFERENCE_MODE.equals(entry.getKey())) {
+				recorded.put(entry.getKey() + ".megapixelsPerSecond", String.format(Locale.ROOT, "%.2f", s.megapixelsPerSecond()));
+			} else {
+				recorded.put(entry.getKey() + ".relativeThroughput", String.format(Locale.ROOT, "%.2f", relativeThroughput(scores, entry.getKey())));
+			}
+		}
+		StringBuilder file = new StringBuilder();
+		file.append("# The detection regression baseline (recorded with -Dregression.record=true), the accuracy may fall by\n");
+		file.append("# accuracy.tolerance and the throughput by the fraction throughput.tolerance before the harness fails (the\n");
+		file.append("# throughput of each mode being relative to the " + REFERENCE_MODE + " mode of the same run), the megapixels per\n");
+		file.append("# second of the " + REFERENCE_MODE + " mode may fall by the fraction referenceThroughput.tolerance (which is\n");
+		file.append("# recorded on one machine so is overridden with -Dregression.referenceThroughputTolerance on another)\n");
+		for (Map.Entry<String, String> entry : recorded.entrySet()) {
+			file.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		Files.createDirectories(BASELINE.getParent());
+		Files.writeString(BASELINE, file);
+	}
+}
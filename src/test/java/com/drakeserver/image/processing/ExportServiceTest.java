@@ -0,0 +1,161 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.ExportResult;
+
+public class ExportServiceTest {
+
+	@TempDir
+	Path directory;
+
+	private Map<String, Object> createPayload(String format) throws IOException {
+		BufferedImage image = new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.RED);
+		g.fillRect(0, 0, 100, 100);
+		g.setColor(Color.BLUE);
+		g.fillRect(100, 0, 100, 100);
+		g.dispose();
+		Path source = directory.resolve("page.png");
+		ImageIO.write(image, "png", source.toFile());
+
+		Map<String, Object> payload = new HashMap<>();
+		payload.put("filename", source.toString());
+		payload.put(ExportService.FOLDER, directory.resolve("out").toString());
+		payload.put(ExportService.FORMAT, format);
+		payload.put(ExportService.REGIONS, List.of(
+				Map.of("box", Map.of("x", 10, "y", 20, "width", 30, "height", 40), "filename", "red." + format),
+				Map.of("box", Map.of("x", 150, "y", 20, "width", 30, "height", 40), "filename", "album/blue." + format, "rotate", 90),
+				Map.of("box", Map.of("x", 0, "y", 0, "width", 10, "height", 10), "filename", "../escaped." + format)));
+		return payload;
+	}
+
+	private List<ExportResult> export(ExportService service, Map<String, Object> payload) throws IOException {
+		List<ExportResult> results = new ArrayList<>();
+		service.export(service.getRegions(payload), payload, results::add);
+		results.sort((a, b) -> a.getFilename().compareTo(b.getFilename()));
+		return results;
+	}
+
+	@Test
+	public void export_WritesRegionsAndReportsExisting() throws IOException {
+		ExportService service = new ExportService(new ImageProcessorService());
+		Map<String, Object> payload = createPayload("png");
+		List<ExportResult> results = export(service, payload);
+		assertEquals(3, results.size());
+		assertNotNull(results.get(0).getError());
+		assertTrue(results.get(1).isSaved());
+		assertTrue(results.get(2).isSaved());
+
+		BufferedImage blue = ImageIO.read(directory.resolve("out/album/blue.png").toFile());
+		assertEquals(40, blue.getWidth());
+		assertEquals(30, blue.getHeight());
+		assertEquals(Color.BLUE.getRGB(), blue.getRGB(5, 5));
+		assertEquals(Color.RED.getRGB(), ImageIO.read(directory.resolve("out/red.png").toFile()).getRGB(5, 5));
+		assertFalse(Files.exists(directory.resolve("escaped.png")));
+
+		results = export(service, payload);
+		assertTrue(results.get(1).isExists());
+		assertFalse(results.get(1).isSaved());
+		payload.put(ExportService.OVERWRITE, true);
+		assertTrue(export(service, payload).get(1).isSaved());
+	}
+
+	@Test
+	public void export_LossyFormats() throws IOException {
+		ExportService service = new ExportService(new ImageProcessorService());
+		for (String format : List.of("jpg", "tiff")) {
+			List<ExportResult> results = export(service, createPayload(format));
+			assertTrue(results.get(2).isSaved(), format);
+			assertEquals(30, ImageIO.read(directory.resolve("out/red." + format).toFile()).getWidth());
+		}
+	}
+
+	@Test
+	public void export_ErrorStillReportsRegion() {
+		ImageProcessorService imageProcessorService = new ImageProcessorService();
+		ExportService service = new ExportService(imageProcessorService) {
+			@Override
+			Encoder createEncoder(Map<String, ?> payload) throws IOException {
+				return new Encoder("png", ExportService.QUALITY_DEFAULT, ExportService.TIFF_COMPRESSION_DEFAULT) {
+					@Override
+					void write(BufferedImage image, Path file) {
+						throw new OutOfMemoryError("encoding " + file.getFileName());
+					}
+				};
+			}
+		};
+		long available = imageProcessorService.getMemoryAdmission().getAvailable();
+		List<ExportResult> results = assertTimeoutPreemptively(Duration.ofSeconds(30), () -> export(service, createPayload("png")));
+		assertEquals(3, results.size());
+		for (ExportResult result : results) {
+			assertFalse(result.isSaved());
+			assertNotNull(result.getError());
+		}
+		assertTrue(results.get(1).getError().contains("OutOfMemoryError"));
+		assertEquals(available, imageProcessorService.getMemoryAdmission().getAvailable());
+	}
+
+	@Test
+	public void export_ParallelismCappedAtCpuPool() throws IOException {
+		ImageProcessorService imageProcessorService = new ImageProcessorService();
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		ExportService service = new ExportService(imageProcessorService) {
+			@Override
+			Encoder createEncoder(Map<String, ?> payload) throws IOException {
+				return new Encoder("png", ExportService.QUALITY_DEFAULT, ExportService.TIFF_COMPRESSION_DEFAULT) {
+					@Override
+					void write(BufferedImage image, Path file) throws IOException {
+						peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+						try {
+							Thread.sleep(20);
+							super.write(image, file);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} finally {
+							running.decrementAndGet();
+						}
+					}
+				};
+			}
+		};
+		Map<String, Object> payload = createPayload("png");
+		payload.put(ExportService.PARALLELISM, 5000);
+		List<ExportResult> results = export(service, payload);
+		assertEquals(3, results.size());
+		assertTrue(results.get(1).isSaved());
+		assertTrue(peak.get() <= imageProcessorService.getCpuParallelism());
+	}
+
+	@Test
+	public void crop_Rotated() throws IOException {
+		BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, 0xff0000);
+		BufferedImage rotated = ExportService.crop(image, new BoundingBox(0, 0, 4, 2), 90);
+		assertEquals(2, rotated.getWidth());
+		assertEquals(4, rotated.getHeight());
+		assertEquals(0xff0000, rotated.getRGB(1, 0) & 0xffffff);
+		assertEquals(0xff0000, ExportService.crop(image, new BoundingBox(0, 0, 4, 2), 270).getRGB(0, 3) & 0xffffff);
+		assertThrows(IOException.class, () -> ExportService.crop(image, new BoundingBox(10, 10, 4, 2), 0));
+	}
+}
@@ -4,10 +4,21 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
+import javax.imageio.ImageIO;
+
+import com.drakeserver.image.ImageConstants;
 import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.SweepResult;
 
 import ij.measure.ResultsTable;
 
@@ -80,6 +91,12 @@ public class ImageProcessorServiceTest {
 		assertEquals(10, box.getY());
 	}
 	
+	@Test
+	public void process_UnreadableStream() {
+		ByteArrayInputStream in = new ByteArrayInputStream(new byte[] { 0x01, 0x02, 0x03, 0x04 });
+		assertThrows(IOException.class, () -> service.process(in, Collections.emptyMap()));
+	}
+
 	@Test
 	public void postProcessBoundingBoxes_InnerRemoved() {
 		BoundingBox box = new BoundingBox(0, 0, 100, 100);
@@ -102,4 +119,61 @@ public class ImageProcessorServiceTest {
 		assertTrue(!boxes.contains(intersection));
 	}
 
+	@Test
+	public void process_TiledMatchesWholeImage() throws IOException {
+		SyntheticPageGenerator.Page page = SyntheticPageGenerator.page(1);
+		// the contrast stretch of the tiles is then taken from every pixel as it is for the whole image
+		assertTrue(page.image.getWidth() * page.image.getHeight() <= ImageProcessorService.CONTRAST_SAMPLE_PIXELS);
+		List<BoundingBox> whole = service.process(page.image, new Properties());
+		assertFalse(whole.isEmpty());
+		// the seams of the tiles cross the stamps
+		Properties options = new Properties();
+		options.setProperty(ImageConstants.TILE_SIZE, "333");
+		assertEquals(whole, service.process(page.image, options));
+	}
+
+	@Test
+	public void process_TiledStreamMatchesWholeImage() throws IOException {
+		SyntheticPageGenerator.Page page = SyntheticPageGenerator.page(1);
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(page.image, "png", png);
+		List<BoundingBox> whole = service.process(new ByteArrayInputStream(png.toByteArray()), Map.of());
+		// the bands of tiles are read from the encoded image
+		assertEquals(whole, service.process(new ByteArrayInputStream(png.toByteArray()), Map.of(ImageConstants.TILE_SIZE, "700")));
+	}
+
+	@Test
+	public void sweep_SharesMaskWithNumericOptions() throws IOException {
+		SyntheticPageGenerator.Page page = SyntheticPageGenerator.page(2);
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(page.image, "png", png);
+		// the options of a JSON payload are numbers rather than strings
+		Map<String, Object> payload = Map.of(
+				"file", "data:image/png;base64," + Base64.getEncoder().encodeToString(png.toByteArray()),
+				"options", Map.of(ImageConstants.DILATION_COUNT, 2),
+				"variants", List.of(
+						Map.of(ImageConstants.BOX_PADDING, 0),
+						Map.of(ImageConstants.BOX_PADDING, 25),
+						Map.of(ImageConstants.MIN_BOUNDING_AREA, 100000)));
+		List<SweepResult> results = service.sweep(payload);
+
+		assertEquals(3, results.size());
+		assertFalse(results.get(0).isSharedMask());
+		assertTrue(results.get(1).isSharedMask());
+		assertTrue(results.get(2).isSharedMask());
+		String[][] expected = {
+				{ ImageConstants.BOX_PADDING, "0" },
+				{ ImageConstants.BOX_PADDING, "25" },
+				{ ImageConstants.MIN_BOUNDING_AREA, "100000" } };
+		for (int i = 0; i < expected.length; i++) {
+			assertNull(results.get(i).getError());
+			Properties options = new Properties();
+			options.setProperty(ImageConstants.DILATION_COUNT, "2");
+			options.setProperty(expected[i][0], expected[i][1]);
+			assertEquals(service.process(page.image, options), results.get(i).getBoxes());
+		}
+		assertNotEquals(results.get(0).getBoxes(), results.get(1).getBoxes());
+		assertNotEquals(results.get(0).getBoxes(), results.get(2).getBoxes());
+	}
+
 }
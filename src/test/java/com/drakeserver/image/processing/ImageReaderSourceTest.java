@@ -0,0 +1,76 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import com.drakeserver.image.model.BoundingBox;
+
+public class ImageReaderSourceTest {
+
+	@TempDir
+	Path folder;
+
+	File file;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, 300, 200);
+		g.setColor(Color.RED);
+		g.fillRect(100, 50, 20, 10);
+		g.dispose();
+		file = folder.resolve("page.png").toFile();
+		ImageIO.write(image, "png", file);
+	}
+
+	@Test
+	public void read_Subsampled() throws IOException {
+		try (ImageSource source = ImageReaderSource.open(file)) {
+			assertEquals(300, source.getWidth());
+			assertEquals(200, source.getHeight());
+			BufferedImage image = source.read(4);
+			assertEquals(75, image.getWidth());
+			assertEquals(50, image.getHeight());
+		}
+	}
+
+	@Test
+	public void readRegion_OnlyRegion() throws IOException {
+		try (ImageSource source = ImageReaderSource.open(file)) {
+			BufferedImage image = source.readRegion(new BoundingBox(95, 45, 30, 20));
+			assertEquals(30, image.getWidth());
+			assertEquals(20, image.getHeight());
+			assertEquals(Color.WHITE.getRGB(), image.getRGB(4, 4));
+			assertEquals(Color.RED.getRGB(), image.getRGB(5, 5));
+		}
+	}
+
+	@Test
+	public void open_Stream() throws IOException {
+		byte[] data = Files.readAllBytes(file.toPath());
+		try (ImageSource source = ImageReaderSource.open(new ByteArrayInputStream(data))) {
+			assertEquals(300, source.read().getWidth());
+			assertEquals(20, source.readRegion(new BoundingBox(100, 50, 20, 10)).getWidth());
+		}
+	}
+
+	@Test
+	public void open_Unreadable() {
+		assertThrows(IOException.class, () -> ImageReaderSource.open(new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+	}
+}
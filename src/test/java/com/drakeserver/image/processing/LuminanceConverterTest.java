@@ -0,0 +1,54 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+public class LuminanceConverterTest {
+
+	private BufferedImage createImage(int type) {
+		BufferedImage image = new BufferedImage(40, 30, type);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, 40, 30);
+		g.setColor(new Color(200, 100, 50));
+		g.fillRect(10, 5, 20, 10);
+		g.dispose();
+		return image;
+	}
+
+	@Test
+	public void toGray_PackedAndInterleavedMatch() {
+		int expected = LuminanceConverter.luminance(200, 100, 50);
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_BGR,
+				BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_USHORT_565_RGB }) {
+			byte[] gray = LuminanceConverter.toGray(createImage(type), null);
+			assertEquals(40 * 30, gray.length);
+			assertEquals(255, gray[0] & 0xff, "type " + type);
+			assertEquals(expected, gray[6 * 40 + 12] & 0xff, 8, "type " + type);
+		}
+	}
+
+	@Test
+	public void toGray_SubImage() {
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+			BufferedImage sub = createImage(type).getSubimage(8, 4, 10, 6);
+			byte[] gray = LuminanceConverter.toGray(sub, null);
+			assertEquals(60, gray.length);
+			assertEquals(255, gray[0] & 0xff);
+			assertEquals(LuminanceConverter.luminance(200, 100, 50), gray[1 * 10 + 2] & 0xff);
+			assertEquals(255, gray[1 * 10 + 1] & 0xff);
+		}
+	}
+
+	@Test
+	public void toGray_GrayValuesAsStored() {
+		BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_BYTE_GRAY);
+		image.getRaster().setSample(1, 1, 0, 77);
+		byte[] gray = LuminanceConverter.toGray(image.getSubimage(1, 1, 3, 1), null);
+		assertArrayEquals(new byte[] { 77, 0, 0 }, gray);
+	}
+}
@@ -0,0 +1,65 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class MemoryAdmissionTest {
+
+	@Test
+	public void estimate_ProxyCountsSubsampledPixels() {
+		long full = MemoryAdmission.estimate(4000, 3000, 1.0);
+		assertEquals((long) (ImageProcessorService.AVAILABLE_MEMORY_RATIO * 4 * 4000 * 3000), full);
+		assertEquals(full, MemoryAdmission.estimate(4000, 3000, 0.5));
+		assertEquals(full / 4, MemoryAdmission.estimate(4000, 3000, 0.25));
+	}
+
+	@Test
+	public void getFallbackScale_FitsCapacity() {
+		MemoryAdmission admission = new MemoryAdmission(MemoryAdmission.estimate(20000, 20000, 1.0) / 10);
+		assertFalse(admission.canAdmit(MemoryAdmission.estimate(20000, 20000, 1.0)));
+		double scale = admission.getFallbackScale(20000, 20000);
+		assertTrue(scale >= MemoryAdmission.MINIMUM_FALLBACK_SCALE && scale < 0.5);
+		assertTrue(admission.canAdmit(MemoryAdmission.estimate(20000, 20000, scale)));
+
+		MemoryAdmission tiny = new MemoryAdmission(1024 * 1024);
+		assertEquals(0.0, tiny.getFallbackScale(20000, 20000));
+	}
+
+	@Test
+	public void acquire_WeightedByBytes() throws InterruptedException {
+		MemoryAdmission admission = new MemoryAdmission(100 * 1024);
+		admission.acquire(60 * 1024);
+		assertTrue(admission.tryAcquire(30 * 1024));
+		assertFalse(admission.tryAcquire(20 * 1024));
+		admission.release(60 * 1024);
+		assertTrue(admission.tryAcquire(20 * 1024));
+		assertEquals(50 * 1024, admission.getAvailable());
+	}
+
+	@Test
+	public void tryAcquire_DoesNotBargeAheadOfWaiting() throws InterruptedException {
+		MemoryAdmission admission = new MemoryAdmission(100 * 1024);
+		admission.acquire(60 * 1024);
+		Thread waiter = new Thread(() -> {
+			try {
+				admission.acquire(80 * 1024);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		waiter.start();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (waiter.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+			Thread.onSpinWait();
+		}
+		assertEquals(Thread.State.WAITING, waiter.getState());
+		// the memory is free but the large request waiting is served first
+		assertFalse(admission.tryAcquire(30 * 1024));
+		admission.release(60 * 1024);
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertEquals(20 * 1024, admission.getAvailable());
+	}
+}
@@ -0,0 +1,111 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.ProcessingJob;
+import com.drakeserver.image.model.ProcessingJob.State;
+import com.drakeserver.messaging.MessageConstants;
+import com.drakeserver.messaging.MessageHelper;
+import com.drakeserver.messaging.ProgressPublisher;
+
+public class ProcessingJobServiceTest {
+
+	CountDownLatch release;
+	LinkedBlockingQueue<Object> pushed;
+	ProgressPublisher progressPublisher;
+	ProcessingJobService jobService;
+
+	@BeforeEach
+	public void setup() {
+		release = new CountDownLatch(1);
+		pushed = new LinkedBlockingQueue<>();
+		ImageProcessorService processor = new ImageProcessorService() {
+			@Override
+			public List<BoundingBox> process(Map<String, ?> opts, String statusDestination) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				if (opts.containsKey("fail")) {
+					throw new IOException("Unable to decode the supplied image data");
+				}
+				return List.of(new BoundingBox(1, 2, 3, 4));
+			}
+		};
+		MessageHelper messageHelper = new MessageHelper() {
+			@Override
+			public void dispatchMessage(String destination, Object payload) {
+				pushed.add(payload);
+			}
+		};
+		progressPublisher = new ProgressPublisher(messageHelper, 0L);
+		jobService = new ProcessingJobService(processor, progressPublisher, 1, 1, 60);
+	}
+
+	@AfterEach
+	public void teardown() {
+		jobService.shutdown();
+		progressPublisher.shutdown();
+	}
+
+	@Test
+	public void submit_CompletesAndPushesResult() throws InterruptedException {
+		ProcessingJob job = jobService.submit(Map.of());
+		assertEquals(MessageConstants.JOB_STATUS_PREFIX + job.getId(), job.getDestination());
+		assertSame(job, jobService.getJob(job.getId()));
+		release.countDown();
+
+		assertSame(job, pushed.poll(5, TimeUnit.SECONDS));
+		assertEquals(State.COMPLETED, job.getState());
+		assertEquals(List.of(new BoundingBox(1, 2, 3, 4)), job.getBoxes());
+		assertTrue(job.getCompleted() >= job.getStarted());
+	}
+
+	@Test
+	public void submit_FailureRecorded() throws InterruptedException {
+		release.countDown();
+		ProcessingJob job = jobService.submit(Map.of("fail", true));
+		assertSame(job, pushed.poll(5, TimeUnit.SECONDS));
+		assertEquals(State.FAILED, job.getState());
+		assertNotNull(job.getError());
+	}
+
+	@Test
+	public void submit_RejectedWhenQueueFull() throws InterruptedException {
+		ProcessingJob running = jobService.submit(Map.of());
+		ProcessingJob queued = jobService.submit(Map.of());
+		assertThrows(JobRejectedException.class, () -> jobService.submit(Map.of()));
+		release.countDown();
+		assertNotNull(pushed.poll(5, TimeUnit.SECONDS));
+		assertNotNull(pushed.poll(5, TimeUnit.SECONDS));
+		assertEquals(State.COMPLETED, running.getState());
+		assertEquals(State.COMPLETED, queued.getState());
+	}
+
+	@Test
+	public void submit_FinishedJobNotExpired() throws InterruptedException {
+		ProcessingJob job = jobService.submit(Map.of());
+		release.countDown();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!job.isFinished() && System.nanoTime() < deadline) {
+			Thread.onSpinWait();
+		}
+		assertTrue(job.isFinished());
+		assertTrue(job.getCompleted() > 0L);
+		// the next submission expires the jobs past their retention
+		jobService.submit(Map.of());
+		assertSame(job, jobService.getJob(job.getId()));
+	}
+}
@@ -0,0 +1,83 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Properties;
+
+import com.drakeserver.image.ImageConstants;
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.BoundingBoxBuffer;
+
+public class ProxyDetectionTest {
+
+	@Test
+	public void getScale_FromResolution() {
+		Properties options = new Properties();
+		assertEquals(1.0, ProxyDetection.getScale(options, 0.0));
+		options.setProperty(ImageConstants.RESOLUTION, "600");
+		options.setProperty(ImageConstants.PROXY_RESOLUTION, "150");
+		assertEquals(0.25, ProxyDetection.getScale(options, 0.0));
+		options.setProperty(ImageConstants.PROXY_RESOLUTION, "1200");
+		assertEquals(1.0, ProxyDetection.getScale(options, 0.0));
+		options.setProperty(ImageConstants.PROXY_SCALE, "0.5");
+		assertEquals(0.5, ProxyDetection.getScale(options, 0.0));
+	}
+
+	@Test
+	public void getScale_FromImageResolution() {
+		Properties options = new Properties();
+		options.setProperty(ImageConstants.PROXY_RESOLUTION, "150");
+		assertEquals(1.0, ProxyDetection.getScale(options, 0.0));
+		assertEquals(0.5, ProxyDetection.getScale(options, 300.0));
+		options.setProperty(ImageConstants.RESOLUTION, "600");
+		assertEquals(0.25, ProxyDetection.getScale(options, 300.0));
+	}
+
+	@Test
+	public void downscale_TargetSize() {
+		BufferedImage image = new BufferedImage(1001, 600, BufferedImage.TYPE_INT_RGB);
+		BufferedImage proxy = ProxyDetection.downscale(image, 0.25);
+		assertEquals(250, proxy.getWidth());
+		assertEquals(150, proxy.getHeight());
+	}
+
+	@Test
+	public void mapToSource_CoversSourcePixels() {
+		BoundingBoxBuffer particles = new BoundingBoxBuffer();
+		particles.add(10, 5, 20, 30);
+		particles.add(90, 60, 10, 15);
+		ProxyDetection.mapToSource(particles, 0.25, 390, 300);
+		assertEquals(new BoundingBox(40, 20, 80, 120), particles.get(0));
+		assertEquals(new BoundingBox(360, 240, 30, 60), particles.get(1));
+	}
+
+	@Test
+	public void refine_SnapsToEdges() throws IOException {
+		BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, 400, 300);
+		g.setColor(Color.DARK_GRAY);
+		g.fillRect(103, 57, 150, 121);
+		g.dispose();
+
+		BoundingBoxBuffer particles = new BoundingBoxBuffer();
+		particles.add(100, 56, 156, 124);
+		ProxyDetection.refine(new BufferedImageSource(image), particles, 0.25);
+		assertEquals(new BoundingBox(103, 57, 150, 121), particles.get(0));
+	}
+
+	@Test
+	public void refine_NoContrastUnchanged() throws IOException {
+		BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+		BoundingBoxBuffer particles = new BoundingBoxBuffer();
+		particles.add(100, 56, 156, 124);
+		ProxyDetection.refine(new BufferedImageSource(image), particles, 0.25);
+		assertEquals(new BoundingBox(100, 56, 156, 124), particles.get(0));
+	}
+}
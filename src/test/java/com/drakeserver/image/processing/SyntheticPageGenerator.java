@@ -0,0 +1,218 @@
+package com.drakeserver.image.processing;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RadialGradientPaint;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.TexturePaint;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.drakeserver.image.model.BoundingBox;
+
+/**
+ * Renders deterministic synthetic album pages with known stamp rectangles.  Each page is a letter
+ * size page scanned at 150, 200 or 300 dpi with an uneven (gradient and blotched) cream or black
+ * stock-book background.  The stamps have perforated edges, a paper margin around a darker design
+ * (some with a light centre) and some carry a translucent hinge over the top edge.  Dust specks and
+ * sensor noise are added over the whole page.
+ * <p>
+ * The ground truth of a stamp is its full rectangle from perforation tip to tip.  The same seed
+ * always renders the same page.
+ */
+final class SyntheticPageGenerator {
+
+	static final int[] DPI = { 150, 200, 300 };
+
+	static final double PAGE_WIDTH_INCHES = 8.5;
+	static final double PAGE_HEIGHT_INCHES = 11.0;
+
+	/**
+	 * A rendered page and the rectangles of its stamps.
+	 */
+	static final class Page {
+		final long seed;
+		final int dpi;
+		final boolean dark;
+		final BufferedImage image;
+		final List<BoundingBox> stamps;
+
+		Page(long seed, int dpi, boolean dark, BufferedImage image, List<BoundingBox> stamps) {
+			this.seed = seed;
+			this.dpi = dpi;
+			this.dark = dark;
+			this.image = image;
+			this.stamps = Collections.unmodifiableList(stamps);
+		}
+
+		double getMegapixels() {
+			return image.getWidth() * (double) image.getHeight() / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return "page " + seed + " (" + image.getWidth() + "x" + image.getHeight() + " at " + dpi + "dpi, "
+					+ (dark ? "dark" : "light") + ", " + stamps.size() + " stamps)";
+		}
+	}
+
+	private SyntheticPageGenerator() { }
+
+	/**
+	 * The pages of the corpus cycle through the resolutions with every other pair of pages dark.
+	 */
+	static Page page(int index) {
+		return generate(index + 1L, DPI[index % DPI.length], (index / 2) % 2 == 1);
+	}
+
+	static Page generate(long seed, int dpi, boolean dark) {
+		Random random = new Random(seed);
+		int width = (int) Math.round(PAGE_WIDTH_INCHES * dpi);
+		int height = (int) Math.round(PAGE_HEIGHT_INCHES * dpi);
+
+		BufferedImage background = renderBackground(random, width, height, dpi, dark);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		List<BoundingBox> stamps = new ArrayList<>();
+		Graphics2D g = image.createGraphics();
+		try {
+			g.drawImage(background, 0, 0, null);
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			TexturePaint backgroundPaint = new TexturePaint(background, new Rectangle(0, 0, width, height));
+			int margin = inches(0.5, dpi);
+			int y = margin;
+			while (true) {
+				int rowHeight = inches(0.9 + random.nextDouble() * 0.9, dpi);
+				if (y + rowHeight > height - margin) {
+					break;
+				}
+				int x = margin + random.nextInt(inches(0.3, dpi));
+				while (true) {
+					int w = inches(0.8 + random.nextDouble() * 0.8, dpi);
+					int h = rowHeight - random.nextInt(Math.max(1, rowHeight / 4));
+					if (x + w > width - margin) {
+						break;
+					}
+					int sy = y + random.nextInt(Math.max(1, rowHeight - h + 1));
+					BoundingBox stamp = new BoundingBox(x, sy, w, h);
+					drawStamp(g, random, stamp, dpi, backgroundPaint);
+					if (random.nextInt(3) == 0) {
+						drawHinge(g, random, stamp, dpi);
+					}
+					stamps.add(stamp);
+					x += w + inches(0.3 + random.nextDouble() * 0.3, dpi);
+				}
+				y += rowHeight + inches(0.35 + random.nextDouble() * 0.25, dpi);
+			}
+		} finally {
+			g.dispose();
+		}
+		addNoise(image, random, dark);
+		return new Page(seed, dpi, dark, image, stamps);
+	}
+
+	private static int inches(double inches, int dpi) {
+		return (int) Math.round(inches * dpi);
+	}
+
+	private static BufferedImage renderBackground(Random random, int width, int height, int dpi, boolean dark) {
+		BufferedImage background = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = background.createGraphics();
+		try {
+			// uneven lighting from one corner to the other
+			Color base = dark ? new Color(28, 28, 32) : new Color(232, 227, 212);
+			Color shade = dark ? new Color(44, 42, 46) : new Color(205, 198, 180);
+			g.setPaint(new GradientPaint(0, 0, base, width, height, shade));
+			g.fillRect(0, 0, width, height);
+			// foxing and stains
+			for (int i = 0; i < 4; i++) {
+				float radius = inches(0.6 + random.nextDouble() * 1.2, dpi);
+				float cx = random.nextInt(width);
+				float cy = random.nextInt(height);
+				Color stain = dark ? new Color(60, 58, 54, 90) : new Color(190, 170, 130, 70);
+				g.setPaint(new RadialGradientPaint(cx, cy, radius, new float[] { 0.0f, 1.0f },
+						new Color[] { stain, new Color(stain.getRed(), stain.getGreen(), stain.getBlue(), 0) }));
+				g.fill(new Ellipse2D.Float(cx - radius, cy - radius, 2 * radius, 2 * radius));
+			}
+		} finally {
+			g.dispose();
+		}
+		return background;
+	}
+
+	private static void drawStamp(Graphics2D g, Random random, BoundingBox stamp, int dpi, TexturePaint backgroundPaint) {
+		int x = stamp.getX();
+		int y = stamp.getY();
+		int w = stamp.getWidth();
+		int h = stamp.getHeight();
+		boolean fullBleed = random.nextInt(4) == 0;
+		int paper = 236 + random.nextInt(16);
+		g.setColor(new Color(paper, paper - random.nextInt(6), paper - 8 - random.nextInt(10)));
+		g.fillRect(x, y, w, h);
+
+		int inset = fullBleed ? 0 : Math.max(2, (int) (Math.min(w, h) * (0.06 + random.nextDouble() * 0.05)));
+		Color design = new Color(30 + random.nextInt(140), 30 + random.nextInt(140), 30 + random.nextInt(140));
+		g.setColor(design);
+		g.fillRect(x + inset, y + inset, w - 2 * inset, h - 2 * inset);
+		// the vignette, value tablet and lettering of the design
+		int dw = w - 2 * inset;
+		int dh = h - 2 * inset;
+		if (random.nextBoolean()) {
+			g.setColor(new Color(Math.min(255, design.getRed() + 90), Math.min(255, design.getGreen() + 90), Math.min(255, design.getBlue() + 90)));
+			g.fill(new Ellipse2D.Double(x + inset + dw * 0.2, y + inset + dh * 0.15, dw * 0.6, dh * 0.55));
+		}
+		g.setColor(new Color(paper, paper, paper));
+		for (int line = 0; line < 2; line++) {
+			int ly = y + inset + dh - (line + 1) * Math.max(3, dh / 10);
+			g.fillRect(x + inset + dw / 6, ly, dw * 2 / 3, Math.max(1, dh / 40));
+		}
+
+		// perforations cut back to the page
+		double radius = dpi * 0.018;
+		double pitch = dpi * 0.055;
+		g.setPaint(backgroundPaint);
+		for (double px = x + pitch / 2; px < x + w; px += pitch) {
+			g.fill(new Ellipse2D.Double(px - radius, y - radius, 2 * radius, 2 * radius));
+			g.fill(new Ellipse2D.Double(px - radius, y + h - radius, 2 * radius, 2 * radius));
+		}
+		for (double py = y + pitch / 2; py < y + h; py += pitch) {
+			g.fill(new Ellipse2D.Double(x - radius, py - radius, 2 * radius, 2 * radius));
+			g.fill(new Ellipse2D.Double(x + w - radius, py - radius, 2 * radius, 2 * radius));
+		}
+	}
+
+	private static void drawHinge(Graphics2D g, Random random, BoundingBox stamp, int dpi) {
+		int hw = stamp.getWidth() * (30 + random.nextInt(20)) / 100;
+		int hx = stamp.getX() + (stamp.getWidth() - hw) / 2;
+		int hy = stamp.getY() - inches(0.12, dpi);
+		int hh = inches(0.3, dpi);
+		g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.45f));
+		g.setColor(new Color(250, 250, 246));
+		g.fillRect(hx, hy, hw, hh);
+		g.setComposite(AlphaComposite.SrcOver);
+	}
+
+	private static void addNoise(BufferedImage image, Random random, boolean dark) {
+		int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < data.length; i++) {
+			int c = data[i];
+			int n = random.nextInt(13) - 6;
+			if (random.nextInt(5000) == 0) {
+				// dust
+				n = dark ? 120 : -120;
+			}
+			data[i] = (clamp(((c >> 16) & 0xff) + n) << 16) | (clamp(((c >> 8) & 0xff) + n) << 8) | clamp((c & 0xff) + n);
+		}
+	}
+
+	private static int clamp(int v) {
+		return Math.max(0, Math.min(255, v));
+	}
+}
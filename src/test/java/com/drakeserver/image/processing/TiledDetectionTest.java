@@ -0,0 +1,129 @@
+package com.drakeserver.image.processing;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.drakeserver.image.model.BoundingBox;
+import com.drakeserver.image.model.BoundingBoxBuffer;
+import com.drakeserver.image.processing.ComponentLabeller.Connectivity;
+
+public class TiledDetectionTest {
+
+	@Test
+	public void createTiles_Overlapping() {
+		List<BoundingBox> tiles = TiledDetection.createTiles(250, 120, 100, 10);
+		assertEquals(6, tiles.size());
+		assertEquals(new BoundingBox(0, 0, 110, 110), tiles.get(0));
+		assertEquals(new BoundingBox(90, 0, 120, 110), tiles.get(1));
+		assertEquals(new BoundingBox(190, 0, 60, 110), tiles.get(2));
+		assertEquals(new BoundingBox(190, 90, 60, 30), tiles.get(5));
+	}
+
+	@Test
+	public void merge_SeamParticleMeasuredOnce() {
+		BinaryMask mask = new BinaryMask(250, 120);
+		fill(mask, 60, 20, 90, 40);
+		BoundingBoxBuffer particles = merge(mask, 100, 3000, true);
+		assertEquals(1, particles.size());
+		assertEquals(new BoundingBox(60, 20, 90, 40), particles.get(0));
+		// the particle is 3600 pixels so it is dropped at a larger minimum (the halves are not summed twice)
+		assertEquals(0, merge(mask, 100, 3601, true).size());
+	}
+
+	@Test
+	public void merge_DiagonalTouchAcrossSeamJoined() {
+		BinaryMask mask = new BinaryMask(200, 200);
+		fill(mask, 80, 80, 20, 20);
+		fill(mask, 100, 100, 20, 20);
+		BoundingBoxBuffer particles = merge(mask, 100, 1, true);
+		assertEquals(1, particles.size());
+		assertEquals(new BoundingBox(80, 80, 40, 40), particles.get(0));
+	}
+
+	@Test
+	public void merge_BoundsIntersectingNotJoined() {
+		// an L shape and a block within its bounds but not touching it, both cut by the seam
+		BinaryMask mask = new BinaryMask(200, 200);
+		fill(mask, 50, 50, 100, 10);
+		fill(mask, 50, 50, 10, 100);
+		fill(mask, 90, 90, 20, 20);
+		BoundingBoxBuffer particles = merge(mask, 100, 1, true);
+		assertEquals(2, particles.size());
+	}
+
+	@Test
+	public void merge_HoleAcrossSeamsFilled() {
+		BinaryMask ring = new BinaryMask(200, 200);
+		fill(ring, 50, 50, 100, 10);
+		fill(ring, 50, 140, 100, 10);
+		fill(ring, 50, 60, 10, 80);
+		fill(ring, 140, 60, 10, 80);
+		BoundingBoxBuffer filled = merge(ring, 100, 10000, true);
+		assertEquals(1, filled.size());
+		assertEquals(new BoundingBox(50, 50, 100, 100), filled.get(0));
+		// without filling the holes the ring alone is too small
+		assertEquals(0, merge(ring, 100, 10000, false).size());
+	}
+
+	@Test
+	public void merge_EdgeParticlesExcluded() {
+		BinaryMask mask = new BinaryMask(250, 120);
+		fill(mask, 0, 20, 150, 40);
+		fill(mask, 160, 70, 50, 30);
+		BoundingBoxBuffer particles = merge(mask, 100, 1, true);
+		assertEquals(1, particles.size());
+		assertEquals(new BoundingBox(160, 70, 50, 30), particles.get(0));
+	}
+
+	@Test
+	public void merge_MatchesWholeMask() {
+		Random random = new Random(7L);
+		for (int trial = 0; trial < 60; trial++) {
+			int width = 20 + random.nextInt(200);
+			int height = 20 + random.nextInt(200);
+			BinaryMask mask = new BinaryMask(width, height);
+			double density = 0.2 + 0.5 * random.nextDouble();
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					if (random.nextDouble() < density) {
+						mask.set(x, y);
+					}
+				}
+			}
+			for (int tileSize : new int[] { 7, 64, 65 + random.nextInt(100) }) {
+				for (boolean fillHoles : new boolean[] { true, false }) {
+					BinaryMask whole = mask.region(0, 0, width, height);
+					if (fillHoles) {
+						whole.fillHoles();
+					}
+					ComponentLabeller labeller = new ComponentLabeller(Connectivity.EIGHT);
+					BoundingBoxBuffer expected = new BoundingBoxBuffer(labeller.label(whole));
+					labeller.collect(expected, 3, width * height, true);
+					BoundingBoxBuffer particles = merge(mask, tileSize, 3, fillHoles);
+					assertEquals(expected.toList(), particles.toList(), "Trial " + trial + " with tiles of " + tileSize);
+				}
+			}
+		}
+	}
+
+	private static BoundingBoxBuffer merge(BinaryMask mask, int tileSize, int minimumArea, boolean fillHoles) {
+		List<TiledDetection.Tile> tiles = new ArrayList<>();
+		for (BoundingBox core : TiledDetection.createTiles(mask.getWidth(), mask.getHeight(), tileSize, 0)) {
+			BinaryMask region = mask.region(core.getX(), core.getY(), core.getWidth(), core.getHeight());
+			tiles.add(TiledDetection.analyze(region, core, mask.getWidth(), mask.getHeight(), fillHoles));
+		}
+		return TiledDetection.merge(tiles, mask.getWidth(), mask.getHeight(), minimumArea, true);
+	}
+
+	private static void fill(BinaryMask mask, int x, int y, int width, int height) {
+		for (int j = y; j < y + height; j++) {
+			for (int i = x; i < x + width; i++) {
+				mask.set(i, j);
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.drakeserver.messaging;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ProgressPublisherTest {
+
+	@Test
+	public void publish_CoalescedWhileClientIsSlow() throws InterruptedException {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(1);
+		List<Object> sent = new CopyOnWriteArrayList<>();
+		MessageHelper messageHelper = new MessageHelper() {
+			@Override
+			public void dispatchMessage(String destination, String msg) {
+				dispatchMessage(destination, (Object) msg);
+			}
+
+			@Override
+			public void dispatchMessage(String destination, Object payload) {
+				try {
+					blocked.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				sent.add(payload);
+				if ("done".equals(payload)) {
+					finished.countDown();
+				}
+			}
+		};
+		ProgressPublisher publisher = new ProgressPublisher(messageHelper, 50L);
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i++) {
+				publisher.publish("/data/jobs/1", i);
+			}
+			publisher.publishFinal("/data/jobs/1", "done");
+			// publishing never waits on the (blocked) client
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+			blocked.countDown();
+			assertTrue(finished.await(5, TimeUnit.SECONDS));
+		} finally {
+			publisher.shutdown();
+		}
+		assertTrue(sent.size() <= 3, sent.toString());
+		assertEquals(999, sent.get(sent.size() - 2));
+		assertEquals("done", sent.get(sent.size() - 1));
+	}
+}
@@ -0,0 +1,85 @@
+package com.drakeserver.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.drakeserver.image.processing.ImageProcessorService;
+import com.drakeserver.image.processing.ProcessingJobService;
+import com.drakeserver.messaging.MessageConstants;
+import com.drakeserver.messaging.MessageHelper;
+import com.drakeserver.messaging.ProgressPublisher;
+import com.drakeserver.ws.model.MemoryInfoModel;
+
+public class MemoryStatsPublisherTest {
+
+	List<Object> pushed;
+	ProgressPublisher progressPublisher;
+	ProcessingJobService jobService;
+	MemoryStatsPublisher publisher;
+
+	@BeforeEach
+	public void setup() {
+		pushed = new ArrayList<>();
+		MessageHelper messageHelper = new MessageHelper() {
+			@Override
+			public void dispatchMessage(String destination, Object payload) {
+				assertEquals(MessageConstants.MEMORY_STATS, destination);
+				pushed.add(payload);
+			}
+		};
+		ImageProcessorService processor = new ImageProcessorService();
+		progressPublisher = new ProgressPublisher(messageHelper, 0L);
+		jobService = new ProcessingJobService(processor, progressPublisher, 1, 1, 60);
+		// not started, the ticks are run by the tests
+		publisher = new MemoryStatsPublisher(messageHelper, processor, jobService, 0L, Long.MAX_VALUE);
+	}
+
+	@AfterEach
+	public void teardown() {
+		jobService.shutdown();
+		progressPublisher.shutdown();
+	}
+
+	@Test
+	public void collect_Statistics() {
+		MemoryInfoModel model = publisher.collect();
+		assertTrue(model.getHeapUsed() > 0);
+		assertTrue(model.getHeapCommitted() >= model.getHeapUsed());
+		assertTrue(model.getMaxMemory() > 0);
+		assertTrue(model.getLiveThreads() > 0);
+		assertTrue(model.getGcCount() >= 0);
+		assertEquals(0, model.getActiveJobs());
+		assertEquals(0, model.getQueuedJobs());
+	}
+
+	@Test
+	public void isChanged() {
+		MemoryInfoModel previous = new MemoryInfoModel();
+		previous.setHeapUsed(10_000_000L);
+		previous.setProcessCpuLoad(0.5);
+		MemoryInfoModel current = new MemoryInfoModel();
+		current.setHeapUsed(10_500_000L);
+		current.setProcessCpuLoad(0.505);
+		assertTrue(MemoryStatsPublisher.isChanged(null, current, 1048576L));
+		assertFalse(MemoryStatsPublisher.isChanged(previous, current, 1048576L));
+		assertTrue(MemoryStatsPublisher.isChanged(previous, current, 100_000L));
+
+		current.setGcCount(1);
+		assertTrue(MemoryStatsPublisher.isChanged(previous, current, 1048576L));
+		current.setGcCount(0);
+		current.setActiveJobs(1);
+		assertTrue(MemoryStatsPublisher.isChanged(previous, current, 1048576L));
+	}
+
+	@Test
+	public void tick_FirstPushedAndLatestKept() {
+		assertTrue(publisher.tick());
+		assertEquals(1, pushed.size());
+		assertSame(pushed.get(0), publisher.getLatest());
+	}
+}
@@ -81,7 +81,6 @@ export class ProcessManager {
     }
 
     _initialize() {
-        this.connectionManager.addSubscriber(ChannelNames.MEMORY_STATS, this._handleMemoryStats.bind(this));
         this.connectionManager.addSubscriber(ChannelNames.MEMORY_STATS, this._handleMemoryStats.bind(this));
         _.defer(() => {
             this._getMemoryStats();
@@ -90,7 +89,14 @@ export class ProcessManager {
         ipcRenderer.on('processHandler-status', this._handleProcessStatus.bind(this));
     }
 
+    /**
+     * The server pushes the statistics when they change so they are only requested until the first
+     * arrive (which covers the connection not being ready).
+     */
     _getMemoryStats() {
+        if (this.memoryStats.maxMemory >= 0) {
+            return;
+        }
         if (this.connectionManager.isConnected()) {
             this.connectionManager.send(PublishAPI.MEMORY_STATS);
         }
@@ -104,6 +110,8 @@ export class ProcessManager {
         this.memoryStats.freeMemory = _.get(stats, 'freeMemory', -1);
         this.memoryStats.maxMemory = _.get(stats, 'maxMemory', -1);
         this.memoryStats.totalMemory = _.get(stats, 'totalMemory', -1);
+        _.assign(this.memoryStats, _.pick(stats, ['heapUsed', 'heapCommitted', 'nonHeapUsed', 'nonHeapCommitted', 'gcCount',
+            'gcPauseMillis', 'processCpuLoad', 'liveThreads', 'activeJobs', 'queuedJobs', 'imagesInProcess', 'pooledBufferBytes', 'timestamp']));
         this.logger.info(this.memoryStats);
     }
 